@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk.benchmarks;
+
+import com.bcubk.MqttSender;
+
+/**
+ * A connected {@link MqttSender} which only counts the published bytes.
+ *
+ * @author Baris Cubukcuoglu
+ */
+class NullMqttSender implements MqttSender {
+		private long bytes;
+
+		public void connect() {
+		}
+
+		public void send(final String jsonPayload) {
+				this.bytes += jsonPayload.length();
+		}
+
+		public void send(final byte[] payload, final int offset, final int length) {
+				this.bytes += length;
+		}
+
+		public void disconnect() {
+		}
+
+		public boolean isConnected() {
+				return true;
+		}
+
+		long getBytes() {
+				return bytes;
+		}
+}
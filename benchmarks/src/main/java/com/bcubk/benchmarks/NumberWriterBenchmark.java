@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk.benchmarks;
+
+import com.bcubk.NumberWriter;
+import com.bcubk.PayloadBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link NumberWriter}s with the former {@code String.format("%2.2f", value)}
+ * formatting of a value.
+ *
+ * @author Baris Cubukcuoglu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class NumberWriterBenchmark {
+		private static final int VALUES = 1024;
+
+		private final NumberWriter fixed = NumberWriter.fixed(2);
+		private final NumberWriter shortest = NumberWriter.shortest();
+		private final PayloadBuffer out = new PayloadBuffer();
+		private final double[] doubles = new double[VALUES];
+		private final Object[] numbers = new Object[VALUES];
+		private int index;
+
+		@Setup
+		public void setUp() {
+				final Random random = new Random(42);
+				for (int i = 0; i < VALUES; i++) {
+						doubles[i] = random.nextDouble() * 10000;
+						numbers[i] = i % 2 == 0 ? (Object) random.nextLong() : (Object) doubles[i];
+				}
+		}
+
+		@Benchmark
+		public int writeDoubleFixed() {
+				out.reset();
+				fixed.write(nextDouble(), out);
+				return out.length();
+		}
+
+		@Benchmark
+		public int writeDoubleShortest() {
+				out.reset();
+				shortest.write(nextDouble(), out);
+				return out.length();
+		}
+
+		@Benchmark
+		public int writeNumber() {
+				out.reset();
+				fixed.write((Number) numbers[next()], out);
+				return out.length();
+		}
+
+		@Benchmark
+		public String formatDouble() {
+				return String.format("%2.2f", nextDouble());
+		}
+
+		private double nextDouble() {
+				return doubles[next()];
+		}
+
+		private int next() {
+				index = (index + 1) & (VALUES - 1);
+				return index;
+		}
+}
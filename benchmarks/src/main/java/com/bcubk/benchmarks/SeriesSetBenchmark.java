@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk.benchmarks;
+
+import com.bcubk.BinaryPayloadEncoder;
+import com.bcubk.JsonPayloadWriter;
+import com.bcubk.PayloadBuffer;
+import com.bcubk.PayloadEncoder;
+import com.bcubk.SeriesSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures filling and resetting a {@link SeriesSet} and encoding it with the
+ * {@link PayloadEncoder}s.
+ *
+ * @author Baris Cubukcuoglu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SeriesSetBenchmark {
+
+		@Param({"1000", "10000", "100000"})
+		public int values;
+
+		private final SeriesSet seriesSet = new SeriesSet();
+		private final PayloadBuffer out = new PayloadBuffer();
+		private final PayloadEncoder json = new JsonPayloadWriter();
+		private final PayloadEncoder binary = new BinaryPayloadEncoder();
+		private int[] nameIds;
+		private double[] doubles;
+
+		@Setup
+		public void setUp() {
+				final Random random = new Random(42);
+				this.nameIds = new int[values];
+				this.doubles = new double[values];
+				for (int i = 0; i < values; i++) {
+						nameIds[i] = seriesSet.nameId("benchmark.service.component" + (i % 100)
+								+ ".metric" + i + ".p99");
+						doubles[i] = random.nextDouble() * 1000;
+				}
+				fill();
+		}
+
+		@Benchmark
+		public int fillAndReset() {
+				seriesSet.resetSeries();
+				fill();
+				return seriesSet.size();
+		}
+
+		@Benchmark
+		public int encodeJson() {
+				out.reset();
+				json.encode(seriesSet, out);
+				return out.length();
+		}
+
+		@Benchmark
+		public int encodeBinary() {
+				out.reset();
+				binary.encode(seriesSet, out);
+				return out.length();
+		}
+
+		private void fill() {
+				for (int i = 0; i < values; i++) {
+						if (i % 2 == 0) {
+								seriesSet.add(nameIds[i], 1482710400L, (long) doubles[i]);
+						}
+						else {
+								seriesSet.add(nameIds[i], 1482710400L, doubles[i]);
+						}
+				}
+		}
+}
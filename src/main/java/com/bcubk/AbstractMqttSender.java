@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A base for {@link MqttSender}s which only publish strings, e.g. implementations written before
+ * {@link MqttSender#send(byte[], int, int)} was added: extending this class instead of
+ * implementing the interface keeps them working with JSON payloads. Binary payloads, see
+ * {@link MqttReporter.Builder#encodeWith(PayloadEncoder)} and {@link CompressingMqttSender}, are
+ * no valid UTF-8 and need a sender which publishes the bytes as they are.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public abstract class AbstractMqttSender implements MqttSender {
+		/**
+		 * Decodes the payload as UTF-8 and publishes it with {@link #send(String)}.
+		 */
+		public void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				send(new String(payload, offset, length, StandardCharsets.UTF_8));
+		}
+}
@@ -0,0 +1,800 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link MqttSender} built on {@link MqttAsyncClient} which never waits for the broker on the
+ * calling thread. At most {@code maxInFlight} messages are handed to the client at once, further
+ * messages wait in a bounded queue and are published as soon as earlier ones complete. When the
+ * queue is full the {@link BackpressurePolicy} decides whether the caller blocks, the oldest queued
+ * message is dropped or the new message is rejected.
+ * <p>
+ * Messages sent while the connection is down are queued as well and published after the
+ * background reconnect.
+ * <p>
+ * A reporter with {@link PriorityLane}s sends the messages of every lane to a queue of its own,
+ * with the quality of service and the rate limit of the lane. The queues are drained in the order
+ * of the lanes, a full lane drops its oldest message, and a lane may keep only some of its
+ * messages while the lanes before it are backed up. Both are counted per lane.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class AsyncMqttSender implements ReconnectingMqttSender, BufferingMqttSender,
+		InstrumentedMqttSender {
+		private static final Logger LOGGER = LoggerFactory.getLogger(AsyncMqttSender.class);
+
+		private static final int DEFAULT_MAX_IN_FLIGHT = 10;
+		private static final int DEFAULT_MAX_QUEUED = 100;
+		private static final long DEFAULT_BLOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+		/**
+		 * What to do with a message when the in-flight window and the queue are full.
+		 */
+		public enum BackpressurePolicy {
+				/**
+				 * Block the sending thread until there is room, up to the block timeout.
+				 */
+				BLOCK,
+				/**
+				 * Drop the oldest queued message to make room for the new one.
+				 */
+				DROP_OLDEST,
+				/**
+				 * Reject the new message.
+				 */
+				DROP_NEWEST
+		}
+
+		/**
+		 * Notified once a message was delivered or given up.
+		 */
+		public interface SendCallback {
+				void onSuccess();
+
+				void onFailure(Throwable cause);
+		}
+
+		private final QualityOfService qos;
+		private final String topic;
+		private final String clientId;
+		private final InetSocketAddress address;
+		private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+		private final ReconnectScheduler reconnectScheduler =
+				new ReconnectScheduler(new ClientConnection());
+
+		private MqttAsyncClient mqttClient;
+		private int keepAliveInterval = SimpleMqttSender.DEFAULT_KEEP_ALIVE_INTERVAL;
+		private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		private int maxQueued = DEFAULT_MAX_QUEUED;
+		private BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_OLDEST;
+		private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+		private int inFlight;
+		private long dropped;
+		private Lane[] lanes;
+		private ScheduledExecutorService laneScheduler;
+		private boolean drainScheduled;
+
+		public AsyncMqttSender(final InetSocketAddress address, final String topic,
+				final QualityOfService qos, final String clientId) {
+				this.address = address;
+				this.topic = topic;
+				this.qos = qos;
+				this.clientId = clientId;
+		}
+
+		public AsyncMqttSender(final String hostname, final int port, final String topic) {
+				this(new InetSocketAddress(hostname, port), topic, QualityOfService.EXACTLY_ONCE,
+						MqttAsyncClient.generateClientId());
+		}
+
+		/**
+		 * Publish at most {@code maxInFlight} messages at once. Defaults to 10.
+		 *
+		 * @param maxInFlight the size of the in-flight window
+		 * @return {@code this}
+		 */
+		public AsyncMqttSender withMaxInFlight(final int maxInFlight) {
+				if (maxInFlight < 1) {
+						throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+				}
+				this.maxInFlight = maxInFlight;
+				return this;
+		}
+
+		/**
+		 * Queue at most {@code maxQueued} messages behind the in-flight window. Defaults to 100.
+		 *
+		 * @param maxQueued the capacity of the queue
+		 * @return {@code this}
+		 */
+		public AsyncMqttSender withMaxQueued(final int maxQueued) {
+				if (maxQueued < 1) {
+						throw new IllegalArgumentException("maxQueued must be positive: " + maxQueued);
+				}
+				this.maxQueued = maxQueued;
+				return this;
+		}
+
+		/**
+		 * Apply the given policy when the queue is full. Defaults to
+		 * {@link BackpressurePolicy#DROP_OLDEST}.
+		 *
+		 * @param backpressurePolicy a {@link BackpressurePolicy}
+		 * @return {@code this}
+		 */
+		public AsyncMqttSender withBackpressurePolicy(final BackpressurePolicy backpressurePolicy) {
+				this.backpressurePolicy = backpressurePolicy;
+				return this;
+		}
+
+		/**
+		 * Block at most the given time with {@link BackpressurePolicy#BLOCK}, the message is
+		 * rejected afterwards. Defaults to 10 seconds.
+		 *
+		 * @param timeout the maximum time to block
+		 * @param unit    the unit of the timeout
+		 * @return {@code this}
+		 */
+		public AsyncMqttSender withBlockTimeout(final long timeout, final TimeUnit unit) {
+				this.blockTimeout = unit.toMillis(timeout);
+				return this;
+		}
+
+		/**
+		 * @see SimpleMqttSender#withKeepAliveInterval(int)
+		 */
+		public AsyncMqttSender withKeepAliveInterval(final int keepAliveInterval) {
+				this.keepAliveInterval = keepAliveInterval;
+				return this;
+		}
+
+		/**
+		 * @see SimpleMqttSender#withReconnectBackoff(long, long, TimeUnit)
+		 */
+		public AsyncMqttSender withReconnectBackoff(final long initialDelay, final long maxDelay,
+				final TimeUnit unit) {
+				this.reconnectScheduler.setBackoff(initialDelay, maxDelay, unit);
+				return this;
+		}
+
+		/**
+		 * @see SimpleMqttSender#withoutReconnect()
+		 */
+		public AsyncMqttSender withoutReconnect() {
+				this.reconnectScheduler.disable();
+				return this;
+		}
+
+		public void connect() throws IllegalStateException, IOException, MqttException {
+				final MqttAsyncClient client;
+				synchronized (this) {
+						if (isConnected()) {
+								throw new IllegalStateException("Already connected");
+						}
+						if (this.reconnectScheduler.isPending()) {
+								throw new IOException("Reconnect to " + serverUri() + " in progress");
+						}
+						this.reconnectScheduler.open();
+						if (this.mqttClient == null) {
+								this.mqttClient = newClient(serverUri(), clientId);
+								this.mqttClient.setCallback(new ConnectionLostCallback());
+						}
+						client = this.mqttClient;
+				}
+				try {
+						client.connect(connectOptions()).waitForCompletion();
+				}
+				catch (MqttException e) {
+						this.reconnectScheduler.schedule();
+						throw e;
+				}
+				drain();
+		}
+
+		/**
+		 * Creates the client of the sender, tests replace it by one which needs no broker.
+		 */
+		MqttAsyncClient newClient(final String serverUri, final String clientId)
+				throws MqttException {
+				return new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+		}
+
+		/**
+		 * Queues the messages of every lane separately from now on, plain sends go to the first
+		 * lane.
+		 *
+		 * @param priorityLanes the lanes in the order of their priority
+		 */
+		synchronized void useLanes(final List<PriorityLane> priorityLanes) {
+				final Lane[] lanes = new Lane[priorityLanes.size()];
+				for (int i = 0; i < lanes.length; i++) {
+						lanes[i] = new Lane(priorityLanes.get(i));
+				}
+				this.lanes = lanes;
+		}
+
+		/**
+		 * Queues the payload in the queue of the given lane and returns immediately. A message
+		 * dropped or sampled out for the lane is counted, but not reported as failure.
+		 *
+		 * @param lane    the index of the lane
+		 * @param payload the encoded payload
+		 * @param offset  the offset of the first byte to publish
+		 * @param length  the number of bytes to publish
+		 */
+		void send(final int lane, final byte[] payload, final int offset, final int length) {
+				Delivery evicted;
+				synchronized (this) {
+						final Lane target = this.lanes[lane];
+						final Delivery delivery = new Delivery(
+								Arrays.copyOfRange(payload, offset, offset + length), null,
+								target.config.getQos().getQos());
+						evicted = target.offer(delivery, isBackedUp(lane));
+						if (evicted == delivery) {
+								// sampled out, nobody waits for it
+								evicted = null;
+						}
+						else if (evicted != null) {
+								this.dropped++;
+						}
+				}
+				if (evicted != null) {
+						evicted.complete(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+				}
+				drain();
+		}
+
+		public void send(final String jsonPayload) {
+				final byte[] payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
+				sendAsync(payload, 0, payload.length, null);
+		}
+
+		/**
+		 * Queues the payload for publishing and returns immediately, unless the queue is full and
+		 * the policy is {@link BackpressurePolicy#BLOCK}.
+		 *
+		 * @throws MqttException if the message was rejected because the queue is full
+		 */
+		public void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				final Delivery delivery = submit(payload, offset, length, null);
+				if (delivery.isDone() && delivery.failure != null) {
+						throw asMqttException(delivery.failure);
+				}
+		}
+
+		/**
+		 * Queues the payload for publishing. The payload is copied, so the caller may reuse the
+		 * array right away.
+		 *
+		 * @param payload  the encoded payload
+		 * @param offset   the offset of the first byte to publish
+		 * @param length   the number of bytes to publish
+		 * @param callback notified on completion, may be {@code null}
+		 * @return a future which completes when the message was delivered or given up
+		 */
+		public Future<Void> sendAsync(final byte[] payload, final int offset, final int length,
+				final SendCallback callback) {
+				return submit(payload, offset, length, callback);
+		}
+
+		private Delivery submit(final byte[] payload, final int offset, final int length,
+				final SendCallback callback) {
+				final Delivery delivery = new Delivery(
+						Arrays.copyOfRange(payload, offset, offset + length), callback, this.qos.getQos());
+				final List<Delivery> rejected = new ArrayList<>(1);
+				synchronized (this) {
+						if (this.lanes != null) {
+								final Delivery evicted = this.lanes[0].offer(delivery, false);
+								if (evicted != null) {
+										this.dropped++;
+										rejected.add(evicted);
+								}
+						}
+						else {
+								enqueue(delivery, rejected);
+						}
+				}
+				failAll(rejected, new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+				drain();
+				return delivery;
+		}
+
+		public void disconnect() throws MqttException {
+				final MqttAsyncClient client;
+				final List<Delivery> pending;
+				synchronized (this) {
+						this.reconnectScheduler.close();
+						client = this.mqttClient;
+						this.mqttClient = null;
+						pending = new ArrayList<>(this.queue);
+						this.queue.clear();
+						if (this.lanes != null) {
+								for (Lane lane : this.lanes) {
+										pending.addAll(lane.queue);
+										lane.queue.clear();
+								}
+						}
+						if (this.laneScheduler != null) {
+								this.laneScheduler.shutdownNow();
+								this.laneScheduler = null;
+								this.drainScheduled = false;
+						}
+						notifyAll();
+				}
+				failAll(pending, new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+				if (client != null) {
+						try {
+								if (client.isConnected()) {
+										client.disconnect().waitForCompletion();
+								}
+						}
+						finally {
+								client.close();
+						}
+				}
+		}
+
+		public boolean isConnected() {
+				final MqttAsyncClient client = this.mqttClient;
+				return client != null && client.isConnected();
+		}
+
+		/**
+		 * @return the number of successful background reconnects
+		 */
+		public int getReconnects() {
+				return this.reconnectScheduler.getReconnects();
+		}
+
+		/**
+		 * @return {@code true}, messages sent while disconnected wait in the queue
+		 */
+		public boolean buffersWhileDisconnected() {
+				return true;
+		}
+
+		public Map<String, Gauge<?>> getGauges() {
+				final Map<String, Gauge<?>> gauges = new LinkedHashMap<>();
+				gauges.put("reconnects", new Gauge<Integer>() {
+						public Integer getValue() {
+								return getReconnects();
+						}
+				});
+				gauges.put("in-flight", new Gauge<Integer>() {
+						public Integer getValue() {
+								return getInFlight();
+						}
+				});
+				gauges.put("queued", new Gauge<Integer>() {
+						public Integer getValue() {
+								return getQueued();
+						}
+				});
+				gauges.put("dropped", new Gauge<Long>() {
+						public Long getValue() {
+								return getDropped();
+						}
+				});
+				return gauges;
+		}
+
+		/**
+		 * @return the number of messages handed to the client and not completed yet
+		 */
+		public synchronized int getInFlight() {
+				return inFlight;
+		}
+
+		/**
+		 * @return the number of messages waiting for room in the in-flight window
+		 */
+		public synchronized int getQueued() {
+				int queued = queue.size();
+				if (lanes != null) {
+						for (Lane lane : lanes) {
+								queued += lane.queue.size();
+						}
+				}
+				return queued;
+		}
+
+		/**
+		 * @param lane the name of a {@link PriorityLane}
+		 * @return the number of messages of the lane dropped because its queue was full
+		 */
+		public synchronized long getDropped(final String lane) {
+				return lane(lane).dropped;
+		}
+
+		/**
+		 * @param lane the name of a {@link PriorityLane}
+		 * @return the number of messages of the lane left out under backpressure
+		 */
+		public synchronized long getSampledOut(final String lane) {
+				return lane(lane).sampledOut;
+		}
+
+		private Lane lane(final String name) {
+				for (int i = 0; lanes != null && i < lanes.length; i++) {
+						if (lanes[i].config.getName().equals(name)) {
+								return lanes[i];
+						}
+				}
+				throw new IllegalArgumentException("No lane " + name);
+		}
+
+		/**
+		 * @return {@code true} if the in-flight window is full or a lane before the given one has
+		 * queued messages
+		 */
+		private boolean isBackedUp(final int lane) {
+				if (this.inFlight >= this.maxInFlight) {
+						return true;
+				}
+				for (int i = 0; i < lane; i++) {
+						if (!this.lanes[i].queue.isEmpty()) {
+								return true;
+						}
+				}
+				return false;
+		}
+
+		/**
+		 * @return the number of messages dropped or rejected because the queue was full
+		 */
+		public synchronized long getDropped() {
+				return dropped;
+		}
+
+		private void enqueue(final Delivery delivery, final List<Delivery> rejected) {
+				if (this.queue.size() >= this.maxQueued) {
+						switch (this.backpressurePolicy) {
+								case DROP_NEWEST:
+										this.dropped++;
+										rejected.add(delivery);
+										return;
+								case DROP_OLDEST:
+										this.dropped++;
+										rejected.add(this.queue.poll());
+										break;
+								default:
+										if (!awaitRoom()) {
+												this.dropped++;
+												rejected.add(delivery);
+												return;
+										}
+						}
+				}
+				this.queue.add(delivery);
+		}
+
+		private boolean awaitRoom() {
+				final long deadline = System.currentTimeMillis() + this.blockTimeout;
+				long remaining = this.blockTimeout;
+				try {
+						while (this.queue.size() >= this.maxQueued && remaining > 0) {
+								wait(remaining);
+								remaining = deadline - System.currentTimeMillis();
+						}
+				}
+				catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+				}
+				return this.queue.size() < this.maxQueued;
+		}
+
+		private void drain() {
+				final List<Delivery> failed = new ArrayList<>();
+				MqttException failure = null;
+				synchronized (this) {
+						while (this.inFlight < this.maxInFlight && isConnected()) {
+								final Delivery delivery = poll();
+								if (delivery == null) {
+										break;
+								}
+								notifyAll();
+								final MqttMessage mqttMessage = new MqttMessage(delivery.payload);
+								mqttMessage.setQos(delivery.qos);
+								try {
+										this.mqttClient.publish(this.topic, mqttMessage, delivery, delivery);
+										this.inFlight++;
+								}
+								catch (MqttException e) {
+										failed.add(delivery);
+										failure = e;
+								}
+						}
+				}
+				failAll(failed, failure);
+		}
+
+		/**
+		 * Takes the next message to publish: the head of the queue, or of the first lane with
+		 * queued messages within its rate limit. If the lanes with queued messages are all
+		 * limited, a drain is scheduled for when the first one may publish again.
+		 */
+		private Delivery poll() {
+				if (this.lanes == null) {
+						return this.queue.poll();
+				}
+				final long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				for (Lane lane : this.lanes) {
+						if (lane.queue.isEmpty()) {
+								continue;
+						}
+						if (lane.tryAcquire(now)) {
+								return lane.queue.poll();
+						}
+						wait = Math.min(wait, lane.nanosUntilToken());
+				}
+				if (wait != Long.MAX_VALUE) {
+						scheduleDrain(wait);
+				}
+				return null;
+		}
+
+		private void scheduleDrain(final long nanos) {
+				if (this.drainScheduled) {
+						return;
+				}
+				if (this.laneScheduler == null) {
+						this.laneScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+								public Thread newThread(final Runnable runnable) {
+										final Thread thread = new Thread(runnable, "mqtt-reporter-lanes");
+										thread.setDaemon(true);
+										return thread;
+								}
+						});
+				}
+				this.drainScheduled = true;
+				this.laneScheduler.schedule(new Runnable() {
+						public void run() {
+								synchronized (AsyncMqttSender.this) {
+										drainScheduled = false;
+								}
+								drain();
+						}
+				}, nanos, TimeUnit.NANOSECONDS);
+		}
+
+		private synchronized void completed() {
+				this.inFlight = Math.max(0, this.inFlight - 1);
+		}
+
+		private static void failAll(final List<Delivery> deliveries, final Throwable cause) {
+				for (Delivery delivery : deliveries) {
+						delivery.complete(cause);
+				}
+		}
+
+		private static MqttException asMqttException(final Throwable cause) {
+				if (cause instanceof MqttException) {
+						return (MqttException) cause;
+				}
+				return new MqttException(cause);
+		}
+
+		private String serverUri() {
+				return SimpleMqttSender.serverUri(this.address);
+		}
+
+		private MqttConnectOptions connectOptions() {
+				final MqttConnectOptions options = new MqttConnectOptions();
+				options.setKeepAliveInterval(this.keepAliveInterval);
+				options.setMaxInflight(this.maxInFlight);
+				return options;
+		}
+
+		/**
+		 * The queue of a {@link PriorityLane} with its token bucket and accounting.
+		 */
+		private static final class Lane {
+				private final PriorityLane config;
+				private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+				private final double burst;
+				private double tokens;
+				private long refilled = System.nanoTime();
+				private long offered;
+				private long dropped;
+				private long sampledOut;
+
+				private Lane(final PriorityLane config) {
+						this.config = config;
+						this.burst = Math.max(1d, config.getMaxMessagesPerSecond());
+						this.tokens = burst;
+				}
+
+				/**
+				 * @return the message dropped or sampled out, {@code null} if none
+				 */
+				private Delivery offer(final Delivery delivery, final boolean backedUp) {
+						if (backedUp && offered++ % config.getKeepOneIn() != 0) {
+								sampledOut++;
+								return delivery;
+						}
+						Delivery evicted = null;
+						if (queue.size() >= config.getMaxQueued()) {
+								dropped++;
+								evicted = queue.poll();
+						}
+						queue.add(delivery);
+						return evicted;
+				}
+
+				private boolean tryAcquire(final long now) {
+						final double rate = config.getMaxMessagesPerSecond();
+						if (rate <= 0) {
+								return true;
+						}
+						tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+						refilled = now;
+						if (tokens >= 1) {
+								tokens -= 1;
+								return true;
+						}
+						return false;
+				}
+
+				private long nanosUntilToken() {
+						return (long) Math.ceil((1 - tokens) * 1e9 / config.getMaxMessagesPerSecond());
+				}
+		}
+
+		private final class Delivery implements Future<Void>, IMqttActionListener {
+				private final byte[] payload;
+				private final SendCallback callback;
+				private final int qos;
+				private final CountDownLatch done = new CountDownLatch(1);
+				private volatile Throwable failure;
+
+				private Delivery(final byte[] payload, final SendCallback callback, final int qos) {
+						this.payload = payload;
+						this.callback = callback;
+						this.qos = qos;
+				}
+
+				public void onSuccess(final IMqttToken token) {
+						completed();
+						complete(null);
+						drain();
+				}
+
+				public void onFailure(final IMqttToken token, final Throwable cause) {
+						completed();
+						complete(cause);
+						drain();
+				}
+
+				private void complete(final Throwable cause) {
+						if (this.done.getCount() == 0) {
+								return;
+						}
+						this.failure = cause;
+						this.done.countDown();
+						if (cause != null) {
+								LOGGER.debug("Unable to publish to {}", topic, cause);
+						}
+						if (this.callback == null) {
+								return;
+						}
+						try {
+								if (cause == null) {
+										this.callback.onSuccess();
+								}
+								else {
+										this.callback.onFailure(cause);
+								}
+						}
+						catch (RuntimeException e) {
+								LOGGER.warn("Send callback failed", e);
+						}
+				}
+
+				public boolean cancel(final boolean mayInterruptIfRunning) {
+						return false;
+				}
+
+				public boolean isCancelled() {
+						return false;
+				}
+
+				public boolean isDone() {
+						return this.done.getCount() == 0;
+				}
+
+				public Void get() throws InterruptedException, ExecutionException {
+						this.done.await();
+						return result();
+				}
+
+				public Void get(final long timeout, final TimeUnit unit)
+						throws InterruptedException, ExecutionException, TimeoutException {
+						if (!this.done.await(timeout, unit)) {
+								throw new TimeoutException();
+						}
+						return result();
+				}
+
+				private Void result() throws ExecutionException {
+						if (this.failure != null) {
+								throw new ExecutionException(this.failure);
+						}
+						return null;
+				}
+		}
+
+		private class ClientConnection implements ReconnectScheduler.Connection {
+				public void reconnect() throws MqttException {
+						final MqttAsyncClient client = mqttClient;
+						if (client != null && !client.isConnected()) {
+								client.connect(connectOptions()).waitForCompletion();
+								drain();
+						}
+				}
+
+				public String describe() {
+						return serverUri();
+				}
+		}
+
+		private class ConnectionLostCallback implements MqttCallback {
+				public void connectionLost(final Throwable cause) {
+						// messages in flight are failed through their action listener by the client
+						LOGGER.warn("Lost connection to {}", serverUri(), cause);
+						reconnectScheduler.schedule();
+				}
+
+				public void messageArrived(final String topic, final MqttMessage message) {
+				}
+
+				public void deliveryComplete(final IMqttDeliveryToken token) {
+				}
+		}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes payloads written by {@link BinaryPayloadEncoder} into a {@link SeriesSet}, for the
+ * consumers of the reported metrics. Payloads which carry name ids need the
+ * {@link NameDictionary} announced by the reporter, see
+ * {@link #withNameDictionary(NameDictionary)}.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class BinaryPayloadDecoder {
+		private static final SeriesSet.ValueType[] VALUE_TYPES = SeriesSet.ValueType.values();
+
+		private byte[] payload;
+		private int position;
+		private int end;
+		private long cycleId;
+		private int chunk;
+		private int chunks;
+		private long epoch;
+		private int firstNameId;
+		private int nameCount;
+		private NameDictionary nameDictionary;
+
+		/**
+		 * Resolve the name ids of payloads with the given dictionary. The dictionary may be
+		 * updated between two payloads as new announcements arrive.
+		 *
+		 * @param nameDictionary the dictionary announced by the reporter
+		 * @return {@code this}
+		 */
+		public BinaryPayloadDecoder withNameDictionary(final NameDictionary nameDictionary) {
+				this.nameDictionary = nameDictionary;
+				return this;
+		}
+
+		/**
+		 * @param payload the received payload
+		 * @param offset  the offset of the first byte
+		 * @param length  the number of bytes
+		 * @return {@code true} if the payload starts like a binary payload
+		 */
+		public static boolean isBinaryPayload(final byte[] payload, final int offset,
+				final int length) {
+				return length > 1 && (payload[offset] & 0xFF) == BinaryPayloadEncoder.MAGIC;
+		}
+
+		/**
+		 * Appends the values of the payload to the given set.
+		 *
+		 * @param payload   the received payload
+		 * @param offset    the offset of the first byte
+		 * @param length    the number of bytes
+		 * @param seriesSet the set to add the values to
+		 * @return the number of decoded values
+		 * @throws IOException if the payload is malformed, or its name ids cannot be resolved
+		 */
+		public int decode(final byte[] payload, final int offset, final int length,
+				final SeriesSet seriesSet) throws IOException {
+				this.payload = payload;
+				this.position = offset;
+				this.end = offset + length;
+				try {
+						if (readByte() != BinaryPayloadEncoder.MAGIC) {
+								throw new IOException("Not a binary payload");
+						}
+						final int version = readByte();
+						if (version == BinaryPayloadEncoder.CHUNKED_VERSION
+								|| version == BinaryPayloadEncoder.CHUNKED_DICTIONARY_VERSION) {
+								chunks = (int) readIntLittleEndian();
+								cycleId = readVarLong();
+								chunk = (int) readVarLong();
+						}
+						else if (version == BinaryPayloadEncoder.VERSION
+								|| version == BinaryPayloadEncoder.DICTIONARY_VERSION) {
+								cycleId = -1L;
+								chunk = 0;
+								chunks = 1;
+						}
+						else {
+								throw new IOException("Unsupported binary payload version " + version);
+						}
+						final boolean nameIds = version == BinaryPayloadEncoder.DICTIONARY_VERSION
+								|| version == BinaryPayloadEncoder.CHUNKED_DICTIONARY_VERSION;
+						if (nameIds) {
+								epoch = readVarLong();
+								if (nameDictionary == null || nameDictionary.getEpoch() != epoch) {
+										throw new IOException("No name dictionary of epoch " + epoch);
+								}
+						}
+						long timestamp = unZigZag(readVarLong());
+						int count = 0;
+						for (int type = readByte(); type != BinaryPayloadEncoder.END; type = readByte()) {
+								if ((type & BinaryPayloadEncoder.TIMESTAMP_DELTA) != 0) {
+										timestamp += unZigZag(readVarLong());
+								}
+								final int valueType = (type & ~BinaryPayloadEncoder.TIMESTAMP_DELTA) - 1;
+								if (valueType < 0 || valueType >= VALUE_TYPES.length) {
+										throw new IOException("Unknown value type " + valueType);
+								}
+								final int nameId = seriesSet.nameId(nameIds ? readNameId() : readString());
+								switch (VALUE_TYPES[valueType]) {
+										case LONG:
+												seriesSet.add(nameId, timestamp, unZigZag(readVarLong()));
+												break;
+										case DOUBLE:
+												seriesSet.add(nameId, timestamp, Double.longBitsToDouble(readLongLittleEndian()));
+												break;
+										default:
+												seriesSet.add(nameId, timestamp, readString());
+								}
+								count++;
+						}
+						return count;
+				}
+				finally {
+						this.payload = null;
+				}
+		}
+
+		/**
+		 * Decodes a name dictionary announced by the reporter, or a chunk of it, see
+		 * {@link NameDictionary}. The id of the first name and the size of the whole dictionary
+		 * are available from {@link #getFirstNameId()} and {@link #getNameCount()} afterwards.
+		 */
+		List<String> decodeNames(final byte[] payload, final int offset, final int length)
+				throws IOException {
+				this.payload = payload;
+				this.position = offset;
+				this.end = offset + length;
+				try {
+						if (readByte() != BinaryPayloadEncoder.MAGIC) {
+								throw new IOException("Not a name dictionary");
+						}
+						final int version = readByte();
+						if (version != BinaryPayloadEncoder.NAMES_VERSION
+								&& version != BinaryPayloadEncoder.NAMES_CHUNK_VERSION) {
+								throw new IOException("Not a name dictionary");
+						}
+						epoch = readVarLong();
+						final boolean chunked = version == BinaryPayloadEncoder.NAMES_CHUNK_VERSION;
+						final long first = chunked ? readVarLong() : 0L;
+						final long count = readVarLong();
+						if (count < 0 || count > Integer.MAX_VALUE || first < 0 || first > count
+								|| !chunked && count > end - position) {
+								throw new IOException("Truncated name dictionary");
+						}
+						firstNameId = (int) first;
+						nameCount = (int) count;
+						final List<String> names = new ArrayList<>();
+						// a chunk holds names up to the end of the payload
+						for (long i = 0; chunked ? position < end : i < count; i++) {
+								names.add(readString());
+						}
+						if (firstNameId + names.size() > nameCount) {
+								throw new IOException("Name dictionary chunk beyond its size");
+						}
+						return names;
+				}
+				finally {
+						this.payload = null;
+				}
+		}
+
+		/**
+		 * @return the epoch of the name dictionary of the last decoded payload
+		 */
+		public long getEpoch() {
+				return epoch;
+		}
+
+		/**
+		 * @return the id of the first name of the last decoded name dictionary
+		 */
+		int getFirstNameId() {
+				return firstNameId;
+		}
+
+		/**
+		 * @return the number of names of the whole last decoded name dictionary
+		 */
+		int getNameCount() {
+				return nameCount;
+		}
+
+		/**
+		 * @return the cycle id of the last decoded chunk, or {@code -1} if it was not chunked
+		 */
+		public long getCycleId() {
+				return cycleId;
+		}
+
+		/**
+		 * @return the sequence number of the last decoded chunk, starting at zero
+		 */
+		public int getChunk() {
+				return chunk;
+		}
+
+		/**
+		 * @return the total number of chunks of the cycle of the last decoded payload
+		 */
+		public int getChunks() {
+				return chunks;
+		}
+
+		private int readByte() throws IOException {
+				if (position >= end) {
+						throw new IOException("Truncated binary payload");
+				}
+				return payload[position++] & 0xFF;
+		}
+
+		private long readVarLong() throws IOException {
+				long value = 0;
+				for (int shift = 0; shift < 64; shift += 7) {
+						final int b = readByte();
+						value |= (long) (b & 0x7F) << shift;
+						if ((b & 0x80) == 0) {
+								return value;
+						}
+				}
+				throw new IOException("Malformed varint");
+		}
+
+		private String readNameId() throws IOException {
+				final long id = readVarLong();
+				final String name = id <= Integer.MAX_VALUE ? nameDictionary.getName((int) id) : null;
+				if (name == null) {
+						throw new IOException("Unknown name id " + id + " in epoch " + epoch);
+				}
+				return name;
+		}
+
+		private long readLongLittleEndian() throws IOException {
+				long value = 0;
+				for (int shift = 0; shift < 64; shift += 8) {
+						value |= (long) readByte() << shift;
+				}
+				return value;
+		}
+
+		private long readIntLittleEndian() throws IOException {
+				long value = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+						value |= (long) readByte() << shift;
+				}
+				return value;
+		}
+
+		private String readString() throws IOException {
+				final long length = readVarLong();
+				if (length < 0 || length > end - position) {
+						throw new IOException("Truncated binary payload");
+				}
+				final String value = new String(payload, position, (int) length, StandardCharsets.UTF_8);
+				position += (int) length;
+				return value;
+		}
+
+		private static long unZigZag(final long value) {
+				return (value >>> 1) ^ -(value & 1);
+		}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+/**
+ * Encodes a {@link SeriesSet} in a compact binary format, read by {@link BinaryPayloadDecoder}:
+ * <pre>
+ * payload   = MAGIC VERSION timestamp *entry END
+ *           | MAGIC CHUNKED_VERSION chunks cycle-id chunk timestamp *entry END
+ *           | MAGIC DICTIONARY_VERSION epoch timestamp *entry END
+ *           | MAGIC CHUNKED_DICTIONARY_VERSION chunks cycle-id chunk epoch timestamp *entry END
+ * chunks    = 4 byte little endian, the total number of chunks of the cycle
+ * cycle-id  = varint, the id of the report cycle
+ * chunk     = varint, the sequence number of the chunk starting at zero
+ * timestamp = zig-zag varint, the timestamp shared by the following entries
+ * entry     = type [timestamp] name value
+ * type      = one byte, the {@link SeriesSet.ValueType} ordinal plus one; the bit 0x80 is set if
+ *             a zig-zag varint delta to the previous timestamp follows
+ * epoch     = varint, the epoch of the {@link NameDictionary} of the ids
+ * name      = varint length, UTF-8 bytes | varint id in the {@link NameDictionary}
+ * value     = zig-zag varint (LONG) | 8 byte little endian IEEE 754 bits (DOUBLE)
+ *           | varint length, UTF-8 bytes (TEXT)
+ * END       = 0x00
+ * </pre>
+ * Since all values of a report share the same timestamp, the timestamp is written once. With a
+ * {@link NameDictionary} names are written as their id, which has to be announced to the
+ * consumers before the payload.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class BinaryPayloadEncoder implements PayloadEncoder {
+		static final int MAGIC = 0xB7;
+		static final int VERSION = 1;
+		static final int CHUNKED_VERSION = 2;
+		static final int DICTIONARY_VERSION = 3;
+		static final int CHUNKED_DICTIONARY_VERSION = 4;
+		static final int NAMES_VERSION = 5;
+		static final int NAMES_CHUNK_VERSION = 6;
+		static final int CHUNK_COUNT_OFFSET = 2;
+		static final int END = 0;
+		static final int TIMESTAMP_DELTA = 0x80;
+
+		private final NameDictionary nameDictionary;
+
+		public BinaryPayloadEncoder() {
+				this(null);
+		}
+
+		/**
+		 * @param nameDictionary the ids to write instead of the names, or {@code null} to write
+		 *                       the names
+		 */
+		public BinaryPayloadEncoder(final NameDictionary nameDictionary) {
+				this.nameDictionary = nameDictionary;
+		}
+
+		NameDictionary getNameDictionary() {
+				return nameDictionary;
+		}
+
+		public void encode(final SeriesSet seriesSet, final PayloadBuffer out) {
+				out.write(MAGIC);
+				if (nameDictionary != null) {
+						out.write(DICTIONARY_VERSION);
+						out.writeVarLong(nameDictionary.getEpoch());
+				}
+				else {
+						out.write(VERSION);
+				}
+				encodeValues(seriesSet, 0, Integer.MAX_VALUE, out);
+		}
+
+		public int encodeChunk(final SeriesSet seriesSet, final int from, final int maxLength,
+				final long cycleId, final int sequence, final PayloadBuffer out) {
+				out.write(MAGIC);
+				out.write(nameDictionary != null ? CHUNKED_DICTIONARY_VERSION : CHUNKED_VERSION);
+				for (int i = 0; i < 4; i++) {
+						out.write(0);
+				}
+				out.writeVarLong(cycleId);
+				out.writeVarLong(sequence);
+				if (nameDictionary != null) {
+						out.writeVarLong(nameDictionary.getEpoch());
+				}
+				return encodeValues(seriesSet, from, maxLength, out);
+		}
+
+		public void setChunkCount(final PayloadBuffer chunk, final int chunks) {
+				final byte[] bytes = chunk.array();
+				for (int i = 0; i < 4; i++) {
+						bytes[CHUNK_COUNT_OFFSET + i] = (byte) (chunks >>> (8 * i));
+				}
+		}
+
+		private int encodeValues(final SeriesSet seriesSet, final int from, final int maxLength,
+				final PayloadBuffer out) {
+				long timestamp = from < seriesSet.size() ? seriesSet.getTimeStamp(from) : 0L;
+				out.writeVarLong(zigZag(timestamp));
+				int next = from;
+				while (next < seriesSet.size()) {
+						final int mark = out.length();
+						final SeriesSet.ValueType valueType = seriesSet.getValueType(next);
+						final long delta = seriesSet.getTimeStamp(next) - timestamp;
+						if (delta == 0) {
+								out.write(valueType.ordinal() + 1);
+						}
+						else {
+								out.write((valueType.ordinal() + 1) | TIMESTAMP_DELTA);
+								out.writeVarLong(zigZag(delta));
+						}
+						if (nameDictionary != null) {
+								out.writeVarLong(nameDictionary.idOf(seriesSet, seriesSet.getNameId(next)));
+						}
+						else {
+								final byte[] name = seriesSet.getNameUtf8(seriesSet.getNameId(next));
+								out.writeVarLong(name.length);
+								out.write(name, 0, name.length);
+						}
+						switch (valueType) {
+								case LONG:
+										out.writeVarLong(zigZag(seriesSet.getLong(next)));
+										break;
+								case DOUBLE:
+										out.writeLongLittleEndian(Double.doubleToRawLongBits(seriesSet.getDouble(next)));
+										break;
+								default:
+										final String text = seriesSet.getText(next);
+										writeString(text == null ? "" : text, out);
+						}
+						// keep room for END
+						if (out.length() + 1 > maxLength && next > from) {
+								out.truncate(mark);
+								break;
+						}
+						timestamp += delta;
+						next++;
+				}
+				out.write(END);
+				return next;
+		}
+
+		static long zigZag(final long value) {
+				return (value << 1) ^ (value >> 63);
+		}
+
+		private static void writeString(final String value, final PayloadBuffer out) {
+				out.writeVarLong(PayloadBuffer.utf8Length(value));
+				out.writeUtf8(value);
+		}
+}
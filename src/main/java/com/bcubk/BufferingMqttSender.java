@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+/**
+ * A {@link MqttSender} which may keep the payloads sent while it is disconnected, in a queue or a
+ * spool, and publishes them once the connection is back. The reporter keeps reporting to such a
+ * sender when it is unable to connect. Decorators report whether their delegate buffers.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface BufferingMqttSender extends MqttSender {
+		/**
+		 * @return {@code true} if payloads sent while disconnected are kept until the connection is
+		 * back
+		 */
+		boolean buffersWhileDisconnected();
+}
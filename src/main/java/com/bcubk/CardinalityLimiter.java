@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Limits the number of reported metrics, in total and per name prefix. As long as the registry
+ * stays within the limits every metric is reported and nothing is tracked. Beyond, the most
+ * active metrics are kept: the activity of a metric is the growth of its count since the
+ * previous report, metrics kept last time win ties so gauges do not flap. The top metrics are
+ * selected with one bounded min-heap per prefix and one for the total. The metrics which were
+ * dropped are summed up per prefix into an overflow bucket, see {@link #getOverflow()}.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class CardinalityLimiter {
+		static final String OVERFLOW = "overflow";
+
+		private final int maxMetrics;
+		private final int maxPerPrefix;
+		private final int prefixDepth;
+
+		private boolean limiting;
+		private Set<String> admitted = new HashSet<>();
+		private Map<String, Long> lastCounts = new HashMap<>();
+		private final Map<String, long[]> overflow = new TreeMap<>();
+		private int dropped;
+
+		private String[] names = new String[0];
+		private String[] prefixes = new String[0];
+		private long[] scores = new long[0];
+		private long[] deltas = new long[0];
+		private int size;
+
+		CardinalityLimiter(final int maxMetrics, final int maxPerPrefix, final int prefixDepth) {
+				this.maxMetrics = maxMetrics;
+				this.maxPerPrefix = maxPerPrefix;
+				this.prefixDepth = prefixDepth;
+		}
+
+		/**
+		 * Selects the metrics of this report.
+		 *
+		 * @return {@code true} if metrics were dropped and the maps have to be passed through
+		 * {@link #retain(SortedMap)}
+		 */
+		boolean limit(final SortedMap<String, ? extends Metric> gauges,
+				final SortedMap<String, ? extends Metric> counters,
+				final SortedMap<String, ? extends Metric> histograms,
+				final SortedMap<String, ? extends Metric> meters,
+				final SortedMap<String, ? extends Metric> timers) {
+				overflow.clear();
+				dropped = 0;
+				final int total = gauges.size() + counters.size() + histograms.size() + meters.size()
+						+ timers.size();
+				if (!limiting && total <= maxMetrics && (total <= maxPerPrefix
+						|| withinPrefixLimit(gauges, counters, histograms, meters, timers))) {
+						if (!admitted.isEmpty() || !lastCounts.isEmpty()) {
+								admitted = new HashSet<>();
+								lastCounts = new HashMap<>();
+						}
+						return false;
+				}
+
+				size = 0;
+				ensureCapacity(total);
+				final Map<String, Long> counts = new HashMap<>(total * 2);
+				collect(gauges, counts);
+				collect(counters, counts);
+				collect(histograms, counts);
+				collect(meters, counts);
+				collect(timers, counts);
+				lastCounts = counts;
+
+				final Map<String, TopMetrics> byPrefix = new HashMap<>();
+				for (int i = 0; i < size; i++) {
+						TopMetrics top = byPrefix.get(prefixes[i]);
+						if (top == null) {
+								top = new TopMetrics(maxPerPrefix);
+								byPrefix.put(prefixes[i], top);
+						}
+						drop(top.offer(i));
+				}
+				final TopMetrics top = new TopMetrics(maxMetrics);
+				for (TopMetrics prefixTop : byPrefix.values()) {
+						for (int i = 0; i < prefixTop.size; i++) {
+								drop(top.offer(prefixTop.heap[i]));
+						}
+				}
+
+				final Set<String> kept = new HashSet<>(top.size * 2);
+				for (int i = 0; i < top.size; i++) {
+						kept.add(names[top.heap[i]]);
+				}
+				admitted = kept;
+				limiting = dropped > 0;
+				mergeOverflowOfDroppedPrefixes();
+				return dropped > 0;
+		}
+
+		/**
+		 * @return the metrics of the given map which were selected by the last {@link #limit}
+		 */
+		<T extends Metric> SortedMap<String, T> retain(final SortedMap<String, T> metrics) {
+				final SortedMap<String, T> retained = new TreeMap<>();
+				for (Map.Entry<String, T> entry : metrics.entrySet()) {
+						if (admitted.contains(entry.getKey())) {
+								retained.put(entry.getKey(), entry.getValue());
+						}
+				}
+				return retained;
+		}
+
+		/**
+		 * @return the number of dropped metrics and the sum of the growth of their counts by
+		 * prefix, the metrics of prefixes without any reported metric under {@link #OVERFLOW}
+		 */
+		Map<String, long[]> getOverflow() {
+				return overflow;
+		}
+
+		/**
+		 * @return the number of metrics dropped by the last {@link #limit}
+		 */
+		int getDropped() {
+				return dropped;
+		}
+
+		private boolean withinPrefixLimit(final SortedMap<String, ?> gauges,
+				final SortedMap<String, ?> counters, final SortedMap<String, ?> histograms,
+				final SortedMap<String, ?> meters, final SortedMap<String, ?> timers) {
+				final Map<String, int[]> counts = new HashMap<>();
+				return countPrefixes(gauges, counts) && countPrefixes(counters, counts)
+						&& countPrefixes(histograms, counts) && countPrefixes(meters, counts)
+						&& countPrefixes(timers, counts);
+		}
+
+		private boolean countPrefixes(final SortedMap<String, ?> metrics,
+				final Map<String, int[]> counts) {
+				for (String name : metrics.keySet()) {
+						final String prefix = prefixOf(name);
+						int[] count = counts.get(prefix);
+						if (count == null) {
+								count = new int[1];
+								counts.put(prefix, count);
+						}
+						if (++count[0] > maxPerPrefix) {
+								return false;
+						}
+				}
+				return true;
+		}
+
+		private void collect(final SortedMap<String, ? extends Metric> metrics,
+				final Map<String, Long> counts) {
+				for (Map.Entry<String, ? extends Metric> entry : metrics.entrySet()) {
+						final String name = entry.getKey();
+						long delta = 0;
+						if (entry.getValue() instanceof Counting) {
+								final long count = ((Counting) entry.getValue()).getCount();
+								final Long last = lastCounts.get(name);
+								delta = Math.max(0L, last != null ? count - last : count);
+								counts.put(name, count);
+						}
+						names[size] = name;
+						prefixes[size] = prefixOf(name);
+						deltas[size] = delta;
+						// twice the growth, plus one for metrics kept last time to win ties
+						scores[size] = (Math.min(delta, Long.MAX_VALUE / 4) << 1)
+								+ (admitted.contains(name) ? 1 : 0);
+						size++;
+				}
+		}
+
+		private void drop(final int index) {
+				if (index < 0) {
+						return;
+				}
+				dropped++;
+				long[] bucket = overflow.get(prefixes[index]);
+				if (bucket == null) {
+						bucket = new long[2];
+						overflow.put(prefixes[index], bucket);
+				}
+				bucket[0]++;
+				bucket[1] += deltas[index];
+		}
+
+		/**
+		 * Moves the overflow of prefixes without any kept metric into the common bucket, so the
+		 * overflow does not grow with the number of prefixes.
+		 */
+		private void mergeOverflowOfDroppedPrefixes() {
+				final Set<String> keptPrefixes = new HashSet<>();
+				for (String name : admitted) {
+						keptPrefixes.add(prefixOf(name));
+				}
+				long[] common = null;
+				for (Iterator<Map.Entry<String, long[]>> it = overflow.entrySet().iterator();
+						it.hasNext(); ) {
+						final Map.Entry<String, long[]> entry = it.next();
+						if (!keptPrefixes.contains(entry.getKey())) {
+								if (common == null) {
+										common = new long[2];
+								}
+								common[0] += entry.getValue()[0];
+								common[1] += entry.getValue()[1];
+								it.remove();
+						}
+				}
+				if (common != null) {
+						final long[] bucket = overflow.get(OVERFLOW);
+						if (bucket != null) {
+								bucket[0] += common[0];
+								bucket[1] += common[1];
+						}
+						else {
+								overflow.put(OVERFLOW, common);
+						}
+				}
+		}
+
+		private String prefixOf(final String name) {
+				int end = -1;
+				for (int i = 0; i < prefixDepth; i++) {
+						end = name.indexOf('.', end + 1);
+						if (end < 0) {
+								return name;
+						}
+				}
+				return name.substring(0, end);
+		}
+
+		private void ensureCapacity(final int capacity) {
+				if (capacity > names.length) {
+						names = Arrays.copyOf(names, capacity);
+						prefixes = Arrays.copyOf(prefixes, capacity);
+						scores = Arrays.copyOf(scores, capacity);
+						deltas = Arrays.copyOf(deltas, capacity);
+				}
+		}
+
+		/**
+		 * A min-heap by score of the indices of the top {@code capacity} metrics.
+		 */
+		private final class TopMetrics {
+				private final int capacity;
+				private int[] heap = new int[16];
+				private int size;
+
+				private TopMetrics(final int capacity) {
+						this.capacity = capacity;
+				}
+
+				/**
+				 * @return the index pushed out of the top metrics, {@code -1} if none
+				 */
+				private int offer(final int index) {
+						if (size < capacity) {
+								if (size == heap.length) {
+										heap = Arrays.copyOf(heap, Math.min(capacity, size * 2));
+								}
+								heap[size] = index;
+								siftUp(size++);
+								return -1;
+						}
+						if (scores[index] <= scores[heap[0]]) {
+								return index;
+						}
+						final int evicted = heap[0];
+						heap[0] = index;
+						siftDown(0);
+						return evicted;
+				}
+
+				private void siftUp(final int position) {
+						int child = position;
+						while (child > 0) {
+								final int parent = (child - 1) / 2;
+								if (scores[heap[parent]] <= scores[heap[child]]) {
+										return;
+								}
+								swap(parent, child);
+								child = parent;
+						}
+				}
+
+				private void siftDown(final int position) {
+						int parent = position;
+						while (true) {
+								int smallest = parent;
+								final int left = 2 * parent + 1;
+								final int right = left + 1;
+								if (left < size && scores[heap[left]] < scores[heap[smallest]]) {
+										smallest = left;
+								}
+								if (right < size && scores[heap[right]] < scores[heap[smallest]]) {
+										smallest = right;
+								}
+								if (smallest == parent) {
+										return;
+								}
+								swap(parent, smallest);
+								parent = smallest;
+						}
+				}
+
+				private void swap(final int a, final int b) {
+						final int index = heap[a];
+						heap[a] = heap[b];
+						heap[b] = index;
+				}
+		}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.util.Arrays;
+
+/**
+ * Removes values from a {@link SeriesSet} which did not change since they were last published.
+ * The last published value of every name is kept in primitive arrays indexed by the name id,
+ * together with the name itself to notice when a released id was handed out for another name.
+ * Every {@code keyframeInterval}-th cycle is a keyframe which keeps all values, so late
+ * subscribers can resynchronize.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class ChangeDetector implements SeriesSet.Filter {
+		private static final byte UNKNOWN = 0;
+
+		private final int keyframeInterval;
+		private final double epsilon;
+
+		private long[] lastValues = new long[64];
+		private byte[] lastTypes = new byte[64];
+		private String[] lastTexts;
+		private String[] lastNames = new String[64];
+		private int cyclesSinceKeyframe;
+		private boolean keyframe = true;
+
+		ChangeDetector(final int keyframeInterval, final double epsilon) {
+				this.keyframeInterval = keyframeInterval;
+				this.epsilon = epsilon;
+		}
+
+		/**
+		 * Makes the next publish a keyframe, e.g. after the connection was re-established.
+		 */
+		void requestKeyframe() {
+				this.keyframe = true;
+		}
+
+		/**
+		 * Removes all unchanged values unless the current cycle is a keyframe. An empty cycle, e.g.
+		 * a report within a window of {@link MqttReporter.Builder#aggregateOver(int)}, does not
+		 * count towards the keyframe interval.
+		 *
+		 * @param seriesSet the values of the current cycle
+		 */
+		void retainChanged(final SeriesSet seriesSet) {
+				if (seriesSet.isEmpty()) {
+						return;
+				}
+				if (!keyframe && ++cyclesSinceKeyframe >= keyframeInterval) {
+						keyframe = true;
+				}
+				if (!keyframe) {
+						seriesSet.retain(this);
+				}
+		}
+
+		/**
+		 * Remembers the values of a successful publish. Values of a failed publish are not
+		 * committed, so they are compared against the last published ones again next cycle.
+		 *
+		 * @param seriesSet the published values
+		 */
+		void commit(final SeriesSet seriesSet) {
+				ensureCapacity(seriesSet.getNameCount());
+				for (int i = 0; i < seriesSet.size(); i++) {
+						final int nameId = seriesSet.getNameId(i);
+						final SeriesSet.ValueType valueType = seriesSet.getValueType(i);
+						lastNames[nameId] = seriesSet.getName(nameId);
+						lastTypes[nameId] = (byte) (valueType.ordinal() + 1);
+						lastValues[nameId] = seriesSet.getLong(i);
+						if (valueType == SeriesSet.ValueType.TEXT) {
+								if (lastTexts == null) {
+										lastTexts = new String[lastTypes.length];
+								}
+								lastTexts[nameId] = seriesSet.getText(i);
+						}
+				}
+				if (keyframe) {
+						keyframe = false;
+						cyclesSinceKeyframe = 0;
+				}
+		}
+
+		@Override
+		public boolean accept(final SeriesSet seriesSet, final int index) {
+				final int nameId = seriesSet.getNameId(index);
+				if (nameId >= lastTypes.length || lastTypes[nameId] == UNKNOWN
+						|| lastNames[nameId] != seriesSet.getName(nameId)) {
+						return true;
+				}
+				final SeriesSet.ValueType valueType = seriesSet.getValueType(index);
+				if (lastTypes[nameId] != valueType.ordinal() + 1) {
+						return true;
+				}
+				final long last = lastValues[nameId];
+				switch (valueType) {
+						case LONG:
+								final long value = seriesSet.getLong(index);
+								return value != last
+										&& (epsilon == 0 || Math.abs((double) value - (double) last) > epsilon);
+						case DOUBLE:
+								final double current = seriesSet.getDouble(index);
+								final double previous = Double.longBitsToDouble(last);
+								if (Double.isNaN(current) || Double.isNaN(previous)) {
+										return Double.isNaN(current) != Double.isNaN(previous);
+								}
+								return current != previous && !(Math.abs(current - previous) <= epsilon);
+						default:
+								final String text = seriesSet.getText(index);
+								return text == null ? lastTexts[nameId] != null : !text.equals(lastTexts[nameId]);
+				}
+		}
+
+		private void ensureCapacity(final int nameCount) {
+				if (nameCount > lastTypes.length) {
+						final int capacity = Math.max(nameCount, lastTypes.length * 2);
+						lastValues = Arrays.copyOf(lastValues, capacity);
+						lastTypes = Arrays.copyOf(lastTypes, capacity);
+						lastNames = Arrays.copyOf(lastNames, capacity);
+						if (lastTexts != null) {
+								lastTexts = Arrays.copyOf(lastTexts, capacity);
+						}
+				}
+		}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A {@link MqttSender} which compresses payloads of at least {@code minSize} bytes with a
+ * {@link PayloadCodec} before handing them to the delegate. A compressed payload starts with a two
+ * byte header: a zero byte, which never starts a JSON payload, followed by the id of the codec.
+ * Smaller payloads, and payloads which do not shrink, are passed on unchanged. Consumers can use
+ * {@link #decode(byte[], int, int, PayloadBuffer, PayloadCodec...)} to handle both.
+ * <p>
+ * The codec and the compression buffer are reused for every payload.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class CompressingMqttSender implements ReconnectingMqttSender, BufferingMqttSender,
+		InstrumentedMqttSender {
+		private static final Logger LOGGER = LoggerFactory.getLogger(CompressingMqttSender.class);
+		static final int HEADER_MARKER = 0;
+		static final int HEADER_SIZE = 2;
+		private static final int DEFAULT_MIN_SIZE = 1024;
+
+		private final MqttSender delegate;
+		private final PayloadCodec codec;
+		private final PayloadBuffer compressed = new PayloadBuffer();
+		private int minSize = DEFAULT_MIN_SIZE;
+
+		public CompressingMqttSender(final MqttSender delegate, final PayloadCodec codec) {
+				if (codec.getId() < 1 || codec.getId() > 255) {
+						throw new IllegalArgumentException("Codec id must be between 1 and 255");
+				}
+				this.delegate = ShardedMqttSender.requireUnsharded(delegate);
+				this.codec = codec;
+		}
+
+		/**
+		 * Only compress payloads of at least {@code minSize} bytes. Defaults to 1024.
+		 *
+		 * @param minSize the minimum payload size in bytes
+		 * @return {@code this}
+		 */
+		public CompressingMqttSender withMinSize(final int minSize) {
+				this.minSize = minSize;
+				return this;
+		}
+
+		/**
+		 * Decodes a payload written by a {@link CompressingMqttSender}, uncompressed payloads are
+		 * copied as they are.
+		 *
+		 * @param payload the received payload
+		 * @param offset  the offset of the first byte
+		 * @param length  the number of bytes
+		 * @param out     the buffer for the decoded payload
+		 * @param codecs  the codecs the sender may have used
+		 * @throws IOException if the payload was compressed with an unknown codec or is corrupt
+		 */
+		public static void decode(final byte[] payload, final int offset, final int length,
+				final PayloadBuffer out, final PayloadCodec... codecs) throws IOException {
+				if (length < HEADER_SIZE || payload[offset] != HEADER_MARKER) {
+						out.write(payload, offset, length);
+						return;
+				}
+				final int id = payload[offset + 1] & 0xFF;
+				for (PayloadCodec codec : codecs) {
+						if (codec.getId() == id) {
+								codec.decode(payload, offset + HEADER_SIZE, length - HEADER_SIZE, out);
+								return;
+						}
+				}
+				throw new IOException("Unknown payload codec " + id);
+		}
+
+		public void connect() throws IllegalStateException, IOException, MqttException {
+				delegate.connect();
+		}
+
+		public void send(final String jsonPayload) {
+				final byte[] payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
+				try {
+						send(payload, 0, payload.length);
+				}
+				catch (MqttException e) {
+						LOGGER.warn("Unable to publish payload", e);
+				}
+		}
+
+		public synchronized void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				if (length < minSize) {
+						delegate.send(payload, offset, length);
+						return;
+				}
+				compressed.reset();
+				compressed.write(HEADER_MARKER);
+				compressed.write(codec.getId());
+				codec.encode(payload, offset, length, compressed);
+				if (compressed.length() >= length) {
+						delegate.send(payload, offset, length);
+				}
+				else {
+						delegate.send(compressed.array(), 0, compressed.length());
+				}
+		}
+
+		public void disconnect() throws MqttException {
+				delegate.disconnect();
+		}
+
+		public boolean isConnected() {
+				return delegate.isConnected();
+		}
+
+		/**
+		 * @return the background reconnects of the delegate, {@code 0} if it does not reconnect
+		 */
+		public int getReconnects() {
+				return delegate instanceof ReconnectingMqttSender
+						? ((ReconnectingMqttSender) delegate).getReconnects() : 0;
+		}
+
+		/**
+		 * @return {@code true} if the delegate buffers while disconnected
+		 */
+		public boolean buffersWhileDisconnected() {
+				return delegate instanceof BufferingMqttSender
+						&& ((BufferingMqttSender) delegate).buffersWhileDisconnected();
+		}
+
+		/**
+		 * @return the gauges of the delegate
+		 */
+		public Map<String, Gauge<?>> getGauges() {
+				return delegate instanceof InstrumentedMqttSender
+						? ((InstrumentedMqttSender) delegate).getGauges()
+						: Collections.<String, Gauge<?>>emptyMap();
+		}
+}
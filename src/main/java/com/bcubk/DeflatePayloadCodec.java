@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression from the JDK, either as zlib stream ({@link #deflate()}) or as gzip member
+ * ({@link #gzip()}). The {@link Deflater}, {@link Inflater} and {@link CRC32} instances are reused
+ * for every payload.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class DeflatePayloadCodec implements PayloadCodec {
+		public static final int DEFLATE_ID = 1;
+		public static final int GZIP_ID = 2;
+
+		private static final int GZIP_MAGIC = 0x8b1f;
+		private static final int GZIP_HEADER_SIZE = 10;
+		private static final int GZIP_TRAILER_SIZE = 8;
+
+		private final boolean gzip;
+		private final Deflater deflater;
+		private final Inflater inflater;
+		private final CRC32 crc = new CRC32();
+
+		public static DeflatePayloadCodec deflate() {
+				return new DeflatePayloadCodec(false, Deflater.DEFAULT_COMPRESSION);
+		}
+
+		public static DeflatePayloadCodec gzip() {
+				return new DeflatePayloadCodec(true, Deflater.DEFAULT_COMPRESSION);
+		}
+
+		/**
+		 * @param gzip  {@code true} for gzip members, {@code false} for zlib streams
+		 * @param level the compression level, see {@link Deflater#setLevel(int)}
+		 */
+		public DeflatePayloadCodec(final boolean gzip, final int level) {
+				this.gzip = gzip;
+				this.deflater = new Deflater(level, gzip);
+				this.inflater = new Inflater(gzip);
+		}
+
+		public int getId() {
+				return gzip ? GZIP_ID : DEFLATE_ID;
+		}
+
+		public void encode(final byte[] payload, final int offset, final int length,
+				final PayloadBuffer out) {
+				if (gzip) {
+						writeGzipHeader(out);
+				}
+				deflater.reset();
+				deflater.setInput(payload, offset, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+						final int free = out.ensureFree(Math.max(64, length / 4));
+						out.advance(deflater.deflate(out.array(), out.length(), free));
+				}
+				if (gzip) {
+						crc.reset();
+						crc.update(payload, offset, length);
+						writeIntLittleEndian((int) crc.getValue(), out);
+						writeIntLittleEndian(length, out);
+				}
+		}
+
+		public void decode(final byte[] payload, final int offset, final int length,
+				final PayloadBuffer out) throws IOException {
+				int start = offset;
+				int end = offset + length;
+				if (gzip) {
+						if (length < GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE
+								|| ((payload[offset] & 0xFF) | (payload[offset + 1] & 0xFF) << 8) != GZIP_MAGIC
+								|| payload[offset + 3] != 0) {
+								throw new IOException("Not a gzip member written by this codec");
+						}
+						start += GZIP_HEADER_SIZE;
+						end -= GZIP_TRAILER_SIZE;
+				}
+				final int begin = out.length();
+				inflater.reset();
+				inflater.setInput(payload, start, end - start);
+				try {
+						while (!inflater.finished()) {
+								final int free = out.ensureFree(Math.max(256, length * 2));
+								final int count = inflater.inflate(out.array(), out.length(), free);
+								if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+										throw new IOException("Truncated compressed payload");
+								}
+								out.advance(count);
+						}
+				}
+				catch (DataFormatException e) {
+						throw new IOException("Corrupt compressed payload", e);
+				}
+				if (gzip) {
+						crc.reset();
+						crc.update(out.array(), begin, out.length() - begin);
+						if ((int) crc.getValue() != readIntLittleEndian(payload, end)) {
+								throw new IOException("CRC mismatch in gzip payload");
+						}
+				}
+		}
+
+		private static void writeGzipHeader(final PayloadBuffer out) {
+				out.write(GZIP_MAGIC);
+				out.write(GZIP_MAGIC >> 8);
+				out.write(Deflater.DEFLATED);
+				// no flags, no modification time, no extra flags, unknown OS
+				for (int i = 0; i < 6; i++) {
+						out.write(0);
+				}
+				out.write(0xFF);
+		}
+
+		private static void writeIntLittleEndian(final int value, final PayloadBuffer out) {
+				out.write(value);
+				out.write(value >> 8);
+				out.write(value >> 16);
+				out.write(value >> 24);
+		}
+
+		private static int readIntLittleEndian(final byte[] bytes, final int offset) {
+				return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+						| (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+		}
+}
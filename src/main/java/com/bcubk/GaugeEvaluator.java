@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates gauges concurrently on an {@link Executor} within a time budget per report cycle.
+ * A gauge which throws or does not return within the budget keeps its last good value, which is
+ * reported as stale. A gauge still running from an earlier cycle is not evaluated again until it
+ * returns, so a blocked gauge occupies at most one thread.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class GaugeEvaluator {
+		private static final Logger LOGGER = LoggerFactory.getLogger(GaugeEvaluator.class);
+
+		private final Executor executor;
+		private final long budgetNanos;
+		private final Map<String, Evaluation> evaluations = new HashMap<>();
+		private long cycle;
+
+		GaugeEvaluator(final Executor executor, final long budget, final TimeUnit unit) {
+				this.executor = executor;
+				this.budgetNanos = unit.toNanos(budget);
+		}
+
+		/**
+		 * Evaluates the given gauges and waits until all of them returned or the budget is used up.
+		 * Gauges which are no longer passed in are forgotten.
+		 *
+		 * @param gauges the gauges of the current cycle
+		 */
+		void evaluate(final Map<String, Gauge> gauges) {
+				cycle++;
+				final CountDownLatch done = new CountDownLatch(gauges.size());
+				for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+						Evaluation evaluation = evaluations.get(entry.getKey());
+						if (evaluation == null || evaluation.gauge != entry.getValue()) {
+								evaluation = new Evaluation(entry.getKey(), entry.getValue());
+								evaluations.put(entry.getKey(), evaluation);
+						}
+						evaluation.seenCycle = cycle;
+						if (evaluation.running) {
+								done.countDown();
+								continue;
+						}
+						evaluation.running = true;
+						evaluation.cycle = cycle;
+						evaluation.done = done;
+						try {
+								executor.execute(evaluation);
+						}
+						catch (RejectedExecutionException e) {
+								evaluation.run();
+						}
+				}
+
+				try {
+						if (!done.await(budgetNanos, TimeUnit.NANOSECONDS)) {
+								LOGGER.debug("Gauge evaluation exceeded its budget of {} ms",
+										TimeUnit.NANOSECONDS.toMillis(budgetNanos));
+						}
+				}
+				catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+				}
+
+				final Iterator<Evaluation> iterator = evaluations.values().iterator();
+				while (iterator.hasNext()) {
+						if (iterator.next().seenCycle != cycle) {
+								iterator.remove();
+						}
+				}
+		}
+
+		/**
+		 * Returns the value of the gauge from the current cycle or its last good value.
+		 *
+		 * @param name the name of the gauge
+		 * @return the value, or {@code null} if the gauge never returned a value
+		 */
+		Object getValue(final String name) {
+				final Evaluation evaluation = evaluations.get(name);
+				return evaluation == null ? null : evaluation.value;
+		}
+
+		/**
+		 * @param name the name of the gauge
+		 * @return {@code true} if the gauge did not return a value in the current cycle
+		 */
+		boolean isStale(final String name) {
+				final Evaluation evaluation = evaluations.get(name);
+				return evaluation != null && evaluation.completedCycle != cycle;
+		}
+
+		private static final class Evaluation implements Runnable {
+				private final String name;
+				private final Gauge gauge;
+				private long seenCycle;
+				private volatile boolean running;
+				private volatile long cycle;
+				private volatile CountDownLatch done;
+				private volatile Object value;
+				private volatile long completedCycle;
+				private boolean failing;
+
+				private Evaluation(final String name, final Gauge gauge) {
+						this.name = name;
+						this.gauge = gauge;
+				}
+
+				@Override
+				public void run() {
+						final long cycle = this.cycle;
+						final CountDownLatch done = this.done;
+						try {
+								this.value = gauge.getValue();
+								this.completedCycle = cycle;
+								if (failing) {
+										failing = false;
+										LOGGER.info("Gauge {} returns values again", name);
+								}
+						}
+						catch (RuntimeException e) {
+								if (!failing) {
+										failing = true;
+										LOGGER.warn("Gauge {} failed, reporting its last value as stale", name, e);
+								}
+						}
+						finally {
+								running = false;
+								done.countDown();
+						}
+				}
+		}
+}
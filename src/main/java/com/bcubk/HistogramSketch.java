@@ -0,0 +1,339 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution with log-sized buckets: a value {@code v} is counted in
+ * bucket {@code ceil(log(|v|) / log(gamma))} with {@code gamma = (1 + a) / (1 - a)}, so every
+ * quantile is known within the relative accuracy {@code a}. Sketches of the same accuracy can
+ * be merged, e.g. the sketches of one histogram of all instances, and any quantile can be read
+ * from the merged sketch.
+ * <p>
+ * Positive and negative values are counted in two stores of at most {@code maxBuckets}
+ * buckets each, the buckets of the smallest magnitudes are collapsed when a store would grow
+ * beyond, which bounds the size of the sketch. The text form only lists the non-empty buckets:
+ * <pre>
+ * sketch   = accuracy ";" zeros ";" buckets ";" buckets
+ * buckets  = [ index ":" count *( "," delta ":" count ) ]
+ * </pre>
+ * The first list holds the positive values, the second one the negative values by magnitude.
+ * The index of the first bucket is written as is, all others as the delta to the previous one.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public final class HistogramSketch {
+		static final double DEFAULT_RELATIVE_ACCURACY = 0.01d;
+		static final int DEFAULT_MAX_BUCKETS = 256;
+
+		private final double relativeAccuracy;
+		private final double logGamma;
+		private final double gamma;
+		private final Store positive;
+		private final Store negative;
+		private long zeros;
+
+		public HistogramSketch() {
+				this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+		}
+
+		/**
+		 * @param relativeAccuracy the relative accuracy of the quantiles, between 0 and 1
+		 * @param maxBuckets       the maximum number of buckets per sign
+		 */
+		public HistogramSketch(final double relativeAccuracy, final int maxBuckets) {
+				if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+						throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1");
+				}
+				if (maxBuckets < 1) {
+						throw new IllegalArgumentException("maxBuckets must be positive");
+				}
+				this.relativeAccuracy = relativeAccuracy;
+				this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+				this.logGamma = Math.log(gamma);
+				this.positive = new Store(maxBuckets);
+				this.negative = new Store(maxBuckets);
+		}
+
+		public double getRelativeAccuracy() {
+				return relativeAccuracy;
+		}
+
+		/**
+		 * @return the number of values counted
+		 */
+		public long getCount() {
+				return zeros + positive.count + negative.count;
+		}
+
+		public void clear() {
+				zeros = 0;
+				positive.clear();
+				negative.clear();
+		}
+
+		public void add(final double value) {
+				add(value, 1L);
+		}
+
+		/**
+		 * Counts the given value {@code count} times. {@code NaN} is ignored.
+		 *
+		 * @param value the value
+		 * @param count how often to count it
+		 */
+		public void add(final double value, final long count) {
+				if (value > 0) {
+						positive.add(index(value), count);
+				}
+				else if (value < 0) {
+						negative.add(index(-value), count);
+				}
+				else if (value == 0) {
+						zeros += count;
+				}
+		}
+
+		/**
+		 * Adds all values counted by the other sketch.
+		 *
+		 * @param other a sketch of the same relative accuracy
+		 */
+		public void merge(final HistogramSketch other) {
+				if (other.relativeAccuracy != relativeAccuracy) {
+						throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+				}
+				zeros += other.zeros;
+				positive.merge(other.positive);
+				negative.merge(other.negative);
+		}
+
+		/**
+		 * @param quantile the quantile, between 0 and 1
+		 * @return the value at the quantile, within the relative accuracy, or {@code NaN} if the
+		 * sketch is empty
+		 */
+		public double getQuantile(final double quantile) {
+				if (!(quantile >= 0 && quantile <= 1)) {
+						throw new IllegalArgumentException("quantile must be between 0 and 1");
+				}
+				final long count = getCount();
+				if (count == 0) {
+						return Double.NaN;
+				}
+				long rank = (long) (quantile * (count - 1));
+				if (rank < negative.count) {
+						// the negative values in ascending order are the magnitudes in descending order
+						return -value(negative.indexOfRank(negative.count - 1 - rank));
+				}
+				rank -= negative.count;
+				if (rank < zeros) {
+						return 0d;
+				}
+				return value(positive.indexOfRank(rank - zeros));
+		}
+
+		/**
+		 * Writes the text form of the sketch.
+		 *
+		 * @param out the builder to append to
+		 */
+		public void writeTo(final StringBuilder out) {
+				out.append(relativeAccuracy).append(';').append(zeros).append(';');
+				positive.writeTo(out);
+				out.append(';');
+				negative.writeTo(out);
+		}
+
+		@Override
+		public String toString() {
+				final StringBuilder out = new StringBuilder(64);
+				writeTo(out);
+				return out.toString();
+		}
+
+		/**
+		 * Reads the text form of a sketch, e.g. to merge the published sketches.
+		 *
+		 * @param text       the text form written by {@link #writeTo(StringBuilder)}
+		 * @param maxBuckets the maximum number of buckets per sign of the parsed sketch
+		 * @return the sketch
+		 * @throws IllegalArgumentException if the text is malformed
+		 */
+		public static HistogramSketch parse(final String text, final int maxBuckets) {
+				final String[] fields = text.split(";", -1);
+				if (fields.length != 4) {
+						throw new IllegalArgumentException("Malformed sketch: " + text);
+				}
+				try {
+						final HistogramSketch sketch = new HistogramSketch(Double.parseDouble(fields[0]),
+								maxBuckets);
+						sketch.zeros = Long.parseLong(fields[1]);
+						sketch.positive.parse(fields[2]);
+						sketch.negative.parse(fields[3]);
+						return sketch;
+				}
+				catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed sketch: " + text, e);
+				}
+		}
+
+		private int index(final double magnitude) {
+				final double index = Math.ceil(Math.log(magnitude) / logGamma);
+				return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, index));
+		}
+
+		private double value(final int index) {
+				// the middle of the bucket in relative terms
+				return 2 * Math.pow(gamma, index) / (gamma + 1);
+		}
+
+		/**
+		 * The counts of consecutive buckets, starting at bucket {@code offset}.
+		 */
+		private static final class Store {
+				private final int maxBuckets;
+				private long[] counts = new long[16];
+				private int offset;
+				private int min;
+				private int max = -1;
+				private long count;
+
+				private Store(final int maxBuckets) {
+						this.maxBuckets = maxBuckets;
+				}
+
+				private void clear() {
+						if (count > 0) {
+								Arrays.fill(counts, min - offset, max - offset + 1, 0L);
+						}
+						count = 0;
+						max = min - 1;
+				}
+
+				private void add(final int index, final long n) {
+						if (n <= 0) {
+								return;
+						}
+						int target = index;
+						if (count == 0) {
+								offset = index - counts.length / 2;
+								min = index;
+								max = index;
+						}
+						else if (index < min) {
+								// the smallest magnitudes are collapsed into the lowest kept bucket
+								target = Math.max(index, max - maxBuckets + 1);
+								ensureRange(target, max);
+								min = target;
+						}
+						else if (index > max) {
+								if (index - min >= maxBuckets) {
+										collapseBelow(index - maxBuckets + 1);
+								}
+								ensureRange(min, index);
+								max = index;
+						}
+						counts[target - offset] += n;
+						count += n;
+				}
+
+				private void collapseBelow(final int newMin) {
+						if (newMin <= min) {
+								return;
+						}
+						ensureRange(newMin, Math.max(max, newMin));
+						long collapsed = 0;
+						for (int i = min; i < newMin && i <= max; i++) {
+								collapsed += counts[i - offset];
+								counts[i - offset] = 0;
+						}
+						counts[newMin - offset] += collapsed;
+						min = newMin;
+						max = Math.max(max, newMin);
+				}
+
+				private void ensureRange(final int low, final int high) {
+						final int from = count > 0 ? Math.min(low, min) : low;
+						final int to = count > 0 ? Math.max(high, max) : high;
+						if (from >= offset && to < offset + counts.length) {
+								return;
+						}
+						final int span = to - from + 1;
+						final long[] grown = new long[Math.max(span * 2, counts.length)];
+						final int newOffset = from - (grown.length - span) / 2;
+						if (count > 0) {
+								System.arraycopy(counts, min - offset, grown, min - newOffset, max - min + 1);
+						}
+						counts = grown;
+						offset = newOffset;
+				}
+
+				private void merge(final Store other) {
+						for (int i = other.max; i >= other.min && other.count > 0; i--) {
+								add(i, other.counts[i - other.offset]);
+						}
+				}
+
+				private int indexOfRank(final long rank) {
+						long seen = 0;
+						for (int i = min; i <= max; i++) {
+								seen += counts[i - offset];
+								if (seen > rank) {
+										return i;
+								}
+						}
+						return max;
+				}
+
+				private void writeTo(final StringBuilder out) {
+						boolean first = true;
+						int previous = 0;
+						for (int i = min; i <= max && count > 0; i++) {
+								final long n = counts[i - offset];
+								if (n == 0) {
+										continue;
+								}
+								if (!first) {
+										out.append(',');
+								}
+								out.append(first ? i : i - previous).append(':').append(n);
+								first = false;
+								previous = i;
+						}
+				}
+
+				private void parse(final String buckets) {
+						if (buckets.isEmpty()) {
+								return;
+						}
+						int index = 0;
+						boolean first = true;
+						for (String bucket : buckets.split(",")) {
+								final int separator = bucket.indexOf(':');
+								if (separator < 0) {
+										throw new NumberFormatException("Malformed bucket " + bucket);
+								}
+								final int delta = Integer.parseInt(bucket.substring(0, separator));
+								index = first ? delta : index + delta;
+								first = false;
+								add(index, Long.parseLong(bucket.substring(separator + 1)));
+						}
+				}
+		}
+}
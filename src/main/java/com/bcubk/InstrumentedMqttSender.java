@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+
+import java.util.Map;
+
+/**
+ * A {@link MqttSender} which provides gauges of its state, registered by
+ * {@link ReporterMetrics} under the name of the reporter. Decorators add the gauges of their
+ * delegate.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface InstrumentedMqttSender extends MqttSender {
+		/**
+		 * @return the gauges by name, e.g. {@code reconnects} or {@code queued}
+		 */
+		Map<String, Gauge<?>> getGauges();
+}
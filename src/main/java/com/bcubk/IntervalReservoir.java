@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Reservoir} which counts the values of one interval and starts over with every
+ * {@link #getSnapshot()}, so each report of a {@link MqttReporter} describes exactly the values
+ * recorded since the previous one:
+ * <pre>
+ * registry.register("latency", new Timer(new IntervalReservoir()));
+ * </pre>
+ * Values are counted in log-linear buckets of {@code 2^(precision - 1)} buckets per power of two,
+ * values below {@code 2^precision} are counted exactly. The default precision of 6 bits keeps
+ * all values within 2% and takes about 30 KB per reservoir. Negative values are counted as zero.
+ * <p>
+ * Recording is wait-free: a writer increments a counter of the active one of two bucket arrays
+ * and never waits. {@link #getSnapshot()} swaps the arrays and waits for the writers still
+ * working on the previous one to finish, a writer racing the swap is counted in the next
+ * interval. Since every snapshot ends the interval, the reservoir should only be read by one
+ * reporter.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class IntervalReservoir implements Reservoir {
+		static final int DEFAULT_PRECISION = 6;
+
+		private final int precision;
+		private final int exactValues;
+		private final int bucketsPerPower;
+
+		// the writer/reader phases: writers enter by incrementing start and leave by incrementing
+		// the end of the phase they entered in, the sign of start tells the phase
+		private final AtomicLong startEpoch = new AtomicLong();
+		private final AtomicLong evenEndEpoch = new AtomicLong();
+		private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+		private volatile AtomicLongArray active;
+		private AtomicLongArray inactive;
+
+		public IntervalReservoir() {
+				this(DEFAULT_PRECISION);
+		}
+
+		/**
+		 * @param precision the number of bits of a value which are kept, between 1 and 12
+		 */
+		public IntervalReservoir(final int precision) {
+				if (precision < 1 || precision > 12) {
+						throw new IllegalArgumentException("precision must be between 1 and 12");
+				}
+				this.precision = precision;
+				this.exactValues = 1 << precision;
+				this.bucketsPerPower = exactValues / 2;
+				final int buckets = exactValues + (63 - precision) * bucketsPerPower;
+				this.active = new AtomicLongArray(buckets);
+				this.inactive = new AtomicLongArray(buckets);
+		}
+
+		/**
+		 * @return the number of values recorded in the current interval so far
+		 */
+		public int size() {
+				final AtomicLongArray counts = active;
+				long size = 0;
+				for (int i = 0; i < counts.length(); i++) {
+						size += counts.get(i);
+				}
+				return (int) Math.min(Integer.MAX_VALUE, size);
+		}
+
+		public void update(final long value) {
+				final long epoch = startEpoch.getAndIncrement();
+				try {
+						active.incrementAndGet(bucketOf(value));
+				}
+				finally {
+						(epoch < 0 ? oddEndEpoch : evenEndEpoch).getAndIncrement();
+				}
+		}
+
+		/**
+		 * Ends the current interval and returns the snapshot of its values.
+		 *
+		 * @return the snapshot of the values recorded since the previous snapshot
+		 */
+		public synchronized Snapshot getSnapshot() {
+				final AtomicLongArray next = inactive;
+				for (int i = 0; i < next.length(); i++) {
+						next.lazySet(i, 0L);
+				}
+				final AtomicLongArray recorded = active;
+				active = next;
+				flipPhase();
+				inactive = recorded;
+
+				final long[] counts = new long[recorded.length()];
+				for (int i = 0; i < counts.length; i++) {
+						counts[i] = recorded.get(i);
+				}
+				return new IntervalSnapshot(this, counts);
+		}
+
+		/**
+		 * Waits until all writers which entered before the flip, and so possibly still write to
+		 * the previous bucket array, have left.
+		 */
+		private void flipPhase() {
+				final boolean nextPhaseIsEven = startEpoch.get() < 0;
+				final long initialStartValue = nextPhaseIsEven ? 0L : Long.MIN_VALUE;
+				(nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).lazySet(initialStartValue);
+				final long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+				final AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+				while (previousEndEpoch.get() != startValueAtFlip) {
+						Thread.yield();
+				}
+		}
+
+		int bucketOf(final long value) {
+				if (value < exactValues) {
+						return value <= 0 ? 0 : (int) value;
+				}
+				final int shift = 63 - Long.numberOfLeadingZeros(value) - (precision - 1);
+				final int mantissa = (int) (value >>> shift);
+				return exactValues + (shift - 1) * bucketsPerPower + mantissa - bucketsPerPower;
+		}
+
+		/**
+		 * @return the middle of the given bucket
+		 */
+		double valueOf(final int bucket) {
+				if (bucket < exactValues) {
+						return bucket;
+				}
+				final int shift = (bucket - exactValues) / bucketsPerPower + 1;
+				final long mantissa = bucketsPerPower + (bucket - exactValues) % bucketsPerPower;
+				return (mantissa << shift) + ((1L << shift) - 1) / 2d;
+		}
+
+		/**
+		 * The values of one interval as counts per bucket.
+		 */
+		static final class IntervalSnapshot extends Snapshot {
+				private final IntervalReservoir reservoir;
+				private final long[] counts;
+				private final long count;
+				private final int lowest;
+				private final int highest;
+				private final double mean;
+				private final double stdDev;
+
+				private IntervalSnapshot(final IntervalReservoir reservoir, final long[] counts) {
+						this.reservoir = reservoir;
+						this.counts = counts;
+						long count = 0;
+						int lowest = -1;
+						int highest = -1;
+						double sum = 0;
+						for (int i = 0; i < counts.length; i++) {
+								if (counts[i] > 0) {
+										if (lowest < 0) {
+												lowest = i;
+										}
+										highest = i;
+										count += counts[i];
+										sum += counts[i] * reservoir.valueOf(i);
+								}
+						}
+						this.count = count;
+						this.lowest = lowest;
+						this.highest = highest;
+						this.mean = count > 0 ? sum / count : 0d;
+						double squares = 0;
+						for (int i = lowest; i <= highest && count > 1; i++) {
+								final double delta = reservoir.valueOf(i) - mean;
+								squares += counts[i] * delta * delta;
+						}
+						this.stdDev = count > 1 ? Math.sqrt(squares / (count - 1)) : 0d;
+				}
+
+				@Override
+				public double getValue(final double quantile) {
+						if (quantile < 0 || quantile > 1 || Double.isNaN(quantile)) {
+								throw new IllegalArgumentException(quantile + " is not in [0..1]");
+						}
+						if (count == 0) {
+								return 0d;
+						}
+						final long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+						long seen = 0;
+						for (int i = lowest; i <= highest; i++) {
+								seen += counts[i];
+								if (seen >= rank) {
+										return reservoir.valueOf(i);
+								}
+						}
+						return reservoir.valueOf(highest);
+				}
+
+				/**
+				 * Returns the values in ascending order, one per recorded value, each one the middle
+				 * of its bucket.
+				 */
+				@Override
+				public long[] getValues() {
+						final long[] values = new long[size()];
+						int position = 0;
+						for (int i = lowest; i <= highest && position < values.length; i++) {
+								final long value = Math.round(reservoir.valueOf(i));
+								for (long n = counts[i]; n > 0 && position < values.length; n--) {
+										values[position++] = value;
+								}
+						}
+						return values;
+				}
+
+				@Override
+				public int size() {
+						return (int) Math.min(Integer.MAX_VALUE - 8, count);
+				}
+
+				@Override
+				public long getMax() {
+						return count > 0 ? Math.round(reservoir.valueOf(highest)) : 0L;
+				}
+
+				@Override
+				public double getMean() {
+						return mean;
+				}
+
+				@Override
+				public long getMin() {
+						return count > 0 ? Math.round(reservoir.valueOf(lowest)) : 0L;
+				}
+
+				@Override
+				public double getStdDev() {
+						return stdDev;
+				}
+
+				@Override
+				public void dump(final OutputStream output) {
+						final PrintWriter out = new PrintWriter(
+								new OutputStreamWriter(output, StandardCharsets.UTF_8));
+						try {
+								for (int i = lowest; i <= highest && count > 0; i++) {
+										final long value = Math.round(reservoir.valueOf(i));
+										for (long n = counts[i]; n > 0; n--) {
+												out.printf("%d%n", value);
+										}
+								}
+						}
+						finally {
+								out.close();
+						}
+				}
+
+				/**
+				 * Adds the counts of the buckets to the sketch without expanding them to values.
+				 *
+				 * @param sketch the sketch to add to
+				 * @param scale  the factor to scale the values with
+				 */
+				void addTo(final HistogramSketch sketch, final double scale) {
+						for (int i = lowest; i <= highest && count > 0; i++) {
+								sketch.add(reservoir.valueOf(i) * scale, counts[i]);
+						}
+				}
+		}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.util.Arrays;
+
+/**
+ * Writes the discrete time values of a {@link SeriesSet} as UTF-8 JSON into a
+ * {@link PayloadBuffer}. The output has the same shape as the former Gson serialized
+ * {@link SeriesSet}:
+ * <pre>
+ * {"discreteTimeValues":[{"timeStamp":1482710400,"value":"1.00","name":"prefix.name.count"}]}
+ * </pre>
+ * A chunk of a report carries the total number of chunks, padded with spaces so it can be set
+ * after all chunks were written, the cycle id and its sequence number:
+ * <pre>
+ * {"chunks":3         ,"cycleId":7,"chunk":0,"discreteTimeValues":[...]}
+ * </pre>
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class JsonPayloadWriter implements PayloadEncoder {
+		private static final String CHUNKS = "{\"chunks\":";
+		private static final int CHUNKS_WIDTH = 10;
+		private static final int END_LENGTH = 2;
+
+		private final NumberWriter numberWriter;
+		private PayloadBuffer out;
+		private boolean empty;
+		private byte[][] escapedNames = new byte[0][];
+		private byte[][] escapedFor = new byte[0][];
+
+		public JsonPayloadWriter() {
+				this(NumberWriter.fixed(2));
+		}
+
+		public JsonPayloadWriter(final NumberWriter numberWriter) {
+				this.numberWriter = numberWriter;
+		}
+
+		/**
+		 * Writes the whole set. The escaped names are cached by name id, so names are not
+		 * escaped or encoded again as long as they stay in the name table of the set.
+		 *
+		 * @param seriesSet the values to write
+		 * @param out the buffer to write to
+		 */
+		public void encode(final SeriesSet seriesSet, final PayloadBuffer out) {
+				begin(out);
+				for (int i = 0; i < seriesSet.size(); i++) {
+						writeValue(seriesSet, i);
+				}
+				end();
+		}
+
+		public int encodeChunk(final SeriesSet seriesSet, final int from, final int maxLength,
+				final long cycleId, final int sequence, final PayloadBuffer out) {
+				out.writeUtf8(CHUNKS);
+				for (int i = 0; i < CHUNKS_WIDTH; i++) {
+						out.write(' ');
+				}
+				out.writeUtf8(",\"cycleId\":");
+				out.writeLong(cycleId);
+				out.writeUtf8(",\"chunk\":");
+				out.writeLong(sequence);
+				out.writeUtf8(",\"discreteTimeValues\":[");
+				this.out = out;
+				this.empty = true;
+
+				int next = from;
+				while (next < seriesSet.size()) {
+						final int mark = out.length();
+						writeValue(seriesSet, next);
+						if (out.length() + END_LENGTH > maxLength && next > from) {
+								out.truncate(mark);
+								break;
+						}
+						next++;
+				}
+				end();
+				return next;
+		}
+
+		public void setChunkCount(final PayloadBuffer chunk, final int chunks) {
+				final byte[] bytes = chunk.array();
+				final String count = Integer.toString(chunks);
+				for (int i = 0; i < count.length(); i++) {
+						bytes[CHUNKS.length() + i] = (byte) count.charAt(i);
+				}
+		}
+
+		private void begin(final PayloadBuffer out) {
+				this.out = out;
+				this.empty = true;
+				out.writeUtf8("{\"discreteTimeValues\":[");
+		}
+
+		private void end() {
+				out.writeUtf8("]}");
+				out = null;
+		}
+
+		private void beginValue(final long timestamp) {
+				if (!empty) {
+						out.write(',');
+				}
+				empty = false;
+				out.writeUtf8("{\"timeStamp\":");
+				out.writeLong(timestamp);
+				out.writeUtf8(",\"value\":\"");
+		}
+
+		private void writeValue(final SeriesSet seriesSet, final int index) {
+				beginValue(seriesSet.getTimeStamp(index));
+				switch (seriesSet.getValueType(index)) {
+						case LONG:
+								out.writeLong(seriesSet.getLong(index));
+								break;
+						case DOUBLE:
+								numberWriter.write(seriesSet.getDouble(index), out);
+								break;
+						default:
+								writeEscaped(seriesSet.getText(index));
+				}
+				out.writeUtf8("\",\"name\":\"");
+				final byte[] name = escapedName(seriesSet, seriesSet.getNameId(index));
+				out.write(name, 0, name.length);
+				out.writeUtf8("\"}");
+		}
+
+		private byte[] escapedName(final SeriesSet seriesSet, final int nameId) {
+				final byte[] utf8 = seriesSet.getNameUtf8(nameId);
+				if (nameId >= escapedNames.length) {
+						final int capacity = Math.max(seriesSet.getNameCount(), escapedNames.length * 2);
+						escapedNames = Arrays.copyOf(escapedNames, capacity);
+						escapedFor = Arrays.copyOf(escapedFor, capacity);
+				}
+				// the cached UTF-8 bytes of a name change identity when its id is reused
+				if (escapedFor[nameId] != utf8) {
+						escapedNames[nameId] = needsEscaping(utf8) ? escape(seriesSet.getName(nameId)) : utf8;
+						escapedFor[nameId] = utf8;
+				}
+				return escapedNames[nameId];
+		}
+
+		private static boolean needsEscaping(final byte[] utf8) {
+				for (byte b : utf8) {
+						if ((b >= 0 && b < 0x20) || b == '"' || b == '\\') {
+								return true;
+						}
+				}
+				return false;
+		}
+
+		private byte[] escape(final String name) {
+				final PayloadBuffer target = this.out;
+				this.out = new PayloadBuffer(name.length() + 16);
+				writeEscaped(name);
+				final byte[] escaped = this.out.toByteArray();
+				this.out = target;
+				return escaped;
+		}
+
+		private void writeEscaped(final String value) {
+				if (value == null) {
+						return;
+				}
+				final int count = value.length();
+				int start = 0;
+				for (int i = 0; i < count; i++) {
+						final char c = value.charAt(i);
+						if (c >= 0x20 && c != '"' && c != '\\') {
+								continue;
+						}
+						if (start < i) {
+								out.writeUtf8(value.subSequence(start, i));
+						}
+						start = i + 1;
+						out.write('\\');
+						switch (c) {
+								case '"':
+								case '\\':
+										out.write(c);
+										break;
+								case '\n':
+										out.write('n');
+										break;
+								case '\r':
+										out.write('r');
+										break;
+								case '\t':
+										out.write('t');
+										break;
+								default:
+										out.writeUtf8("u00");
+										out.write(Character.forDigit(c >> 4, 16));
+										out.write(Character.forDigit(c & 0xF, 16));
+						}
+				}
+				if (start == 0) {
+						out.writeUtf8(value);
+				}
+				else if (start < count) {
+						out.writeUtf8(value.subSequence(start, count));
+				}
+		}
+}
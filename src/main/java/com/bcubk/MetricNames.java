@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps a metric name and a {@link Statistic} to the id of the prefixed name in a
+ * {@link SeriesSet}. The prefixed name is only built the first time, later cycles look up the id
+ * by the metric name, and the encoders use the cached UTF-8 bytes of the name.
+ * <p>
+ * {@link #sweep()} ends a report cycle: metrics which were not reported in the cycle are evicted
+ * and their names are released from the {@link SeriesSet}, all others are kept. Metrics whose
+ * prefixed names collide, e.g. the counter {@code requests} and the gauge
+ * {@code requests.count}, share an id, which the set keeps until both were evicted. The cache is
+ * unbounded unless a {@code maxMetrics} is given. Beyond that cap the oldest metrics are evicted
+ * even if they were reported, so their names are built again in every cycle as new strings,
+ * which components comparing names by identity (e.g. {@link ChangeDetector}) see as new names.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class MetricNames {
+		static final int UNBOUNDED = 0;
+		private static final int STATISTICS = Statistic.values().length;
+
+		private final String prefix;
+		private final SeriesSet seriesSet;
+		private final int maxMetrics;
+		private final Map<String, Entry> entries = new LinkedHashMap<>();
+		private int cycle;
+
+		MetricNames(final String prefix, final SeriesSet seriesSet) {
+				this(prefix, seriesSet, UNBOUNDED);
+		}
+
+		/**
+		 * @param maxMetrics the maximum number of cached metrics, {@link #UNBOUNDED} for none
+		 */
+		MetricNames(final String prefix, final SeriesSet seriesSet, final int maxMetrics) {
+				if (maxMetrics < 0) {
+						throw new IllegalArgumentException("maxMetrics must not be negative");
+				}
+				this.prefix = prefix;
+				this.seriesSet = seriesSet;
+				this.maxMetrics = maxMetrics;
+		}
+
+		int id(final String name, final Statistic statistic) {
+				Entry entry = entries.get(name);
+				if (entry == null) {
+						entry = new Entry();
+						entries.put(name, entry);
+				}
+				entry.cycle = cycle;
+				int id = entry.ids[statistic.ordinal()];
+				if (id < 0) {
+						id = seriesSet.nameId(MetricRegistry.name(prefix, name, statistic.getSuffix()));
+						entry.ids[statistic.ordinal()] = id;
+				}
+				return id;
+		}
+
+		/**
+		 * Ends the current cycle and evicts all metrics which were not reported in it. Must only
+		 * be called once the values of the cycle are no longer needed, since the ids of evicted
+		 * names are reused.
+		 *
+		 * @return the number of evicted metrics
+		 */
+		int sweep() {
+				final int size = entries.size();
+				Iterator<Entry> iterator = entries.values().iterator();
+				while (iterator.hasNext()) {
+						final Entry entry = iterator.next();
+						if (entry.cycle != cycle) {
+								iterator.remove();
+								entry.release(seriesSet);
+						}
+				}
+				iterator = entries.values().iterator();
+				while (maxMetrics != UNBOUNDED && entries.size() > maxMetrics) {
+						iterator.next().release(seriesSet);
+						iterator.remove();
+				}
+				cycle++;
+				return size - entries.size();
+		}
+
+		int size() {
+				return entries.size();
+		}
+
+		private static final class Entry {
+				private final int[] ids = new int[STATISTICS];
+				private int cycle;
+
+				private Entry() {
+						Arrays.fill(ids, -1);
+				}
+
+				private void release(final SeriesSet seriesSet) {
+						for (int id : ids) {
+								if (id >= 0) {
+										seriesSet.releaseName(id);
+								}
+						}
+				}
+		}
+}
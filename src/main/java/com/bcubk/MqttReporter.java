@@ -24,16 +24,41 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A reporter which publishes all values of a metric registry via MQTT. Every report is collected
+ * into a reused columnar {@link SeriesSet}, encoded by a {@link PayloadEncoder} into a reused
+ * {@link PayloadBuffer} and published as a single message, or as chunks of a maximum size, see
+ * {@link Builder#withMaxPayloadSize(int)}.
+ *
  * @author Baris Cubukcuoglu
  */
 public class MqttReporter extends ScheduledReporter {
 		private static final String REPORTER_TYPE = "mqtt-reporter";
+		private static final int MIN_PAYLOAD_SIZE = 128;
+		private static final int FULL_NAME_ANNOUNCEMENT_INTERVAL = 100;
+
+		/**
+		 * Returns a new {@link Builder} for {@link MqttReporter}.
+		 *
+		 * @param registry the registry to report
+		 * @return a {@link Builder} instance for a {@link MqttReporter}
+		 */
+		public static Builder forRegistry(final MetricRegistry registry) {
+				return new Builder(registry);
+		}
 
 		/**
 		 * A builder for {@link MqttReporter} instances. Defaults to not using a prefix, using the
@@ -47,6 +72,30 @@ public class MqttReporter extends ScheduledReporter {
 				private TimeUnit rateUnit;
 				private TimeUnit durationUnit;
 				private MetricFilter filter;
+				private NumberWriter numberWriter;
+				private PayloadEncoder payloadEncoder;
+				private int maxMetricNames;
+				private int maxPayloadSize;
+				private int aggregatedReports;
+				private boolean alignToWallClock;
+				private final List<PriorityLane> lanes = new ArrayList<>();
+				private int cardinalityLimit;
+				private int cardinalityLimitPerPrefix;
+				private int prefixDepth;
+				private double sketchAccuracy;
+				private int sketchBuckets;
+				private MqttSender nameSender;
+				private String jitterKey;
+				private long maxJitterMillis;
+				private ReporterMetrics reporterMetrics;
+				private boolean reportReporterMetrics;
+				private Executor snapshotExecutor;
+				private Executor gaugeExecutor;
+				private long gaugeBudget;
+				private TimeUnit gaugeBudgetUnit;
+				private int snapshotParallelism;
+				private int keyframeInterval;
+				private double changeEpsilon;
 
 				private Builder(final MetricRegistry metricRegistry) {
 						this.metricRegistry = metricRegistry;
@@ -55,6 +104,8 @@ public class MqttReporter extends ScheduledReporter {
 						this.rateUnit = TimeUnit.SECONDS;
 						this.durationUnit = TimeUnit.MILLISECONDS;
 						this.filter = MetricFilter.ALL;
+						this.numberWriter = NumberWriter.fixed(2);
+						this.maxMetricNames = MetricNames.UNBOUNDED;
 				}
 
 				/**
@@ -112,9 +163,351 @@ public class MqttReporter extends ScheduledReporter {
 						return this;
 				}
 
+				/**
+				 * Write numbers with the given {@link NumberWriter}. Defaults to two fraction digits.
+				 *
+				 * @param numberWriter a {@link NumberWriter}, e.g. {@link NumberWriter#shortest()}
+				 * @return {@code this}
+				 */
+				public Builder formatNumbersWith(final NumberWriter numberWriter) {
+						this.numberWriter = numberWriter;
+						return this;
+				}
+
+				/**
+				 * Encode the payload with the given {@link PayloadEncoder}. Defaults to JSON written
+				 * by a {@link JsonPayloadWriter} with the configured {@link NumberWriter}.
+				 *
+				 * @param payloadEncoder a {@link PayloadEncoder}, e.g. a {@link BinaryPayloadEncoder}
+				 * @return {@code this}
+				 */
+				public Builder encodeWith(final PayloadEncoder payloadEncoder) {
+						this.payloadEncoder = payloadEncoder;
+						return this;
+				}
+
+				/**
+				 * Publish the metrics matching the given lane separately from the others. Lanes are
+				 * published in the order they were added, a metric belongs to the first lane whose
+				 * filter matches it and metrics matching none to the last lane. With an
+				 * {@link AsyncMqttSender} every lane has its own queue, quality of service and rate
+				 * limit, and the lanes added first are drained first when the broker is slow. Other
+				 * senders only publish the lanes one after the other. Values derived by
+				 * {@link #aggregateOver(int)} belong to the lane of their metric.
+				 *
+				 * @param lane a {@link PriorityLane}
+				 * @return {@code this}
+				 */
+				public Builder withLane(final PriorityLane lane) {
+						this.lanes.add(lane);
+						return this;
+				}
+
+				/**
+				 * Report at most {@code maxMetrics} metrics, see
+				 * {@link #limitCardinality(int, int, int)}.
+				 *
+				 * @param maxMetrics the maximum number of reported metrics
+				 * @return {@code this}
+				 */
+				public Builder limitCardinality(final int maxMetrics) {
+						return limitCardinality(maxMetrics, maxMetrics, 1);
+				}
+
+				/**
+				 * Report at most {@code maxMetrics} metrics, and at most {@code maxMetricsPerPrefix} of
+				 * the metrics whose names share the first {@code prefixDepth} dot separated parts. This
+				 * protects the reporter and the broker from a registry flooded with metrics, e.g. by
+				 * names containing user ids. While a limit is exceeded the metrics whose counts grew
+				 * most since the previous report are kept. The dropped metrics of a prefix are
+				 * published as {@code <prefix>.overflow.series}, the number of dropped metrics, and
+				 * {@code <prefix>.overflow.count}, the growth of their counts; prefixes without any
+				 * reported metric share the plain {@code overflow} bucket.
+				 *
+				 * @param maxMetrics          the maximum number of reported metrics
+				 * @param maxMetricsPerPrefix the maximum number of reported metrics per prefix
+				 * @param prefixDepth         the number of name parts which make up the prefix
+				 * @return {@code this}
+				 */
+				public Builder limitCardinality(final int maxMetrics, final int maxMetricsPerPrefix,
+						final int prefixDepth) {
+						if (maxMetrics < 1 || maxMetricsPerPrefix < 1) {
+								throw new IllegalArgumentException("limits must be positive");
+						}
+						if (prefixDepth < 1) {
+								throw new IllegalArgumentException("prefixDepth must be positive");
+						}
+						this.cardinalityLimit = maxMetrics;
+						this.cardinalityLimitPerPrefix = maxMetricsPerPrefix;
+						this.prefixDepth = prefixDepth;
+						return this;
+				}
+
+				/**
+				 * Publish a {@link HistogramSketch} of every histogram and timer instead of the
+				 * standard deviation and the percentiles, with a relative accuracy of 1% and up to 256
+				 * buckets per sign.
+				 *
+				 * @return {@code this}
+				 * @see #exportSketches(double, int)
+				 */
+				public Builder exportSketches() {
+						return exportSketches(HistogramSketch.DEFAULT_RELATIVE_ACCURACY,
+								HistogramSketch.DEFAULT_MAX_BUCKETS);
+				}
+
+				/**
+				 * Publish a {@link HistogramSketch} of every histogram and timer instead of the
+				 * standard deviation and the percentiles. Unlike percentiles, the sketches of many
+				 * instances can be merged and any quantile read from the result. The sketch is
+				 * published as text under the metric name plus {@code .sketch}, built from the values
+				 * of the snapshot, so it describes the sample of the reservoir and should be weighted
+				 * by {@code .count} when merged. Count, min, max and mean are published as before.
+				 *
+				 * @param relativeAccuracy the relative accuracy of the quantiles, between 0 and 1
+				 * @param maxBuckets       the maximum number of buckets per sign, which bounds the
+				 *                         size of a sketch
+				 * @return {@code this}
+				 */
+				public Builder exportSketches(final double relativeAccuracy, final int maxBuckets) {
+						if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+								throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1");
+						}
+						if (maxBuckets < 1) {
+								throw new IllegalArgumentException("maxBuckets must be positive");
+						}
+						this.sketchAccuracy = relativeAccuracy;
+						this.sketchBuckets = maxBuckets;
+						return this;
+				}
+
+				/**
+				 * Publish metric names as ids of a {@link NameDictionary} instead of the names. The
+				 * dictionary is announced via the given sender, which should publish retained messages
+				 * on a topic of its own (see {@link SimpleMqttSender#withRetainedMessages()}), once
+				 * after connecting, also in the background, and again whenever new names appear.
+				 * With {@link #withMaxPayloadSize(int)} a large dictionary is announced in chunks,
+				 * see {@link NameDictionary}, each retained on a subtopic of its own if the sender is
+				 * a {@link SubtopicMqttSender}, so consumers subscribe to the topic and its subtopics
+				 * to get the whole dictionary from the broker. The values are encoded by a
+				 * {@link BinaryPayloadEncoder}, so this cannot be combined with
+				 * {@link #encodeWith(PayloadEncoder)}.
+				 *
+				 * @param nameSender the sender to announce the dictionary with
+				 * @return {@code this}
+				 */
+				public Builder announceNamesTo(final MqttSender nameSender) {
+						this.nameSender = nameSender;
+						return this;
+				}
+
+				/**
+				 * Record the metrics of the reporter and its sender in the given
+				 * {@link ReporterMetrics}. They are reported like all other metrics if they are
+				 * registered in the reported registry.
+				 *
+				 * @param reporterMetrics the metrics to update
+				 * @return {@code this}
+				 */
+				public Builder instrumentWith(final ReporterMetrics reporterMetrics) {
+						return instrumentWith(reporterMetrics, true);
+				}
+
+				/**
+				 * Record the metrics of the reporter and its sender in the given
+				 * {@link ReporterMetrics}.
+				 *
+				 * @param reporterMetrics the metrics to update
+				 * @param report {@code false} to exclude them from the report
+				 * @return {@code this}
+				 */
+				public Builder instrumentWith(final ReporterMetrics reporterMetrics,
+						final boolean report) {
+						this.reporterMetrics = reporterMetrics;
+						this.reportReporterMetrics = report;
+						return this;
+				}
+
+				/**
+				 * Evaluate gauges concurrently on the given executor and wait at most {@code budget}
+				 * per report for them. A gauge which throws or does not return in time is reported
+				 * with its last good value and an additional {@code stale} value of {@code 1}. It is
+				 * not evaluated again until it returns, so a blocked gauge occupies at most one
+				 * thread of the executor.
+				 *
+				 * @param executor the executor to evaluate the gauges on
+				 * @param budget the time to wait for all gauges per report
+				 * @param unit the unit of {@code budget}
+				 * @return {@code this}
+				 */
+				public Builder evaluateGaugesWith(final Executor executor, final long budget,
+						final TimeUnit unit) {
+						if (budget < 0) {
+								throw new IllegalArgumentException("budget must not be negative");
+						}
+						this.gaugeExecutor = executor;
+						this.gaugeBudget = budget;
+						this.gaugeBudgetUnit = unit;
+						return this;
+				}
+
+				/**
+				 * Take the snapshots of histograms and timers in parallel on the given executor, e.g.
+				 * a {@link java.util.concurrent.ForkJoinPool}. The snapshots are taken in chunks of
+				 * metrics by up to {@code parallelism} threads including the reporting thread, which
+				 * waits for all of them. The values are published in the same order as without an
+				 * executor.
+				 *
+				 * @param executor the executor to run the snapshot tasks on
+				 * @param parallelism the maximum number of threads taking snapshots at once
+				 * @return {@code this}
+				 */
+				public Builder takeSnapshotsWith(final Executor executor, final int parallelism) {
+						if (parallelism < 1) {
+								throw new IllegalArgumentException("parallelism must be positive");
+						}
+						this.snapshotExecutor = executor;
+						this.snapshotParallelism = parallelism;
+						return this;
+				}
+
+				/**
+				 * Schedule the reports of {@link #start(long, TimeUnit)} at multiples of the period in
+				 * wall-clock time, e.g. at every full ten seconds, instead of relative to the start.
+				 * The timestamp of the values is the scheduled tick.
+				 *
+				 * @return {@code this}
+				 */
+				public Builder alignToWallClock() {
+						this.alignToWallClock = true;
+						return this;
+				}
+
+				/**
+				 * Delay every scheduled report by a fixed offset derived from the given key, e.g. the
+				 * MQTT client id, spread evenly over the whole period. Reporters with different keys
+				 * publish at different times within the period, while the timestamp of the values is
+				 * still the scheduled tick.
+				 *
+				 * @param key the key to derive the offset from
+				 * @return {@code this}
+				 */
+				public Builder withJitter(final String key) {
+						return withJitter(key, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				}
+
+				/**
+				 * Delay every scheduled report by a fixed offset derived from the given key, spread
+				 * evenly up to {@code maxJitter}, but at most over the period.
+				 *
+				 * @param key       the key to derive the offset from
+				 * @param maxJitter the maximum offset
+				 * @param unit      the unit of {@code maxJitter}
+				 * @return {@code this}
+				 * @see #withJitter(String)
+				 */
+				public Builder withJitter(final String key, final long maxJitter, final TimeUnit unit) {
+						if (maxJitter <= 0) {
+								throw new IllegalArgumentException("maxJitter must be positive");
+						}
+						this.jitterKey = key;
+						this.maxJitterMillis = unit.toMillis(maxJitter);
+						return this;
+				}
+
+				/**
+				 * Roll the values of {@code reports} consecutive reports up and only publish every
+				 * {@code reports}-th report: the last value under the metric name and the minimum,
+				 * maximum and average of the window under the name plus {@code .min}, {@code .max} and
+				 * {@code .avg}. E.g. a reporter started with a period of one second and aggregating
+				 * over 10 reports publishes 10 second windows.
+				 *
+				 * @param reports the number of reports per window
+				 * @return {@code this}
+				 */
+				public Builder aggregateOver(final int reports) {
+						if (reports < 1) {
+								throw new IllegalArgumentException("reports must be positive");
+						}
+						this.aggregatedReports = reports;
+						return this;
+				}
+
+				/**
+				 * Split reports into chunks of at most {@code maxPayloadSize} bytes, e.g. the maximum
+				 * packet size of the broker minus the MQTT header. Every chunk is a complete payload
+				 * which carries the id of its report cycle, its sequence number and the total number of
+				 * chunks of the cycle, so consumers can process chunks on their own or reassemble them.
+				 * A single value which does not fit on its own is published in a chunk of its own.
+				 *
+				 * @param maxPayloadSize the maximum size of a payload in bytes
+				 * @return {@code this}
+				 */
+				public Builder withMaxPayloadSize(final int maxPayloadSize) {
+						if (maxPayloadSize < MIN_PAYLOAD_SIZE) {
+								throw new IllegalArgumentException("maxPayloadSize must be at least "
+										+ MIN_PAYLOAD_SIZE);
+						}
+						this.maxPayloadSize = maxPayloadSize;
+						return this;
+				}
+
+				/**
+				 * Cache the prefixed names of at most {@code maxMetrics} metrics. Names of metrics
+				 * which were removed from the registry are evicted after the next report anyway, so
+				 * by default the cache is unbounded. With more metrics than {@code maxMetrics} the
+				 * names of the oldest ones are built again in every report, and
+				 * {@link #reportChangesOnly(int)} and {@link #aggregateOver(int)} treat them as new
+				 * metrics every time.
+				 *
+				 * @param maxMetrics the maximum number of metrics whose names are cached
+				 * @return {@code this}
+				 */
+				public Builder withNameCacheSize(final int maxMetrics) {
+						if (maxMetrics < 1) {
+								throw new IllegalArgumentException("maxMetrics must be positive");
+						}
+						this.maxMetricNames = maxMetrics;
+						return this;
+				}
+
+				/**
+				 * Only publish values which changed since they were last published. Every
+				 * {@code keyframeInterval}-th report contains all values, so late subscribers can
+				 * resynchronize. The first publish after the sender (re-)connected is always a
+				 * keyframe, also after a background reconnect of a {@link ReconnectingMqttSender}.
+				 *
+				 * @param keyframeInterval publish all values every {@code keyframeInterval} reports,
+				 * {@code 1} publishes all values every time
+				 * @return {@code this}
+				 */
+				public Builder reportChangesOnly(final int keyframeInterval) {
+						return reportChangesOnly(keyframeInterval, 0d);
+				}
+
+				/**
+				 * Only publish values which moved by more than {@code epsilon} since they were last
+				 * published. Text values are published whenever they are not equal.
+				 *
+				 * @param keyframeInterval publish all values every {@code keyframeInterval} reports
+				 * @param epsilon the absolute change a value needs to be published again
+				 * @return {@code this}
+				 * @see #reportChangesOnly(int)
+				 */
+				public Builder reportChangesOnly(final int keyframeInterval, final double epsilon) {
+						if (keyframeInterval < 1) {
+								throw new IllegalArgumentException("keyframeInterval must be positive");
+						}
+						if (!(epsilon >= 0)) {
+								throw new IllegalArgumentException("epsilon must not be negative");
+						}
+						this.keyframeInterval = keyframeInterval;
+						this.changeEpsilon = epsilon;
+						return this;
+				}
+
 				public MqttReporter build(final MqttSender mqttSender) {
-						return new MqttReporter(metricRegistry, filter, rateUnit,
-								durationUnit, mqttSender, clock, prefix);
+						return new MqttReporter(this, mqttSender);
 				}
 		}
 
@@ -123,32 +516,214 @@ public class MqttReporter extends ScheduledReporter {
 		private final MqttSender mqttSender;
 		private final Clock clock;
 		private final String prefix;
+		private final PayloadEncoder payloadEncoder;
+		private final SeriesSet seriesSet = new SeriesSet();
+		private final MetricNames metricNames;
+		private final List<PayloadBuffer> payloads = new ArrayList<>();
+		private final int maxPayloadSize;
+		private final ShardPartitioner shardPartitioner;
+		private final List<List<PayloadBuffer>> shardPayloads;
+		private final int[] shardCounts;
+		private long nextCycleId;
+		private final ChangeDetector changeDetector;
+		private final CardinalityLimiter cardinalityLimiter;
+		private final PriorityLane[] lanes;
+		private final ShardPartitioner lanePartitioner;
+		private final List<List<PayloadBuffer>> lanePayloads;
+		private int[] laneOfNameId;
+		private String[] laneNames;
+		private int currentLane;
+		private final MqttSender nameSender;
+		private final NameDictionary nameDictionary;
+		private final PayloadBuffer namePayload;
+		private boolean namesAnnounced;
+		private int announcedNames;
+		private int lastNameChunk;
+		private int reportsSinceNameAnnouncement;
+		private int nameReconnects;
+		private int reconnects;
+		private final boolean alignToWallClock;
+		private final String jitterKey;
+		private final long maxJitterMillis;
+		private ScheduledExecutorService scheduler;
+		private volatile long scheduledTick = -1L;
+		private final WindowAggregator windowAggregator;
+		private final SnapshotCollector snapshots;
+		private final GaugeEvaluator gaugeEvaluator;
+		private final ReporterMetrics reporterMetrics;
 
-		private MqttReporter(final MetricRegistry registry, final MetricFilter filter,
-				final TimeUnit rateUnit, final TimeUnit durationUnit,
-				final MqttSender mqttSender, final Clock clock, final String prefix) {
-				super(registry, REPORTER_TYPE, filter, rateUnit, durationUnit);
+		private MqttReporter(final Builder builder, final MqttSender mqttSender) {
+				super(builder.metricRegistry, REPORTER_TYPE, filter(builder), builder.rateUnit,
+						builder.durationUnit);
 				this.mqttSender = mqttSender;
-				this.clock = clock;
-				this.prefix = prefix;
+				this.clock = builder.clock;
+				this.prefix = builder.prefix;
+				this.nameSender = builder.nameSender;
+				if (nameSender != null) {
+						if (builder.payloadEncoder != null) {
+								throw new IllegalStateException(
+										"A name dictionary cannot be combined with another encoder");
+						}
+						this.nameDictionary = new NameDictionary(builder.clock.getTime(),
+								NameDictionary.DEFAULT_MAX_NAMES);
+						this.namePayload = new PayloadBuffer();
+						this.payloadEncoder = new BinaryPayloadEncoder(nameDictionary);
+				}
+				else {
+						this.nameDictionary = null;
+						this.namePayload = null;
+						this.payloadEncoder = builder.payloadEncoder != null ? builder.payloadEncoder
+								: new JsonPayloadWriter(builder.numberWriter);
+				}
+				this.metricNames = new MetricNames(prefix, seriesSet, builder.maxMetricNames);
+				this.maxPayloadSize = builder.maxPayloadSize;
+				this.alignToWallClock = builder.alignToWallClock;
+				this.jitterKey = builder.jitterKey;
+				this.maxJitterMillis = builder.maxJitterMillis;
+				if (mqttSender instanceof ShardedMqttSender) {
+						final int shards = ((ShardedMqttSender) mqttSender).getShards();
+						this.shardPartitioner = new ShardPartitioner(shards);
+						this.shardPayloads = new ArrayList<>(shards);
+						for (int i = 0; i < shards; i++) {
+								this.shardPayloads.add(new ArrayList<PayloadBuffer>());
+						}
+						this.shardCounts = new int[shards];
+				}
+				else {
+						this.shardPartitioner = null;
+						this.shardPayloads = null;
+						this.shardCounts = null;
+				}
+				if (builder.lanes.isEmpty()) {
+						this.lanes = null;
+						this.lanePartitioner = null;
+						this.lanePayloads = null;
+				}
+				else {
+						if (shardPartitioner != null) {
+								throw new IllegalStateException("Lanes cannot be combined with shards");
+						}
+						this.lanes = builder.lanes.toArray(new PriorityLane[builder.lanes.size()]);
+						this.laneOfNameId = new int[64];
+						this.laneNames = new String[64];
+						this.lanePartitioner = new ShardPartitioner(lanes.length) {
+								@Override
+								int shardOf(final int nameId, final String name) {
+										if (nameId < laneNames.length && laneNames[nameId] == name) {
+												return laneOfNameId[nameId];
+										}
+										// rolled up values go to the lane of their metric
+										final int baseId = windowAggregator != null
+												? windowAggregator.baseNameIdOf(nameId) : -1;
+										if (baseId >= 0 && baseId < laneNames.length
+												&& laneNames[baseId] == seriesSet.getName(baseId)) {
+												return laneOfNameId[baseId];
+										}
+										// names not added by this reporter go to the last lane
+										return lanes.length - 1;
+								}
+						};
+						this.lanePayloads = new ArrayList<>(lanes.length);
+						for (int i = 0; i < lanes.length; i++) {
+								this.lanePayloads.add(new ArrayList<PayloadBuffer>());
+						}
+						if (mqttSender instanceof AsyncMqttSender) {
+								((AsyncMqttSender) mqttSender).useLanes(builder.lanes);
+						}
+				}
+				this.cardinalityLimiter = builder.cardinalityLimit > 0 ? new CardinalityLimiter(
+						builder.cardinalityLimit, builder.cardinalityLimitPerPrefix, builder.prefixDepth)
+						: null;
+				this.windowAggregator = builder.aggregatedReports > 0
+						? new WindowAggregator(builder.aggregatedReports) : null;
+				this.nextCycleId = clock.getTime();
+				this.reporterMetrics = builder.reporterMetrics;
+				if (reporterMetrics != null) {
+						reporterMetrics.register(mqttSender);
+				}
+				this.gaugeEvaluator = builder.gaugeExecutor != null ? new GaugeEvaluator(
+						builder.gaugeExecutor, builder.gaugeBudget, builder.gaugeBudgetUnit) : null;
+				this.snapshots = new SnapshotCollector(builder.snapshotExecutor,
+						builder.snapshotParallelism);
+				if (builder.sketchBuckets > 0) {
+						this.snapshots.exportSketches(builder.sketchAccuracy, builder.sketchBuckets);
+				}
+				this.changeDetector = builder.keyframeInterval > 0
+						? new ChangeDetector(builder.keyframeInterval, builder.changeEpsilon) : null;
+		}
+
+		private static MetricFilter filter(final Builder builder) {
+				if (builder.reporterMetrics == null || builder.reportReporterMetrics) {
+						return builder.filter;
+				}
+				final MetricFilter filter = builder.filter;
+				final MetricFilter excluding = builder.reporterMetrics.excluding();
+				return new MetricFilter() {
+						public boolean matches(final String name, final Metric metric) {
+								return excluding.matches(name, metric) && filter.matches(name, metric);
+						}
+				};
 		}
 
-		public void report(final SortedMap<String, Gauge> gauges,
-				final SortedMap<String, Counter> counters,
-				final SortedMap<String, Histogram> histograms,
-				final SortedMap<String, Meter> meters,
-				final SortedMap<String, Timer> timers) {
+		public void report(final SortedMap<String, Gauge> allGauges,
+				final SortedMap<String, Counter> allCounters,
+				final SortedMap<String, Histogram> allHistograms,
+				final SortedMap<String, Meter> allMeters,
+				final SortedMap<String, Timer> allTimers) {
 
-				final long timestamp = clock.getTime() / 1000;
-				final SeriesSet seriesSet = new SeriesSet();
+				final long start = reporterMetrics != null ? System.nanoTime() : 0L;
+				final long tick = scheduledTick;
+				final long timestamp = (tick >= 0 ? tick : clock.getTime()) / 1000;
+				seriesSet.resetSeries();
+				snapshots.reset();
+				boolean collected = false;
 
 				try {
-						if (!mqttSender.isConnected()) {
-								mqttSender.connect();
+						// a reconnect in the background is only noticed by the count of reconnects
+						final int reconnects = reconnectsOf(mqttSender);
+						final boolean connected = connect(mqttSender);
+						if ((connected || reconnects != this.reconnects) && changeDetector != null) {
+								changeDetector.requestKeyframe();
+						}
+						this.reconnects = reconnects;
+						if (nameSender != null) {
+								final int nameReconnects = reconnectsOf(nameSender);
+								if (connect(nameSender) || nameReconnects != this.nameReconnects) {
+										namesAnnounced = false;
+								}
+								this.nameReconnects = nameReconnects;
+						}
+
+						SortedMap<String, Gauge> gauges = allGauges;
+						SortedMap<String, Counter> counters = allCounters;
+						SortedMap<String, Histogram> histograms = allHistograms;
+						SortedMap<String, Meter> meters = allMeters;
+						SortedMap<String, Timer> timers = allTimers;
+						if (cardinalityLimiter != null
+								&& cardinalityLimiter.limit(gauges, counters, histograms, meters, timers)) {
+								gauges = cardinalityLimiter.retain(gauges);
+								counters = cardinalityLimiter.retain(counters);
+								histograms = cardinalityLimiter.retain(histograms);
+								meters = cardinalityLimiter.retain(meters);
+								timers = cardinalityLimiter.retain(timers);
+								reportOverflow(timestamp);
 						}
 
-						for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-								reportGauge(entry.getKey(), entry.getValue(), timestamp);
+						if (gaugeEvaluator != null) {
+								gaugeEvaluator.evaluate(gauges);
+								for (String name : gauges.keySet()) {
+										classify(name, gauges.get(name));
+										if (reportGauge(name, gaugeEvaluator.getValue(name), timestamp)
+												&& gaugeEvaluator.isStale(name)) {
+												add(name, Statistic.STALE, timestamp, 1L);
+										}
+								}
+						}
+						else {
+								for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+										classify(entry.getKey(), entry.getValue());
+										reportGauge(entry.getKey(), entry.getValue().getValue(), timestamp);
+								}
 						}
 
 						for (Map.Entry<String, Counter> entry : counters.entrySet()) {
@@ -156,8 +731,17 @@ public class MqttReporter extends ScheduledReporter {
 										timestamp);
 						}
 
+						for (Histogram histogram : histograms.values()) {
+								snapshots.add(histogram);
+						}
+						for (Timer timer : timers.values()) {
+								snapshots.add(timer, convertDuration(1d));
+						}
+						snapshots.collect();
+
+						int snapshot = 0;
 						for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-								reportHistogram(entry.getKey(), entry.getValue(),
+								reportHistogram(entry.getKey(), entry.getValue(), snapshot++,
 										timestamp);
 						}
 
@@ -167,142 +751,590 @@ public class MqttReporter extends ScheduledReporter {
 						}
 
 						for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-								//reportTimer(entry.getKey(), entry.getValue(), timestamp);
+								reportTimer(entry.getKey(), entry.getValue(), snapshot++, timestamp);
+						}
+						collected = true;
+
+						if (windowAggregator != null) {
+								if (windowAggregator.add(seriesSet)) {
+										windowAggregator.flush(seriesSet);
+								}
+								else {
+										seriesSet.resetSeries();
+								}
+						}
+
+						if (changeDetector != null) {
+								changeDetector.retainChanged(seriesSet);
+						}
+
+						if (!seriesSet.isEmpty()) {
+								if (nameDictionary != null) {
+										announceNames();
+								}
+								if (shardPartitioner != null) {
+										publishShards();
+								}
+								else if (lanePartitioner != null) {
+										publishLanes();
+								}
+								else {
+										publish();
+								}
+								if (changeDetector != null) {
+										changeDetector.commit(seriesSet);
+								}
 						}
 				}
 				catch (IOException e) {
-						LOGGER.warn("Unable to report via MQTT", mqttSender, e);
+						failed();
+						LOGGER.warn("Unable to report via MQTT", e);
 				}
 				catch (MqttException e) {
-						e.printStackTrace();
+						failed();
+						LOGGER.warn("Unable to report via MQTT", e);
+				}
+				finally {
+						if (collected) {
+								metricNames.sweep();
+						}
+						if (reporterMetrics != null) {
+								reporterMetrics.reported(System.nanoTime() - start);
+						}
+				}
+		}
+
+		/**
+		 * Starts reporting with the given period. With {@link Builder#alignToWallClock()} or
+		 * {@link Builder#withJitter(String)} the reports are scheduled by the reporter itself at
+		 * wall-clock ticks of the {@link Clock}, otherwise like any {@link ScheduledReporter}.
+		 *
+		 * @param period the period between two reports
+		 * @param unit   the unit of {@code period}
+		 */
+		@Override
+		public void start(final long period, final TimeUnit unit) {
+				if (!alignToWallClock && jitterKey == null) {
+						super.start(period, unit);
+						return;
+				}
+				final long periodMillis = unit.toMillis(period);
+				if (periodMillis <= 0) {
+						throw new IllegalArgumentException("period must be at least one millisecond");
+				}
+				synchronized (this) {
+						if (scheduler != null) {
+								throw new IllegalStateException("Reporter already started");
+						}
+						scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+								public Thread newThread(final Runnable runnable) {
+										final Thread thread = new Thread(runnable, REPORTER_TYPE);
+										thread.setDaemon(true);
+										return thread;
+								}
+						});
+				}
+				final long now = clock.getTime();
+				final long firstTick = alignToWallClock ? now - now % periodMillis + periodMillis
+						: now + periodMillis;
+				new Tick(firstTick, periodMillis, jitter(periodMillis)).schedule();
+		}
+
+		/**
+		 * Stops the reporter and closes the connection of the {@link MqttSender}. The connection
+		 * is kept open between two reports and only torn down here (and by {@link #close()}).
+		 */
+		@Override
+		public void stop() {
+				try {
+						final ScheduledExecutorService scheduler;
+						synchronized (this) {
+								scheduler = this.scheduler;
+						}
+						if (scheduler != null) {
+								awaitTermination(scheduler);
+						}
+						super.stop();
 				}
 				finally {
 						try {
 								this.mqttSender.disconnect();
 						}
 						catch (MqttException e) {
-								e.printStackTrace();
+								LOGGER.warn("Unable to disconnect from MQTT broker", e);
+						}
+						if (this.nameSender != null) {
+								try {
+										this.nameSender.disconnect();
+								}
+								catch (MqttException e) {
+										LOGGER.warn("Unable to disconnect from MQTT broker", e);
+								}
+						}
+				}
+		}
+
+		/**
+		 * Connects the sender unless it is connected. A sender which buffers payloads while it is
+		 * disconnected still takes the report if the connect fails, e.g. because a background
+		 * reconnect is in progress.
+		 *
+		 * @return {@code true} if the sender was connected by this call
+		 */
+		private static boolean connect(final MqttSender sender) throws IOException, MqttException {
+				if (sender.isConnected()) {
+						return false;
+				}
+				try {
+						sender.connect();
+						return true;
+				}
+				catch (IOException | MqttException e) {
+						if (!buffersWhileDisconnected(sender)) {
+								throw e;
+						}
+						LOGGER.debug("Unable to connect, the sender keeps the report until it is", e);
+						return false;
+				}
+		}
+
+		private static int reconnectsOf(final MqttSender sender) {
+				return sender instanceof ReconnectingMqttSender
+						? ((ReconnectingMqttSender) sender).getReconnects() : 0;
+		}
+
+		/**
+		 * @return {@code true} if the sender queues or spools payloads while it is disconnected
+		 */
+		private static boolean buffersWhileDisconnected(final MqttSender sender) {
+				return sender instanceof BufferingMqttSender
+						&& ((BufferingMqttSender) sender).buffersWhileDisconnected();
+		}
+
+		/**
+		 * Shuts the scheduler down and waits for a running report to finish, so it cannot race
+		 * the disconnect, like {@link ScheduledReporter#stop()} does for its own executor.
+		 */
+		private static void awaitTermination(final ScheduledExecutorService scheduler) {
+				scheduler.shutdown();
+				try {
+						if (!scheduler.awaitTermination(1, TimeUnit.SECONDS)) {
+								scheduler.shutdownNow();
+								if (!scheduler.awaitTermination(1, TimeUnit.SECONDS)) {
+										LOGGER.warn("Report still running after stop");
+								}
+						}
+				}
+				catch (InterruptedException e) {
+						scheduler.shutdownNow();
+						Thread.currentThread().interrupt();
+				}
+		}
+
+		/**
+		 * Announces the name dictionary if names were added, or if it was not announced on the
+		 * current connection yet. A failed announcement is repeated with the next report. A
+		 * dictionary larger than the maximum payload size is announced in chunks. With a
+		 * {@link SubtopicMqttSender} every chunk is retained on the subtopic named after the id of
+		 * its first name, and added names are announced by republishing the last chunk and the
+		 * ones after it, so the chunks and their subtopics stay the same and the broker keeps the
+		 * whole dictionary. Other senders announce only the added names, and the whole dictionary
+		 * after connecting and every {@value #FULL_NAME_ANNOUNCEMENT_INTERVAL} reports, so
+		 * consumers which only got the last retained chunk learn the other names as well.
+		 */
+		private void announceNames() throws MqttException {
+				final long epoch = nameDictionary.getEpoch();
+				nameDictionary.update(seriesSet);
+				if (nameDictionary.getEpoch() != epoch) {
+						namesAnnounced = false;
+				}
+				final boolean chunked = maxPayloadSize > 0
+						&& nameDictionary.encodedSize() > maxPayloadSize;
+				final boolean subtopics = nameSender instanceof SubtopicMqttSender;
+				if (chunked && !subtopics && namesAnnounced
+						&& ++reportsSinceNameAnnouncement >= FULL_NAME_ANNOUNCEMENT_INTERVAL) {
+						namesAnnounced = false;
+				}
+				if (namesAnnounced && announcedNames == nameDictionary.size()) {
+						return;
+				}
+				if (chunked && subtopics) {
+						int first = namesAnnounced ? lastNameChunk : 0;
+						while (first < nameDictionary.size()) {
+								namePayload.reset();
+								final int next = nameDictionary.encodeChunk(first, maxPayloadSize, namePayload);
+								announce(String.valueOf(first), namePayload);
+								lastNameChunk = first;
+								first = next;
 						}
 				}
+				else if (chunked) {
+						int next = namesAnnounced ? announcedNames : 0;
+						while (next < nameDictionary.size()) {
+								namePayload.reset();
+								next = nameDictionary.encodeChunk(next, maxPayloadSize, namePayload);
+								announce(namePayload);
+								announcedNames = namesAnnounced ? next : announcedNames;
+						}
+				}
+				else {
+						namePayload.reset();
+						nameDictionary.encode(namePayload);
+						announce(namePayload);
+						lastNameChunk = 0;
+				}
+				if (!namesAnnounced) {
+						reportsSinceNameAnnouncement = 0;
+				}
+				announcedNames = nameDictionary.size();
+				namesAnnounced = true;
+		}
+
+		private void announce(final PayloadBuffer payload) throws MqttException {
+				nameSender.send(payload.array(), 0, payload.length());
+				if (reporterMetrics != null) {
+						reporterMetrics.sent(payload.length());
+				}
+		}
+
+		private void announce(final String subtopic, final PayloadBuffer payload)
+				throws MqttException {
+				((SubtopicMqttSender) nameSender).send(subtopic, payload.array(), 0, payload.length());
+				if (reporterMetrics != null) {
+						reporterMetrics.sent(payload.length());
+				}
+		}
+
+		private void publish() throws MqttException {
+				long time = reporterMetrics != null ? System.nanoTime() : 0L;
+				final int count = encode(seriesSet, payloads);
+				if (reporterMetrics != null) {
+						final long now = System.nanoTime();
+						reporterMetrics.encoded(now - time);
+						time = now;
+				}
+				for (int i = 0; i < count; i++) {
+						final PayloadBuffer payload = payloads.get(i);
+						mqttSender.send(payload.array(), 0, payload.length());
+						if (reporterMetrics != null) {
+								final long now = System.nanoTime();
+								reporterMetrics.published(now - time);
+								reporterMetrics.sent(payload.length());
+								time = now;
+						}
+				}
+		}
 
+		private void publishShards() throws MqttException {
+				final long start = reporterMetrics != null ? System.nanoTime() : 0L;
+				shardPartitioner.partition(seriesSet);
+				for (int shard = 0; shard < shardCounts.length; shard++) {
+						final SeriesSet shardSet = shardPartitioner.getShard(shard);
+						shardCounts[shard] = shardSet.isEmpty() ? 0
+								: encode(shardSet, shardPayloads.get(shard));
+				}
+				final long encoded = reporterMetrics != null ? System.nanoTime() : 0L;
+				((ShardedMqttSender) mqttSender).send(shardPayloads, shardCounts);
+				if (reporterMetrics != null) {
+						reporterMetrics.encoded(encoded - start);
+						reporterMetrics.published(System.nanoTime() - encoded);
+						for (int shard = 0; shard < shardCounts.length; shard++) {
+								for (int i = 0; i < shardCounts[shard]; i++) {
+										reporterMetrics.sent(shardPayloads.get(shard).get(i).length());
+								}
+						}
+				}
+		}
+
+		private void publishLanes() throws MqttException {
+				lanePartitioner.partition(seriesSet);
+				for (int lane = 0; lane < lanes.length; lane++) {
+						final SeriesSet laneSet = lanePartitioner.getShard(lane);
+						if (laneSet.isEmpty()) {
+								continue;
+						}
+						long time = reporterMetrics != null ? System.nanoTime() : 0L;
+						final List<PayloadBuffer> buffers = lanePayloads.get(lane);
+						final int count = encode(laneSet, buffers);
+						if (reporterMetrics != null) {
+								final long now = System.nanoTime();
+								reporterMetrics.encoded(now - time);
+								time = now;
+						}
+						for (int i = 0; i < count; i++) {
+								final PayloadBuffer payload = buffers.get(i);
+								if (mqttSender instanceof AsyncMqttSender) {
+										((AsyncMqttSender) mqttSender).send(lane, payload.array(), 0,
+												payload.length());
+								}
+								else {
+										mqttSender.send(payload.array(), 0, payload.length());
+								}
+								if (reporterMetrics != null) {
+										final long now = System.nanoTime();
+										reporterMetrics.published(now - time);
+										reporterMetrics.sent(payload.length());
+										time = now;
+								}
+						}
+				}
+		}
+
+		/**
+		 * Encodes a series set into one payload, or into chunks of at most {@code maxPayloadSize}
+		 * bytes.
+		 *
+		 * @param seriesSet the values to encode
+		 * @param payloads  the reused buffers to encode into, extended as needed
+		 * @return the number of payloads to publish
+		 */
+		private int encode(final SeriesSet seriesSet, final List<PayloadBuffer> payloads) {
+				if (maxPayloadSize <= 0) {
+						if (payloads.isEmpty()) {
+								payloads.add(new PayloadBuffer());
+						}
+						final PayloadBuffer payload = payloads.get(0);
+						payload.reset();
+						payloadEncoder.encode(seriesSet, payload);
+						return 1;
+				}
+
+				final long cycleId = nextCycleId++;
+				int chunks = 0;
+				int next = 0;
+				while (next < seriesSet.size()) {
+						if (chunks == payloads.size()) {
+								payloads.add(new PayloadBuffer());
+						}
+						final PayloadBuffer chunk = payloads.get(chunks);
+						chunk.reset();
+						next = payloadEncoder.encodeChunk(seriesSet, next, maxPayloadSize, cycleId, chunks,
+								chunk);
+						if (chunk.length() > maxPayloadSize) {
+								LOGGER.warn("Value {} does not fit into a payload of {} bytes",
+										seriesSet.getName(seriesSet.getNameId(next - 1)), maxPayloadSize);
+						}
+						chunks++;
+				}
+				for (int i = 0; i < chunks; i++) {
+						payloadEncoder.setChunkCount(payloads.get(i), chunks);
+				}
+				return chunks;
+		}
+
+		/**
+		 * Returns the offset of the scheduled reports within the period, derived from the hash of
+		 * the jitter key. The hash of a string does not change between JVMs, so a client keeps its
+		 * offset across restarts.
+		 */
+		private long jitter(final long periodMillis) {
+				if (jitterKey == null) {
+						return 0L;
+				}
+				final long range = Math.min(maxJitterMillis, periodMillis);
+				long hash = jitterKey.hashCode();
+				hash ^= hash >>> 33;
+				hash *= 0xFF51AFD7ED558CCDL;
+				hash ^= hash >>> 33;
+				return (hash & Long.MAX_VALUE) % range;
 		}
 
-		private String format(final Object o) {
-				if (o instanceof Float) {
-						return format(((Float) o).doubleValue());
-				}
-				else if (o instanceof Double) {
-						return format(((Double) o).doubleValue());
+		/**
+		 * A scheduled report at a wall-clock tick, which schedules the next one when done. Ticks
+		 * missed while a report took longer than the period are skipped.
+		 */
+		private final class Tick implements Runnable {
+				private final long tick;
+				private final long periodMillis;
+				private final long jitter;
+
+				private Tick(final long tick, final long periodMillis, final long jitter) {
+						this.tick = tick;
+						this.periodMillis = periodMillis;
+						this.jitter = jitter;
 				}
-				else if (o instanceof Byte) {
-						return format(((Byte) o).longValue());
-				}
-				else if (o instanceof Short) {
-						return format(((Short) o).longValue());
+
+				private void schedule() {
+						final long delay = Math.max(0L, tick + jitter - clock.getTime());
+						synchronized (MqttReporter.this) {
+								if (scheduler != null && !scheduler.isShutdown()) {
+										scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+								}
+						}
 				}
-				else if (o instanceof Integer) {
-						return format(((Integer) o).longValue());
+
+				public void run() {
+						scheduledTick = tick;
+						try {
+								report();
+						}
+						catch (RuntimeException e) {
+								LOGGER.error("Unable to report", e);
+						}
+						finally {
+								scheduledTick = -1L;
+						}
+						final long now = clock.getTime();
+						long next = tick + periodMillis;
+						if (next + jitter < now) {
+								next += (now - next - jitter) / periodMillis * periodMillis;
+						}
+						new Tick(next, periodMillis, jitter).schedule();
 				}
-				else if (o instanceof Long) {
-						return format(((Long) o).longValue());
+		}
+
+		private void failed() {
+				if (reporterMetrics != null) {
+						reporterMetrics.failed();
 				}
-				else if (o instanceof BigInteger) {
-						return format(((BigInteger) o).doubleValue());
+		}
+
+		private void reportTimer(final String name, final Timer timer, final int snapshot,
+				final long timestamp) {
+				classify(name, timer);
+				add(name, Statistic.MAX, timestamp, convertDuration(snapshots.getMax(snapshot)));
+				add(name, Statistic.MEAN, timestamp, convertDuration(snapshots.getMean(snapshot)));
+				add(name, Statistic.MIN, timestamp, convertDuration(snapshots.getMin(snapshot)));
+				if (snapshots.isExportingSketches()) {
+						add(name, Statistic.SKETCH, timestamp, snapshots.getSketch(snapshot));
+						reportMetered(name, timer, timestamp);
+						return;
 				}
-				else if (o instanceof BigDecimal) {
-						return format(((BigDecimal) o).doubleValue());
+				add(name, Statistic.STDDEV, timestamp,
+						convertDuration(snapshots.getStdDev(snapshot)));
+				add(name, Statistic.P50, timestamp, convertDuration(snapshots.getMedian(snapshot)));
+				add(name, Statistic.P75, timestamp,
+						convertDuration(snapshots.get75thPercentile(snapshot)));
+				add(name, Statistic.P95, timestamp,
+						convertDuration(snapshots.get95thPercentile(snapshot)));
+				add(name, Statistic.P98, timestamp,
+						convertDuration(snapshots.get98thPercentile(snapshot)));
+				add(name, Statistic.P99, timestamp,
+						convertDuration(snapshots.get99thPercentile(snapshot)));
+				add(name, Statistic.P999, timestamp,
+						convertDuration(snapshots.get999thPercentile(snapshot)));
+
+				reportMetered(name, timer, timestamp);
+		}
+
+		private void reportMetered(final String name, final Metered meter,
+				final long timestamp) {
+				classify(name, meter);
+				add(name, Statistic.COUNT, timestamp, meter.getCount());
+				add(name, Statistic.M1_RATE, timestamp, convertRate(meter.getOneMinuteRate()));
+				add(name, Statistic.M5_RATE, timestamp, convertRate(meter.getFiveMinuteRate()));
+				add(name, Statistic.M15_RATE, timestamp,
+						convertRate(meter.getFifteenMinuteRate()));
+				add(name, Statistic.MEAN_RATE, timestamp, convertRate(meter.getMeanRate()));
+		}
+
+		private void reportHistogram(final String name, final Histogram histogram,
+				final int snapshot, final long timestamp) {
+				classify(name, histogram);
+				add(name, Statistic.COUNT, timestamp, histogram.getCount());
+				add(name, Statistic.MAX, timestamp, snapshots.getMax(snapshot));
+				add(name, Statistic.MEAN, timestamp, snapshots.getMean(snapshot));
+				add(name, Statistic.MIN, timestamp, snapshots.getMin(snapshot));
+				if (snapshots.isExportingSketches()) {
+						add(name, Statistic.SKETCH, timestamp, snapshots.getSketch(snapshot));
+						return;
 				}
-				return null;
+				add(name, Statistic.STDDEV, timestamp, snapshots.getStdDev(snapshot));
+				add(name, Statistic.P50, timestamp, snapshots.getMedian(snapshot));
+				add(name, Statistic.P75, timestamp, snapshots.get75thPercentile(snapshot));
+				add(name, Statistic.P95, timestamp, snapshots.get95thPercentile(snapshot));
+				add(name, Statistic.P98, timestamp, snapshots.get98thPercentile(snapshot));
+				add(name, Statistic.P99, timestamp, snapshots.get99thPercentile(snapshot));
+				add(name, Statistic.P999, timestamp, snapshots.get999thPercentile(snapshot));
 		}
 
-		private String format(long n) {
-				return Long.toString(n);
+		private void reportCounter(final String name, final Counter counter,
+				final long timestamp) {
+				classify(name, counter);
+				add(name, Statistic.COUNT, timestamp, counter.getCount());
 		}
 
-		private String format(double v) {
-				return String.format(Locale.US, "%2.2f", v);
+		private boolean reportGauge(final String name, final Object value,
+				final long timestamp) {
+				if (value instanceof Integer || value instanceof Long || value instanceof Short
+						|| value instanceof Byte || value instanceof AtomicInteger
+						|| value instanceof AtomicLong) {
+						add(name, Statistic.VALUE, timestamp, ((Number) value).longValue());
+				}
+				else if (value instanceof BigInteger || value instanceof BigDecimal) {
+						// keep the exact value, doubleValue() would lose precision
+						add(name, Statistic.VALUE, timestamp,
+								value instanceof BigDecimal ? ((BigDecimal) value).toPlainString()
+										: value.toString());
+				}
+				else if (value instanceof Number) {
+						add(name, Statistic.VALUE, timestamp, ((Number) value).doubleValue());
+				}
+				else {
+						return false;
+				}
+				return true;
 		}
 
-		private String prefix(String... components) {
-				return MetricRegistry.name(prefix, components);
+		private void reportOverflow(final long timestamp) {
+				if (lanes != null) {
+						currentLane = lanes.length - 1;
+				}
+				for (Map.Entry<String, long[]> entry : cardinalityLimiter.getOverflow().entrySet()) {
+						final String name = CardinalityLimiter.OVERFLOW.equals(entry.getKey())
+								? CardinalityLimiter.OVERFLOW
+								: entry.getKey() + "." + CardinalityLimiter.OVERFLOW;
+						add(name, Statistic.SERIES, timestamp, entry.getValue()[0]);
+						add(name, Statistic.COUNT, timestamp, entry.getValue()[1]);
+				}
+				if (reporterMetrics != null) {
+						reporterMetrics.droppedSeries(cardinalityLimiter.getDropped());
+				}
 		}
 
-		private void reportTimer(final String name, final Timer timer,
-				final long timestamp, final SeriesSet seriesSet) {
-				final Snapshot snapshot = timer.getSnapshot();
-		/*		mqttSender.send(prefix(name, "max"),
-						format(convertDuration(snapshot.getMax())), timestamp);
-				mqttSender.send(prefix(name, "mean"),
-						format(convertDuration(snapshot.getMean())), timestamp);
-				mqttSender.send(prefix(name, "min"),
-						format(convertDuration(snapshot.getMin())), timestamp);
-				mqttSender.send(prefix(name, "stddev"),
-						format(convertDuration(snapshot.getStdDev())), timestamp);
-				mqttSender.send(prefix(name, "p50"),
-						format(convertDuration(snapshot.getMedian())), timestamp);
-				mqttSender.send(prefix(name, "p75"),
-						format(convertDuration(snapshot.get75thPercentile())), timestamp);
-				mqttSender.send(prefix(name, "p95"),
-						format(convertDuration(snapshot.get95thPercentile())), timestamp);
-				mqttSender.send(prefix(name, "p98"),
-						format(convertDuration(snapshot.get98thPercentile())), timestamp);
-				mqttSender.send(prefix(name, "p99"),
-						format(convertDuration(snapshot.get99thPercentile())), timestamp);
-				mqttSender.send(prefix(name, "p999"),
-						format(convertDuration(snapshot.get999thPercentile())),
-						timestamp); */
+		/**
+		 * Selects the lane of the values added next.
+		 */
+		private void classify(final String name, final Metric metric) {
+				if (lanes == null) {
+						return;
+				}
+				currentLane = lanes.length - 1;
+				for (int i = 0; i < lanes.length; i++) {
+						if (lanes[i].getFilter().matches(name, metric)) {
+								currentLane = i;
+								return;
+						}
+				}
+		}
+
+		private int nameId(final String name, final Statistic statistic) {
+				final int nameId = metricNames.id(name, statistic);
+				if (lanes != null) {
+						if (nameId >= laneOfNameId.length) {
+								final int capacity = Math.max(nameId + 1, laneOfNameId.length * 2);
+								laneOfNameId = Arrays.copyOf(laneOfNameId, capacity);
+								laneNames = Arrays.copyOf(laneNames, capacity);
+						}
+						// the name is kept to notice when a released id was handed out for another name
+						laneOfNameId[nameId] = currentLane;
+						laneNames[nameId] = seriesSet.getName(nameId);
+				}
+				return nameId;
+		}
 
+		private void add(final String name, final Statistic statistic, final long timestamp,
+				final long value) {
+				seriesSet.add(nameId(name, statistic), timestamp, value);
 		}
 
-		private void reportMetered(String name, Metered meter, long timestamp) {
-		/*		mqttSender
-						.send(prefix(name, "count"), format(meter.getCount()), timestamp);
-				mqttSender.send(prefix(name, "m1_rate"),
-						format(convertRate(meter.getOneMinuteRate())), timestamp);
-				mqttSender.send(prefix(name, "m5_rate"),
-						format(convertRate(meter.getFiveMinuteRate())), timestamp);
-				mqttSender.send(prefix(name, "m15_rate"),
-						format(convertRate(meter.getFifteenMinuteRate())), timestamp);
-				mqttSender.send(prefix(name, "mean_rate"),
-						format(convertRate(meter.getMeanRate())), timestamp); */
+		private void add(final String name, final Statistic statistic, final long timestamp,
+				final double value) {
+				seriesSet.add(nameId(name, statistic), timestamp, value);
 		}
 
-		private void reportHistogram(String name, Histogram histogram, long timestamp) {
-		/*		final Snapshot snapshot = histogram.getSnapshot();
-				mqttSender.send(prefix(name, "count"), format(histogram.getCount()),
-						timestamp);
-				mqttSender
-						.send(prefix(name, "max"), format(snapshot.getMax()), timestamp);
-				mqttSender.send(prefix(name, "mean"), format(snapshot.getMean()),
-						timestamp);
-				mqttSender
-						.send(prefix(name, "min"), format(snapshot.getMin()), timestamp);
-				mqttSender.send(prefix(name, "stddev"), format(snapshot.getStdDev()),
-						timestamp);
-				mqttSender.send(prefix(name, "p50"), format(snapshot.getMedian()),
-						timestamp);
-				mqttSender.send(prefix(name, "p75"), format(snapshot.get75thPercentile()),
-						timestamp);
-				mqttSender.send(prefix(name, "p95"), format(snapshot.get95thPercentile()),
-						timestamp);
-				mqttSender.send(prefix(name, "p98"), format(snapshot.get98thPercentile()),
-						timestamp);
-				mqttSender.send(prefix(name, "p99"), format(snapshot.get99thPercentile()),
-						timestamp);
-				mqttSender
-						.send(prefix(name, "p999"), format(snapshot.get999thPercentile()),
-								timestamp); */
-		}
-
-		private void reportCounter(String name, Counter counter, long timestamp) {
-		/*		mqttSender.send(prefix(name, "count"), format(counter.getCount()),
-						timestamp); */
-		}
-
-		private void reportGauge(String name, Gauge gauge, long timestamp) {
-		/*		final String value = format(gauge.getValue());
-				if (value != null) {
-						mqttSender.send(prefix(name), value, timestamp);
-				} */
+		private void add(final String name, final Statistic statistic, final long timestamp,
+				final String value) {
+				seriesSet.add(nameId(name, statistic), timestamp, value);
 		}
 }
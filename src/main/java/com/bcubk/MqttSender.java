@@ -21,6 +21,10 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import java.io.IOException;
 
 /**
+ * Publishes the payloads of a {@link MqttReporter}. Implementations which only publish strings
+ * can extend {@link AbstractMqttSender} instead of implementing
+ * {@link #send(byte[], int, int)} themselves.
+ *
  * @author Baris Cubukcuoglu
  */
 public interface MqttSender {
@@ -28,6 +32,17 @@ public interface MqttSender {
 
 		void send(final String jsonPayload);
 
+		/**
+		 * Publishes {@code length} bytes of {@code payload} starting at {@code offset}. The caller
+		 * may reuse the array as soon as this method returns.
+		 *
+		 * @param payload the encoded payload
+		 * @param offset  the offset of the first byte to publish
+		 * @param length  the number of bytes to publish
+		 * @throws MqttException if the payload could not be published
+		 */
+		void send(final byte[] payload, final int offset, final int length) throws MqttException;
+
 		void disconnect() throws MqttException;
 
 		boolean isConnected();
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of metric names by id, so a {@link BinaryPayloadEncoder} can write the id of a name
+ * instead of the name itself. The reporter announces the table as a retained message on a
+ * topic of its own whenever names were added, and consumers read it with
+ * {@link #read(byte[], int, int)} and pass it to
+ * {@link BinaryPayloadDecoder#withNameDictionary(NameDictionary)} to resolve the ids:
+ * <pre>
+ * dictionary = MAGIC NAMES_VERSION epoch count *name
+ *            | MAGIC NAMES_CHUNK_VERSION epoch first count *name
+ * epoch      = varint, changes whenever ids were reassigned
+ * first      = varint, the id of the first name of the chunk
+ * count      = varint, the number of names of the whole table, the id of a name is its position
+ * name       = varint length, UTF-8 bytes, a chunk holds names up to the end of the payload
+ * </pre>
+ * Within an epoch ids are only ever added, so the latest table of an epoch resolves all
+ * payloads of that epoch. A table too large for one payload is announced in chunks, retained on
+ * subtopics {@code <topic>/<first>} by a {@link SubtopicMqttSender}, which
+ * {@link #read(byte[], int, int)} merges into the names it already knows. Once the table holds
+ * {@code maxNames} names it is cleared and a new epoch starts. Epochs start at the time the
+ * reporter was created and only grow, so retained chunks of an older epoch are ignored. Not
+ * thread-safe.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public final class NameDictionary {
+		static final int DEFAULT_MAX_NAMES = 100000;
+
+		private final int maxNames;
+		private final Map<String, Integer> ids = new HashMap<>();
+		private final List<String> names = new ArrayList<>();
+		private long epoch;
+		private int encodedNamesLength;
+		private String[] resolved = new String[64];
+		private int[] resolvedIds = new int[64];
+
+		/**
+		 * Creates an empty dictionary for consumers, filled by {@link #read(byte[], int, int)}.
+		 */
+		public NameDictionary() {
+				this(0L, DEFAULT_MAX_NAMES);
+		}
+
+		NameDictionary(final long epoch, final int maxNames) {
+				this.epoch = epoch;
+				this.maxNames = maxNames;
+		}
+
+		/**
+		 * @return the epoch of the current ids
+		 */
+		public long getEpoch() {
+				return epoch;
+		}
+
+		/**
+		 * @return the number of names
+		 */
+		public int size() {
+				return names.size();
+		}
+
+		/**
+		 * @param id the id of a name
+		 * @return the name, or {@code null} if the id is unknown
+		 */
+		public String getName(final int id) {
+				return id >= 0 && id < names.size() ? names.get(id) : null;
+		}
+
+		/**
+		 * @param payload the received payload
+		 * @param offset  the offset of the first byte
+		 * @param length  the number of bytes
+		 * @return {@code true} if the payload is a name dictionary
+		 */
+		public static boolean isNameDictionary(final byte[] payload, final int offset,
+				final int length) {
+				if (!BinaryPayloadDecoder.isBinaryPayload(payload, offset, length)) {
+						return false;
+				}
+				final int version = payload[offset + 1] & 0xFF;
+				return version == BinaryPayloadEncoder.NAMES_VERSION
+						|| version == BinaryPayloadEncoder.NAMES_CHUNK_VERSION;
+		}
+
+		/**
+		 * Replaces the names by the announced ones, or adds the names of an announced chunk. A
+		 * chunk of a newer epoch replaces all names, the ids of the names of the previous epoch
+		 * are no longer valid. A chunk of an older epoch, e.g. one still retained on the broker, is
+		 * ignored.
+		 *
+		 * @param payload the received payload
+		 * @param offset  the offset of the first byte
+		 * @param length  the number of bytes
+		 * @throws IOException if the payload is not a valid name dictionary
+		 */
+		public void read(final byte[] payload, final int offset, final int length)
+				throws IOException {
+				final BinaryPayloadDecoder decoder = new BinaryPayloadDecoder();
+				final List<String> announced = decoder.decodeNames(payload, offset, length);
+				final int first = decoder.getFirstNameId();
+				if (decoder.getEpoch() < epoch) {
+						return;
+				}
+				if (decoder.getEpoch() != epoch
+						|| first == 0 && announced.size() == decoder.getNameCount()) {
+						clear();
+						this.epoch = decoder.getEpoch();
+				}
+				for (int i = 0; i < announced.size(); i++) {
+						put(first + i, announced.get(i));
+				}
+		}
+
+		/**
+		 * Adds the names of all values of the given set which have no id yet. Starts a new epoch
+		 * if the table would grow beyond {@code maxNames}.
+		 *
+		 * @return {@code true} if names were added and the table has to be announced again
+		 */
+		boolean update(final SeriesSet seriesSet) {
+				boolean changed = false;
+				for (int i = 0; i < seriesSet.size(); i++) {
+						final String name = seriesSet.getName(seriesSet.getNameId(i));
+						if (!ids.containsKey(name)) {
+								if (names.size() >= maxNames) {
+										clear();
+										epoch++;
+										// the names seen so far in this set were dropped as well
+										for (int j = 0; j < seriesSet.size(); j++) {
+												final String dropped = seriesSet.getName(seriesSet.getNameId(j));
+												if (!ids.containsKey(dropped)) {
+														add(dropped);
+												}
+										}
+										return true;
+								}
+								add(name);
+								changed = true;
+						}
+				}
+				return changed;
+		}
+
+		/**
+		 * Returns the id of the name with the given id in the set. The ids are cached by name id
+		 * of the set, together with the name to notice when a released id was handed out for
+		 * another name.
+		 */
+		int idOf(final SeriesSet seriesSet, final int nameId) {
+				final String name = seriesSet.getName(nameId);
+				if (nameId >= resolved.length) {
+						final int capacity = Math.max(nameId + 1, resolved.length * 2);
+						resolved = Arrays.copyOf(resolved, capacity);
+						resolvedIds = Arrays.copyOf(resolvedIds, capacity);
+				}
+				if (resolved[nameId] != name) {
+						final Integer id = ids.get(name);
+						if (id == null) {
+								throw new IllegalStateException("No id for " + name);
+						}
+						resolved[nameId] = name;
+						resolvedIds[nameId] = id;
+				}
+				return resolvedIds[nameId];
+		}
+
+		/**
+		 * @return an upper bound of the size of {@link #encode(PayloadBuffer)}
+		 */
+		int encodedSize() {
+				// magic, version and two varints of at most ten bytes
+				return 22 + encodedNamesLength;
+		}
+
+		/**
+		 * Encodes a chunk of at most {@code maxLength} bytes with the names starting at id
+		 * {@code first}, or at least that name if it does not fit on its own.
+		 *
+		 * @return the id of the first name which did not fit into the chunk
+		 */
+		int encodeChunk(final int first, final int maxLength, final PayloadBuffer out) {
+				out.write(BinaryPayloadEncoder.MAGIC);
+				out.write(BinaryPayloadEncoder.NAMES_CHUNK_VERSION);
+				out.writeVarLong(epoch);
+				out.writeVarLong(first);
+				out.writeVarLong(names.size());
+				int next = first;
+				while (next < names.size()) {
+						final int mark = out.length();
+						final byte[] utf8 = names.get(next).getBytes(StandardCharsets.UTF_8);
+						out.writeVarLong(utf8.length);
+						out.write(utf8, 0, utf8.length);
+						if (out.length() > maxLength && next > first) {
+								out.truncate(mark);
+								break;
+						}
+						next++;
+				}
+				return next;
+		}
+
+		void encode(final PayloadBuffer out) {
+				out.write(BinaryPayloadEncoder.MAGIC);
+				out.write(BinaryPayloadEncoder.NAMES_VERSION);
+				out.writeVarLong(epoch);
+				out.writeVarLong(names.size());
+				for (String name : names) {
+						final byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+						out.writeVarLong(utf8.length);
+						out.write(utf8, 0, utf8.length);
+				}
+		}
+
+		private void add(final String name) {
+				ids.put(name, names.size());
+				names.add(name);
+				final int length = PayloadBuffer.utf8Length(name);
+				encodedNamesLength += length + (32 - Integer.numberOfLeadingZeros(length | 1) + 6) / 7;
+		}
+
+		private void put(final int id, final String name) {
+				while (names.size() <= id) {
+						names.add(null);
+				}
+				names.set(id, name);
+				ids.put(name, id);
+		}
+
+		private void clear() {
+				ids.clear();
+				names.clear();
+				encodedNamesLength = 0;
+				Arrays.fill(resolved, null);
+		}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes numbers as ASCII digits into a {@link PayloadBuffer} without creating intermediate
+ * strings or formatters. Two modes are available:
+ * <ul>
+ * <li>{@link #fixed(int)} writes a fixed number of fraction digits exactly like
+ * {@code String.format(Locale.US, "%.2f", value)}: half up on the decimal digits of
+ * {@link Double#toString(double)}, so e.g. {@code 1.005} is written as {@code 1.01} although the
+ * closest double is slightly below. Only values close to such a tie take the slow path through
+ * {@link BigDecimal}.</li>
+ * <li>{@link #shortest()} writes the fewest fraction digits which parse back to the very same
+ * double</li>
+ * </ul>
+ * {@code NaN} and infinite values are written as {@code NaN}, {@code Infinity} and
+ * {@code -Infinity}. Values whose scaled digits do not fit into 53 bits (very large or very small
+ * values) fall back to {@link BigDecimal} respectively {@link Double#toString(double)}.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public abstract class NumberWriter {
+		private static final double MAX_EXACT = 9007199254740992d; // 2^53
+		private static final int MAX_PRECISION = 17;
+		private static final int MAX_SHORTEST_PRECISION = 18;
+		private static final double[] POWERS_OF_TEN = new double[MAX_SHORTEST_PRECISION + 1];
+		private static final long[] LONG_POWERS_OF_TEN = new long[MAX_SHORTEST_PRECISION + 1];
+
+		static {
+				double power = 1d;
+				for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+						POWERS_OF_TEN[i] = power;
+						power *= 10d;
+				}
+				long longPower = 1L;
+				for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+						LONG_POWERS_OF_TEN[i] = longPower;
+						longPower *= 10L;
+				}
+		}
+
+		/**
+		 * @param precision the number of fraction digits, between 0 and 17
+		 * @return a writer for a fixed number of fraction digits
+		 */
+		public static NumberWriter fixed(final int precision) {
+				if (precision < 0 || precision > MAX_PRECISION) {
+						throw new IllegalArgumentException(
+								"precision must be between 0 and " + MAX_PRECISION + ": " + precision);
+				}
+				return new Fixed(precision);
+		}
+
+		/**
+		 * @return a writer for the shortest representation which round-trips to the same double
+		 */
+		public static NumberWriter shortest() {
+				return Shortest.INSTANCE;
+		}
+
+		public abstract void write(double value, PayloadBuffer out);
+
+		abstract void write(BigDecimal value, PayloadBuffer out);
+
+		public void write(final long value, final PayloadBuffer out) {
+				out.writeLong(value);
+		}
+
+		/**
+		 * Writes any {@link Number}. Integral types are written exactly, {@link BigDecimal}s keep
+		 * their precision, everything else is written as double.
+		 *
+		 * @param value the number to write
+		 * @param out   the buffer to write to
+		 */
+		public void write(final Number value, final PayloadBuffer out) {
+				if (value instanceof Integer || value instanceof Long || value instanceof Short
+						|| value instanceof Byte || value instanceof AtomicLong
+						|| value instanceof AtomicInteger) {
+						write(value.longValue(), out);
+				}
+				else if (value instanceof BigInteger) {
+						out.writeUtf8(value.toString());
+				}
+				else if (value instanceof BigDecimal) {
+						write((BigDecimal) value, out);
+				}
+				else {
+						write(value.doubleValue(), out);
+				}
+		}
+
+		private static boolean writeNonFinite(final double value, final PayloadBuffer out) {
+				if (Double.isNaN(value)) {
+						out.writeUtf8("NaN");
+						return true;
+				}
+				if (Double.isInfinite(value)) {
+						out.writeUtf8(value > 0 ? "Infinity" : "-Infinity");
+						return true;
+				}
+				return false;
+		}
+
+		private static void writeScaled(final long scaled, final int precision,
+				final PayloadBuffer out) {
+				if (precision == 0) {
+						out.writeLong(scaled);
+						return;
+				}
+				final long power = LONG_POWERS_OF_TEN[precision];
+				out.writeLong(scaled / power);
+				out.write('.');
+				final long fraction = scaled % power;
+				for (long limit = power / 10; limit > fraction && limit > 1; limit /= 10) {
+						out.write('0');
+				}
+				out.writeLong(fraction);
+		}
+
+		private static final class Fixed extends NumberWriter {
+				private final int precision;
+
+				private Fixed(final int precision) {
+						this.precision = precision;
+				}
+
+				@Override
+				public void write(final double value, final PayloadBuffer out) {
+						if (writeNonFinite(value, out)) {
+								return;
+						}
+						final double magnitude = Math.abs(value);
+						final double scaled = magnitude * POWERS_OF_TEN[precision];
+						if (scaled >= MAX_EXACT) {
+								write(BigDecimal.valueOf(value), out);
+								return;
+						}
+						final long truncated = (long) scaled;
+						final double remainder = scaled - truncated;
+						if (Math.abs(remainder - 0.5d) <= 4 * Math.ulp(scaled)) {
+								// the binary value may be off a decimal tie, round its decimal digits instead
+								write(BigDecimal.valueOf(value), out);
+								return;
+						}
+						if (Double.doubleToRawLongBits(value) < 0) {
+								out.write('-');
+						}
+						writeScaled(remainder > 0.5d ? truncated + 1 : truncated, precision, out);
+				}
+
+				@Override
+				void write(final BigDecimal value, final PayloadBuffer out) {
+						out.writeUtf8(value.setScale(precision, RoundingMode.HALF_UP).toPlainString());
+				}
+		}
+
+		private static final class Shortest extends NumberWriter {
+				private static final Shortest INSTANCE = new Shortest();
+
+				@Override
+				public void write(final double value, final PayloadBuffer out) {
+						if (writeNonFinite(value, out)) {
+								return;
+						}
+						final double magnitude = Math.abs(value);
+						for (int precision = 0; precision <= MAX_SHORTEST_PRECISION; precision++) {
+								final double power = POWERS_OF_TEN[precision];
+								final double scaled = Math.rint(magnitude * power);
+								if (scaled >= MAX_EXACT) {
+										break;
+								}
+								// both operands are exact, so the division is correctly rounded and the
+								// digits parse back to the same double
+								if (scaled / power == magnitude) {
+										if (Double.doubleToRawLongBits(value) < 0) {
+												out.write('-');
+										}
+										writeScaled((long) scaled, precision, out);
+										return;
+								}
+						}
+						out.writeUtf8(Double.toString(value));
+				}
+
+				@Override
+				void write(final BigDecimal value, final PayloadBuffer out) {
+						out.writeUtf8(value.stripTrailingZeros().toPlainString());
+				}
+		}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer for encoded payloads. The buffer is meant to be reused across report
+ * cycles: {@link #reset()} only rewinds the write position and keeps the backing array, so a
+ * steady-state cycle does not allocate.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class PayloadBuffer {
+		private static final int DEFAULT_CAPACITY = 4096;
+
+		private byte[] bytes;
+		private int length;
+
+		public PayloadBuffer() {
+				this(DEFAULT_CAPACITY);
+		}
+
+		public PayloadBuffer(final int initialCapacity) {
+				this.bytes = new byte[Math.max(16, initialCapacity)];
+		}
+
+		public void reset() {
+				this.length = 0;
+		}
+
+		public int length() {
+				return length;
+		}
+
+		public boolean isEmpty() {
+				return length == 0;
+		}
+
+		/**
+		 * Returns the backing array, only the first {@link #length()} bytes are valid. The array is
+		 * replaced when the buffer grows, so it must not be kept across writes.
+		 *
+		 * @return the backing array
+		 */
+		public byte[] array() {
+				return bytes;
+		}
+
+		/**
+		 * Makes room for at least {@code count} more bytes, to be written directly into
+		 * {@link #array()} starting at {@link #length()} and committed with {@link #advance(int)}.
+		 *
+		 * @param count the number of bytes to make room for
+		 * @return the number of bytes which can be written without growing
+		 */
+		public int ensureFree(final int count) {
+				ensureCapacity(length + count);
+				return bytes.length - length;
+		}
+
+		/**
+		 * Commits bytes written directly into {@link #array()}.
+		 *
+		 * @param count the number of bytes written
+		 */
+		public void advance(final int count) {
+				if (count < 0 || length + count > bytes.length) {
+						throw new IndexOutOfBoundsException("Cannot advance by " + count);
+				}
+				length += count;
+		}
+
+		/**
+		 * Drops all bytes after the given length, e.g. to roll back a partially written value.
+		 *
+		 * @param length the new length, at most the current one
+		 */
+		public void truncate(final int length) {
+				if (length < 0 || length > this.length) {
+						throw new IndexOutOfBoundsException("Cannot truncate to " + length);
+				}
+				this.length = length;
+		}
+
+		public byte[] toByteArray() {
+				return Arrays.copyOf(bytes, length);
+		}
+
+		public void write(final int b) {
+				ensureCapacity(length + 1);
+				bytes[length++] = (byte) b;
+		}
+
+		public void write(final byte[] source, final int offset, final int count) {
+				ensureCapacity(length + count);
+				System.arraycopy(source, offset, bytes, length, count);
+				length += count;
+		}
+
+		/**
+		 * Writes the remaining bytes of the given buffer.
+		 *
+		 * @param source the bytes to write, its position is moved to its limit
+		 */
+		public void write(final ByteBuffer source) {
+				final int count = source.remaining();
+				ensureCapacity(length + count);
+				source.get(bytes, length, count);
+				length += count;
+		}
+
+		/**
+		 * Writes the given characters as UTF-8.
+		 *
+		 * @param chars the characters to write
+		 */
+		public void writeUtf8(final CharSequence chars) {
+				final int count = chars.length();
+				ensureCapacity(length + count);
+				for (int i = 0; i < count; i++) {
+						final char c = chars.charAt(i);
+						if (c < 0x80) {
+								bytes[length++] = (byte) c;
+						}
+						else if (c < 0x800) {
+								ensureCapacity(length + 2 + count - i);
+								bytes[length++] = (byte) (0xC0 | (c >> 6));
+								bytes[length++] = (byte) (0x80 | (c & 0x3F));
+						}
+						else if (Character.isHighSurrogate(c) && i + 1 < count
+								&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+								final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+								ensureCapacity(length + 4 + count - i);
+								bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+								bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+								bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+								bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+						}
+						else if (Character.isSurrogate(c)) {
+								bytes[length++] = '?';
+						}
+						else {
+								ensureCapacity(length + 3 + count - i);
+								bytes[length++] = (byte) (0xE0 | (c >> 12));
+								bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+								bytes[length++] = (byte) (0x80 | (c & 0x3F));
+						}
+				}
+		}
+
+		/**
+		 * Returns the number of bytes {@link #writeUtf8(CharSequence)} writes for the given
+		 * characters.
+		 *
+		 * @param chars the characters
+		 * @return the length of their UTF-8 encoding
+		 */
+		public static int utf8Length(final CharSequence chars) {
+				final int count = chars.length();
+				int utf8Length = count;
+				for (int i = 0; i < count; i++) {
+						final char c = chars.charAt(i);
+						if (c >= 0x800) {
+								if (Character.isHighSurrogate(c) && i + 1 < count
+										&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+										utf8Length += 2;
+										i++;
+								}
+								else if (!Character.isSurrogate(c)) {
+										utf8Length += 2;
+								}
+						}
+						else if (c >= 0x80) {
+								utf8Length++;
+						}
+				}
+				return utf8Length;
+		}
+
+		/**
+		 * Writes the value as unsigned variable length integer, seven bits per byte with the
+		 * highest bit set on all but the last byte.
+		 *
+		 * @param value the value to write
+		 */
+		public void writeVarLong(final long value) {
+				ensureCapacity(length + 10);
+				long remaining = value;
+				while ((remaining & ~0x7FL) != 0) {
+						bytes[length++] = (byte) ((remaining & 0x7F) | 0x80);
+						remaining >>>= 7;
+				}
+				bytes[length++] = (byte) remaining;
+		}
+
+		/**
+		 * Writes the value as eight bytes, least significant byte first.
+		 *
+		 * @param value the value to write
+		 */
+		public void writeLongLittleEndian(final long value) {
+				ensureCapacity(length + 8);
+				for (int shift = 0; shift < 64; shift += 8) {
+						bytes[length++] = (byte) (value >>> shift);
+				}
+		}
+
+		/**
+		 * Writes the decimal representation of the given value as ASCII digits.
+		 *
+		 * @param value the value to write
+		 */
+		public void writeLong(final long value) {
+				if (value == Long.MIN_VALUE) {
+						writeUtf8("-9223372036854775808");
+						return;
+				}
+				long remaining = value;
+				if (remaining < 0) {
+						write('-');
+						remaining = -remaining;
+				}
+				final int digits = digits(remaining);
+				ensureCapacity(length + digits);
+				int position = length + digits;
+				do {
+						bytes[--position] = (byte) ('0' + (remaining % 10));
+						remaining /= 10;
+				}
+				while (remaining != 0);
+				length += digits;
+		}
+
+		private static int digits(final long value) {
+				long limit = 10;
+				for (int digits = 1; digits < 19; digits++) {
+						if (value < limit) {
+								return digits;
+						}
+						limit *= 10;
+				}
+				return 19;
+		}
+
+		private void ensureCapacity(final int capacity) {
+				if (capacity > bytes.length) {
+						bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+				}
+		}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.io.IOException;
+
+/**
+ * A compression codec for payloads, see {@link CompressingMqttSender}. Implementations may keep
+ * state between calls (e.g. a reused {@link java.util.zip.Deflater}) and need not be thread-safe.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface PayloadCodec {
+		/**
+		 * @return the id written into the header of compressed payloads, between 1 and 255
+		 */
+		int getId();
+
+		void encode(byte[] payload, int offset, int length, PayloadBuffer out);
+
+		void decode(byte[] payload, int offset, int length, PayloadBuffer out) throws IOException;
+}
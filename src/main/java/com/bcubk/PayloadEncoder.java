@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+/**
+ * Encodes a {@link SeriesSet} into the wire format of a payload, see {@link JsonPayloadWriter} and
+ * {@link BinaryPayloadEncoder}. Implementations may keep state between calls and need not be
+ * thread-safe.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface PayloadEncoder {
+		/**
+		 * Appends the encoded values of the given set to the buffer.
+		 *
+		 * @param seriesSet the values to encode
+		 * @param out       the buffer to write to
+		 */
+		void encode(SeriesSet seriesSet, PayloadBuffer out);
+
+		/**
+		 * Appends one chunk of a report to the buffer: the values starting at {@code from}, as many
+		 * as fit into {@code maxLength} bytes but at least one. The chunk carries the cycle id and
+		 * its sequence number, the total number of chunks of the cycle is written as a placeholder
+		 * and set by {@link #setChunkCount(PayloadBuffer, int)} once it is known.
+		 *
+		 * @param seriesSet the values to encode
+		 * @param from      the index of the first value to encode
+		 * @param maxLength the maximum length of the chunk in bytes
+		 * @param cycleId   the id of the report cycle
+		 * @param sequence  the sequence number of the chunk, starting at zero
+		 * @param out       the empty buffer to write to
+		 * @return the index of the first value which was not encoded
+		 */
+		int encodeChunk(SeriesSet seriesSet, int from, int maxLength, long cycleId, int sequence,
+				PayloadBuffer out);
+
+		/**
+		 * Sets the total number of chunks of a chunk written by
+		 * {@link #encodeChunk(SeriesSet, int, int, long, int, PayloadBuffer)}.
+		 *
+		 * @param chunk  the buffer holding the chunk
+		 * @param chunks the total number of chunks of the cycle
+		 */
+		void setChunkCount(PayloadBuffer chunk, int chunks);
+}
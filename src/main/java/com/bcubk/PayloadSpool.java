@@ -0,0 +1,352 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * An append-only, disk-backed FIFO of encoded payloads. The spool is a ring of memory-mapped
+ * segment files of a fixed size in one directory. Payloads are appended to the newest segment and
+ * read from the oldest one; a segment is deleted once it is fully read. When more than
+ * {@code maxSegments} segments exist the oldest segment is evicted, so the disk usage is capped at
+ * {@code maxSegments * segmentSize} bytes.
+ * <p>
+ * Each segment starts with a header holding its write and read position, so the spool survives a
+ * restart of the JVM. Records are a four byte length followed by the payload.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class PayloadSpool implements Closeable {
+		private static final Logger LOGGER = LoggerFactory.getLogger(PayloadSpool.class);
+
+		private static final int MAGIC = 0x4d515350; // "MQSP"
+		private static final int WRITE_POSITION = 4;
+		private static final int READ_POSITION = 8;
+		private static final int HEADER_SIZE = 16;
+		private static final String SUFFIX = ".spool";
+
+		private final File directory;
+		private final int segmentSize;
+		private final int maxSegments;
+		private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+		private long nextSequence;
+		private long evictedRecords;
+		private long records;
+
+		/**
+		 * Opens the spool in the given directory, recovering the segments left there.
+		 *
+		 * @param directory   the directory of the segment files, created if necessary
+		 * @param segmentSize the size of one segment file in bytes
+		 * @param maxSegments the maximum number of segment files
+		 * @throws IOException if the directory or a segment could not be opened
+		 */
+		public PayloadSpool(final File directory, final int segmentSize, final int maxSegments)
+				throws IOException {
+				if (segmentSize <= HEADER_SIZE + 4) {
+						throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+				}
+				if (maxSegments < 2) {
+						throw new IllegalArgumentException("maxSegments must be at least 2: " + maxSegments);
+				}
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+						throw new IOException("Unable to create spool directory " + directory);
+				}
+				this.directory = directory;
+				this.segmentSize = segmentSize;
+				this.maxSegments = maxSegments;
+				recover();
+		}
+
+		/**
+		 * Appends a payload, evicting the oldest segment if the spool is full.
+		 *
+		 * @param payload the payload
+		 * @param offset  the offset of the first byte
+		 * @param length  the number of bytes
+		 * @throws IOException if a new segment could not be created
+		 */
+		public synchronized void append(final byte[] payload, final int offset, final int length)
+				throws IOException {
+				if (length + 4 > segmentSize - HEADER_SIZE) {
+						throw new IllegalArgumentException(
+								"Payload of " + length + " bytes exceeds the segment size " + segmentSize);
+				}
+				Segment segment = segments.peekLast();
+				if (segment == null || segment.remaining() < length + 4) {
+						segment = newSegment();
+				}
+				segment.append(payload, offset, length);
+				records++;
+		}
+
+		/**
+		 * Copies the oldest payload into the given buffer without removing it.
+		 *
+		 * @param out the buffer to copy the payload to, it is reset first
+		 * @return {@code false} if the spool is empty
+		 */
+		public synchronized boolean peek(final PayloadBuffer out) {
+				final Segment segment = firstReadable();
+				if (segment == null) {
+						return false;
+				}
+				out.reset();
+				segment.peek(out);
+				return true;
+		}
+
+		/**
+		 * Removes the oldest payload.
+		 */
+		public synchronized void remove() {
+				final Segment segment = firstReadable();
+				if (segment == null) {
+						return;
+				}
+				segment.skip();
+				records--;
+				if (!segment.isReadable() && segments.size() > 1) {
+						segments.poll();
+						segment.delete();
+				}
+		}
+
+		public synchronized boolean isEmpty() {
+				return records == 0;
+		}
+
+		/**
+		 * @return the number of payloads in the spool
+		 */
+		public synchronized long size() {
+				return records;
+		}
+
+		/**
+		 * @return the number of payloads lost because their segment was evicted
+		 */
+		public synchronized long getEvicted() {
+				return evictedRecords;
+		}
+
+		/**
+		 * Writes the modified segments to disk.
+		 */
+		public synchronized void flush() {
+				for (Segment segment : segments) {
+						segment.buffer.force();
+				}
+		}
+
+		public synchronized void close() {
+				flush();
+				segments.clear();
+		}
+
+		private Segment firstReadable() {
+				final Iterator<Segment> iterator = segments.iterator();
+				while (iterator.hasNext()) {
+						final Segment segment = iterator.next();
+						if (segment.isReadable()) {
+								return segment;
+						}
+						if (iterator.hasNext()) {
+								iterator.remove();
+								segment.delete();
+						}
+				}
+				return null;
+		}
+
+		private Segment newSegment() throws IOException {
+				while (segments.size() >= maxSegments) {
+						final Segment evicted = segments.poll();
+						final int lost = evicted.countReadable();
+						evictedRecords += lost;
+						records -= lost;
+						evicted.delete();
+						LOGGER.warn("Spool {} is full, evicted {} payloads", directory, lost);
+				}
+				final File file = new File(directory,
+						String.format("%020d", nextSequence++) + SUFFIX);
+				final Segment segment = new Segment(file, map(file));
+				segment.buffer.putInt(0, MAGIC);
+				segment.setWritePosition(HEADER_SIZE);
+				segment.setReadPosition(HEADER_SIZE);
+				segments.add(segment);
+				return segment;
+		}
+
+		private void recover() throws IOException {
+				final File[] files = directory.listFiles(new FilenameFilter() {
+						public boolean accept(final File dir, final String name) {
+								return name.endsWith(SUFFIX);
+						}
+				});
+				if (files == null) {
+						return;
+				}
+				Arrays.sort(files);
+				for (File file : files) {
+						final String name = file.getName();
+						try {
+								nextSequence = Math.max(nextSequence,
+										Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+						}
+						catch (NumberFormatException e) {
+								continue;
+						}
+						if (file.length() != segmentSize) {
+								LOGGER.warn("Ignoring spool segment {} of a different size", file);
+								continue;
+						}
+						final Segment segment = new Segment(file, map(file));
+						if (segment.buffer.getInt(0) != MAGIC) {
+								LOGGER.warn("Ignoring corrupt spool segment {}", file);
+								continue;
+						}
+						if (!segment.isConsistent()) {
+								// e.g. a header torn by a crash, the payloads cannot be trusted anymore
+								LOGGER.warn("Discarding the payloads of corrupt spool segment {}", file);
+								segment.setWritePosition(HEADER_SIZE);
+								segment.setReadPosition(HEADER_SIZE);
+						}
+						segments.add(segment);
+						records += segment.countReadable();
+				}
+				while (segments.size() > maxSegments) {
+						final Segment evicted = segments.poll();
+						records -= evicted.countReadable();
+						evicted.delete();
+				}
+		}
+
+		private MappedByteBuffer map(final File file) throws IOException {
+				try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+						randomAccessFile.setLength(segmentSize);
+						return randomAccessFile.getChannel()
+								.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+				}
+		}
+
+		private final class Segment {
+				private final File file;
+				private final MappedByteBuffer buffer;
+
+				private Segment(final File file, final MappedByteBuffer buffer) {
+						this.file = file;
+						this.buffer = buffer;
+				}
+
+				private int writePosition() {
+						return buffer.getInt(WRITE_POSITION);
+				}
+
+				private int readPosition() {
+						return buffer.getInt(READ_POSITION);
+				}
+
+				private void setWritePosition(final int position) {
+						buffer.putInt(WRITE_POSITION, position);
+				}
+
+				private void setReadPosition(final int position) {
+						buffer.putInt(READ_POSITION, position);
+				}
+
+				private int remaining() {
+						return segmentSize - writePosition();
+				}
+
+				private boolean isReadable() {
+						return readPosition() < writePosition();
+				}
+
+				private void append(final byte[] payload, final int offset, final int length) {
+						final int position = writePosition();
+						buffer.putInt(position, length);
+						final ByteBuffer target = buffer.duplicate();
+						target.position(position + 4);
+						target.put(payload, offset, length);
+						// publish the record by moving the write position last
+						setWritePosition(position + 4 + length);
+				}
+
+				private void peek(final PayloadBuffer out) {
+						final int position = readPosition();
+						final ByteBuffer source = buffer.duplicate();
+						source.position(position + 4);
+						source.limit(position + 4 + buffer.getInt(position));
+						out.write(source);
+				}
+
+				private void skip() {
+						final int position = readPosition();
+						setReadPosition(position + 4 + buffer.getInt(position));
+				}
+
+				/**
+				 * @return {@code true} if the positions of the header are within the segment and the
+				 * records between them end exactly at the write position
+				 */
+				private boolean isConsistent() {
+						final int end = writePosition();
+						int position = readPosition();
+						if (position < HEADER_SIZE || position > end || end > segmentSize) {
+								return false;
+						}
+						while (position < end) {
+								final int length = end - position >= 4 ? buffer.getInt(position) : -1;
+								if (length < 0 || length > end - position - 4) {
+										return false;
+								}
+								position += 4 + length;
+						}
+						return true;
+				}
+
+				private int countReadable() {
+						int count = 0;
+						final int end = writePosition();
+						for (int position = readPosition(); position < end;
+								position += 4 + buffer.getInt(position)) {
+								count++;
+						}
+						return count;
+				}
+
+				private void delete() {
+						if (!file.delete()) {
+								LOGGER.warn("Unable to delete spool segment {}", file);
+						}
+				}
+		}
+}
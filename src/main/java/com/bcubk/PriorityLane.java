@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.MetricFilter;
+
+/**
+ * A class of metrics which is published separately from the others, see
+ * {@link MqttReporter.Builder#withLane(PriorityLane)}. A metric belongs to the first lane whose
+ * filter matches it. With an {@link AsyncMqttSender} every lane has a queue of its own, its own
+ * {@link QualityOfService} and an optional rate limit, and the lanes are drained in the order
+ * they were added. While messages of a lane wait for the broker, the lanes behind it may keep
+ * only every n-th message, see {@link #sampleUnderBackpressure(int)}.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public final class PriorityLane {
+		private static final int DEFAULT_MAX_QUEUED = 100;
+
+		private final String name;
+		private final MetricFilter filter;
+		private QualityOfService qos = QualityOfService.AT_LEAST_ONCE;
+		private int maxQueued = DEFAULT_MAX_QUEUED;
+		private double maxMessagesPerSecond;
+		private int keepOneIn = 1;
+
+		private PriorityLane(final String name, final MetricFilter filter) {
+				this.name = name;
+				this.filter = filter;
+		}
+
+		/**
+		 * @param name   the name of the lane, used in the accounting of the sender
+		 * @param filter the metrics of the lane
+		 * @return a lane with {@link QualityOfService#AT_LEAST_ONCE}, a queue of 100 messages and
+		 * no rate limit
+		 */
+		public static PriorityLane of(final String name, final MetricFilter filter) {
+				return new PriorityLane(name, filter);
+		}
+
+		/**
+		 * Publish the messages of the lane with the given quality of service.
+		 *
+		 * @param qos a {@link QualityOfService}
+		 * @return {@code this}
+		 */
+		public PriorityLane withQos(final QualityOfService qos) {
+				this.qos = qos;
+				return this;
+		}
+
+		/**
+		 * Queue at most {@code maxQueued} messages of the lane, the oldest one is dropped to make
+		 * room for a new one.
+		 *
+		 * @param maxQueued the capacity of the queue of the lane
+		 * @return {@code this}
+		 */
+		public PriorityLane withMaxQueued(final int maxQueued) {
+				if (maxQueued < 1) {
+						throw new IllegalArgumentException("maxQueued must be positive: " + maxQueued);
+				}
+				this.maxQueued = maxQueued;
+				return this;
+		}
+
+		/**
+		 * Publish at most {@code maxMessagesPerSecond} messages of the lane, with bursts of up to
+		 * one second worth of messages. Messages beyond wait in the queue of the lane.
+		 *
+		 * @param maxMessagesPerSecond the rate limit, {@code 0} for none
+		 * @return {@code this}
+		 */
+		public PriorityLane withRateLimit(final double maxMessagesPerSecond) {
+				if (!(maxMessagesPerSecond >= 0)) {
+						throw new IllegalArgumentException("maxMessagesPerSecond must not be negative");
+				}
+				this.maxMessagesPerSecond = maxMessagesPerSecond;
+				return this;
+		}
+
+		/**
+		 * Keep only one of {@code keepOneIn} messages of the lane while a lane before it has
+		 * queued messages or the in-flight window of the sender is full.
+		 *
+		 * @param keepOneIn the sampling rate under backpressure, {@code 1} keeps all messages
+		 * @return {@code this}
+		 */
+		public PriorityLane sampleUnderBackpressure(final int keepOneIn) {
+				if (keepOneIn < 1) {
+						throw new IllegalArgumentException("keepOneIn must be positive: " + keepOneIn);
+				}
+				this.keepOneIn = keepOneIn;
+				return this;
+		}
+
+		public String getName() {
+				return name;
+		}
+
+		MetricFilter getFilter() {
+				return filter;
+		}
+
+		QualityOfService getQos() {
+				return qos;
+		}
+
+		int getMaxQueued() {
+				return maxQueued;
+		}
+
+		double getMaxMessagesPerSecond() {
+				return maxMessagesPerSecond;
+		}
+
+		int getKeepOneIn() {
+				return keepOneIn;
+		}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-establishes a lost broker connection in the background with an exponential backoff. The
+ * delay starts at the initial delay, doubles with every failed attempt up to the maximum delay and
+ * is reset by a successful attempt.
+ *
+ * @author Baris Cubukcuoglu
+ */
+class ReconnectScheduler {
+		private static final Logger LOGGER = LoggerFactory.getLogger(ReconnectScheduler.class);
+
+		static final long DEFAULT_INITIAL_DELAY = TimeUnit.SECONDS.toMillis(1);
+		static final long DEFAULT_MAX_DELAY = TimeUnit.MINUTES.toMillis(2);
+
+		/**
+		 * The connection to re-establish.
+		 */
+		interface Connection {
+				/**
+				 * Connects if not connected yet.
+				 *
+				 * @throws MqttException if the attempt failed, another attempt is scheduled then
+				 */
+				void reconnect() throws MqttException;
+
+				String describe();
+		}
+
+		private final Connection connection;
+		private boolean enabled = true;
+		private long initialDelay = DEFAULT_INITIAL_DELAY;
+		private long maxDelay = DEFAULT_MAX_DELAY;
+		private long nextDelay = DEFAULT_INITIAL_DELAY;
+		private ScheduledExecutorService executor;
+		private ScheduledFuture<?> task;
+		private boolean closed;
+		private int reconnects;
+
+		ReconnectScheduler(final Connection connection) {
+				this.connection = connection;
+		}
+
+		synchronized void setBackoff(final long initialDelay, final long maxDelay,
+				final TimeUnit unit) {
+				this.enabled = true;
+				this.initialDelay = unit.toMillis(initialDelay);
+				this.maxDelay = Math.max(this.initialDelay, unit.toMillis(maxDelay));
+				this.nextDelay = this.initialDelay;
+		}
+
+		synchronized void disable() {
+				this.enabled = false;
+		}
+
+		synchronized void open() {
+				this.closed = false;
+		}
+
+		synchronized boolean isPending() {
+				return this.task != null;
+		}
+
+		/**
+		 * @return the number of successful background reconnects
+		 */
+		synchronized int getReconnects() {
+				return this.reconnects;
+		}
+
+		synchronized void schedule() {
+				if (this.closed || !this.enabled || this.task != null) {
+						return;
+				}
+				if (this.executor == null) {
+						this.executor = Executors.newSingleThreadScheduledExecutor(
+								new ReconnectThreadFactory());
+				}
+				final long delay = this.nextDelay;
+				this.nextDelay = Math.min(delay * 2, this.maxDelay);
+				LOGGER.info("Reconnecting to {} in {} ms", connection.describe(), delay);
+				this.task = this.executor.schedule(new Attempt(), delay, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Cancels a pending attempt and stops scheduling new ones until {@link #open()}.
+		 */
+		synchronized void close() {
+				this.closed = true;
+				if (this.task != null) {
+						this.task.cancel(false);
+						this.task = null;
+				}
+				if (this.executor != null) {
+						this.executor.shutdownNow();
+						this.executor = null;
+				}
+				this.nextDelay = this.initialDelay;
+		}
+
+		private synchronized boolean isClosed() {
+				return closed;
+		}
+
+		private synchronized void succeeded() {
+				this.task = null;
+				this.nextDelay = this.initialDelay;
+				this.reconnects++;
+		}
+
+		private synchronized void failed() {
+				this.task = null;
+				schedule();
+		}
+
+		private class Attempt implements Runnable {
+				public void run() {
+						if (isClosed()) {
+								return;
+						}
+						try {
+								connection.reconnect();
+								LOGGER.info("Reconnected to {}", connection.describe());
+								succeeded();
+						}
+						catch (MqttException e) {
+								LOGGER.warn("Unable to reconnect to {}", connection.describe(), e);
+								failed();
+						}
+				}
+		}
+
+		private static class ReconnectThreadFactory implements ThreadFactory {
+				public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "mqtt-reporter-reconnect");
+						thread.setDaemon(true);
+						return thread;
+				}
+		}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+/**
+ * A {@link MqttSender} which re-establishes a lost connection in the background. A reconnect
+ * is not visible through {@link #isConnected()} between two reports, so the reporter compares
+ * {@link #getReconnects()} with its value of the previous report to notice that subscribers may
+ * have missed payloads, e.g. to publish a keyframe.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface ReconnectingMqttSender extends MqttSender {
+		/**
+		 * @return the number of successful background reconnects, of all connections if the
+		 * sender has several
+		 */
+		int getReconnects();
+}
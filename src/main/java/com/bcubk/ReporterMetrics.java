@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of a {@link MqttReporter} and its {@link MqttSender}, registered in a
+ * {@link MetricRegistry} under a common name:
+ * <ul>
+ * <li>{@code report}, {@code encode} and {@code publish}: timers of the report cycle, the
+ * encoding of the payload and its publishing</li>
+ * <li>{@code payload-bytes}: a histogram of the payload sizes</li>
+ * <li>{@code sent} and {@code failures}: meters of the published payloads and the failed connects
+ * and publishes</li>
+ * <li>{@code dropped-series}: a meter of the metrics left out by the cardinality limit</li>
+ * <li>{@code reconnects}, {@code in-flight}, {@code queued}, {@code dropped}, {@code spooled} and
+ * {@code evicted}: gauges of the sender, as far as it provides them</li>
+ * </ul>
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class ReporterMetrics {
+		public static final String DEFAULT_NAME = "mqtt-reporter";
+
+		private final MetricRegistry registry;
+		private final String name;
+		private final Timer report;
+		private final Timer encode;
+		private final Timer publish;
+		private final Histogram payloadBytes;
+		private final Meter sent;
+		private final Meter failures;
+		private final Meter droppedSeries;
+
+		public ReporterMetrics(final MetricRegistry registry) {
+				this(registry, DEFAULT_NAME);
+		}
+
+		public ReporterMetrics(final MetricRegistry registry, final String name) {
+				this.registry = registry;
+				this.name = name;
+				this.report = registry.timer(MetricRegistry.name(name, "report"));
+				this.encode = registry.timer(MetricRegistry.name(name, "encode"));
+				this.publish = registry.timer(MetricRegistry.name(name, "publish"));
+				this.payloadBytes = registry.histogram(MetricRegistry.name(name, "payload-bytes"));
+				this.sent = registry.meter(MetricRegistry.name(name, "sent"));
+				this.failures = registry.meter(MetricRegistry.name(name, "failures"));
+				this.droppedSeries = registry.meter(MetricRegistry.name(name, "dropped-series"));
+		}
+
+		/**
+		 * @return a filter matching all metrics which are not registered by this instance
+		 */
+		public MetricFilter excluding() {
+				final String namePrefix = name + ".";
+				return new MetricFilter() {
+						public boolean matches(final String metricName, final Metric metric) {
+								return !metricName.startsWith(namePrefix);
+						}
+				};
+		}
+
+		/**
+		 * Registers the gauges the given sender provides, see {@link InstrumentedMqttSender}, which
+		 * include those of the senders it decorates. Gauges of a sender registered before are
+		 * replaced.
+		 *
+		 * @param mqttSender the sender of the reporter
+		 */
+		void register(final MqttSender mqttSender) {
+				if (mqttSender instanceof InstrumentedMqttSender) {
+						for (Map.Entry<String, Gauge<?>> gauge
+								: ((InstrumentedMqttSender) mqttSender).getGauges().entrySet()) {
+								register(gauge.getKey(), gauge.getValue());
+						}
+				}
+		}
+
+		private void register(final String gauge, final Gauge<?> metric) {
+				final String metricName = MetricRegistry.name(name, gauge);
+				registry.remove(metricName);
+				registry.register(metricName, metric);
+		}
+
+		void reported(final long nanos) {
+				report.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		void encoded(final long nanos) {
+				encode.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		void published(final long nanos) {
+				publish.update(nanos, TimeUnit.NANOSECONDS);
+		}
+
+		void sent(final int bytes) {
+				payloadBytes.update(bytes);
+				sent.mark();
+		}
+
+		void failed() {
+				failures.mark();
+		}
+
+		void droppedSeries(final int series) {
+				droppedSeries.mark(series);
+		}
+}
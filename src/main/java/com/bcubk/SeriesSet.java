@@ -16,32 +16,333 @@
 
 package com.bcubk;
 
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Created by baris on 26.12.16.
+ * A set of discrete time values stored in columns: parallel primitive arrays for the timestamps,
+ * the values and the name ids. Names are kept once in a name table and referenced by their id,
+ * which stays stable until the name is released by {@link #releaseName(int)} as often as its id
+ * was taken by {@link #nameId(String)}, so several owners may share the id of a name.
+ * {@link #resetSeries()} only rewinds the size, so the columns and the name table are reused from
+ * one report cycle to the next.
+ *
+ * @author Baris Cubukcuoglu
  */
 public class SeriesSet {
-		private final List<DiscreteTimeValue> discreteTimeValues = new LinkedList<>();
+		private static final int DEFAULT_CAPACITY = 64;
+		private static final ValueType[] VALUE_TYPES = ValueType.values();
+
+		/**
+		 * The type of a value, doubles are stored by their raw long bits.
+		 */
+		public enum ValueType {
+				LONG, DOUBLE, TEXT
+		}
+
+		/**
+		 * Decides which values are kept by {@link #retain(Filter)}.
+		 */
+		public interface Filter {
+				boolean accept(SeriesSet seriesSet, int index);
+		}
+
+		private final List<String> names = new ArrayList<>();
+		private final Map<String, Integer> nameIds = new HashMap<>();
+		private byte[][] nameBytes = new byte[DEFAULT_CAPACITY][];
+		private int[] nameReferences = new int[DEFAULT_CAPACITY];
+		private int[] freeNameIds = new int[0];
+		private int freeNameCount;
+
+		private int size;
+		private long[] timeStamps;
+		private int[] nameIdColumn;
+		private long[] values;
+		private byte[] valueTypes;
+		private String[] texts;
+
+		public SeriesSet() {
+				this(DEFAULT_CAPACITY);
+		}
+
+		public SeriesSet(final int initialCapacity) {
+				final int capacity = Math.max(1, initialCapacity);
+				this.timeStamps = new long[capacity];
+				this.nameIdColumn = new int[capacity];
+				this.values = new long[capacity];
+				this.valueTypes = new byte[capacity];
+		}
 
 		public boolean isEmpty() {
-				return this.discreteTimeValues.isEmpty();
+				return this.size == 0;
 		}
 
 		public int size() {
-				return discreteTimeValues.size();
+				return size;
 		}
 
 		public void addDiscreteTimeValue(final DiscreteTimeValue discreteTimeValue) {
-				this.discreteTimeValues.add(discreteTimeValue);
+				add(nameId(discreteTimeValue.getName()), discreteTimeValue.getTimeStamp(),
+						discreteTimeValue.getValue());
 		}
 
+		public void add(final int nameId, final long timeStamp, final String text) {
+				final int index = append(nameId, timeStamp, 0L, ValueType.TEXT);
+				if (this.texts == null) {
+						this.texts = new String[this.timeStamps.length];
+				}
+				this.texts[index] = text;
+		}
+
+		public void add(final int nameId, final long timeStamp, final long value) {
+				append(nameId, timeStamp, value, ValueType.LONG);
+		}
+
+		public void add(final int nameId, final long timeStamp, final double value) {
+				append(nameId, timeStamp, Double.doubleToRawLongBits(value), ValueType.DOUBLE);
+		}
+
+		public void add(final String name, final long timeStamp, final long value) {
+				add(nameId(name), timeStamp, value);
+		}
+
+		public void add(final String name, final long timeStamp, final double value) {
+				add(nameId(name), timeStamp, value);
+		}
+
+		/**
+		 * Removes all values but keeps the columns and the name table for reuse.
+		 */
 		public void resetSeries() {
-				this.discreteTimeValues.clear();
+				if (this.texts != null) {
+						Arrays.fill(this.texts, 0, this.size, null);
+				}
+				this.size = 0;
+		}
+
+		/**
+		 * Removes all values which are not accepted by the given filter. The remaining values keep
+		 * their order and the columns are compacted in place.
+		 *
+		 * @param filter the filter deciding which values to keep
+		 */
+		public void retain(final Filter filter) {
+				int kept = 0;
+				for (int i = 0; i < this.size; i++) {
+						if (!filter.accept(this, i)) {
+								continue;
+						}
+						if (kept != i) {
+								this.timeStamps[kept] = this.timeStamps[i];
+								this.nameIdColumn[kept] = this.nameIdColumn[i];
+								this.values[kept] = this.values[i];
+								this.valueTypes[kept] = this.valueTypes[i];
+								if (this.texts != null) {
+										this.texts[kept] = this.texts[i];
+								}
+						}
+						kept++;
+				}
+				if (this.texts != null) {
+						Arrays.fill(this.texts, kept, this.size, null);
+				}
+				this.size = kept;
+		}
+
+		/**
+		 * Returns the id of the given name, adding it to the name table if necessary. Every call
+		 * takes a reference to the name, which {@link #releaseName(int)} gives back.
+		 *
+		 * @param name the name
+		 * @return the id of the name
+		 */
+		public int nameId(final String name) {
+				final Integer id = this.nameIds.get(name);
+				if (id != null) {
+						// a name looked up again and again without release stays for good
+						if (this.nameReferences[id] < Integer.MAX_VALUE) {
+								this.nameReferences[id]++;
+						}
+						return id;
+				}
+				final int newId;
+				if (this.freeNameCount > 0) {
+						newId = this.freeNameIds[--this.freeNameCount];
+						this.names.set(newId, name);
+				}
+				else {
+						newId = this.names.size();
+						this.names.add(name);
+				}
+				if (newId >= this.nameReferences.length) {
+						this.nameReferences = Arrays.copyOf(this.nameReferences,
+								Math.max(newId + 1, this.nameReferences.length * 2));
+				}
+				this.nameReferences[newId] = 1;
+				this.nameIds.put(name, newId);
+				return newId;
+		}
+
+		/**
+		 * Gives back a reference to a name taken by {@link #nameId(String)}, and removes the name
+		 * from the name table once the last one is given back. Its id may be handed out again for
+		 * another name then, so the caller must not use the id afterwards and no value of the
+		 * current series may refer to it.
+		 *
+		 * @param nameId the id of the name to release
+		 */
+		public void releaseName(final int nameId) {
+				final String name = getName(nameId);
+				if (name == null) {
+						return;
+				}
+				if (this.nameReferences[nameId] == Integer.MAX_VALUE
+						|| --this.nameReferences[nameId] > 0) {
+						return;
+				}
+				this.nameIds.remove(name);
+				this.names.set(nameId, null);
+				if (nameId < this.nameBytes.length) {
+						this.nameBytes[nameId] = null;
+				}
+				if (this.freeNameCount == this.freeNameIds.length) {
+						this.freeNameIds = Arrays.copyOf(this.freeNameIds,
+								Math.max(16, this.freeNameCount * 2));
+				}
+				this.freeNameIds[this.freeNameCount++] = nameId;
 		}
 
+		/**
+		 * Returns the name of the given id, or {@code null} if the name was released.
+		 *
+		 * @param nameId the id of the name
+		 * @return the name
+		 */
+		public String getName(final int nameId) {
+				return this.names.get(nameId);
+		}
+
+		/**
+		 * Returns the UTF-8 bytes of the name of the given id. They are encoded once and cached
+		 * until the name is released, the returned array must not be modified.
+		 *
+		 * @param nameId the id of the name
+		 * @return the UTF-8 bytes of the name
+		 */
+		public byte[] getNameUtf8(final int nameId) {
+				if (nameId >= this.nameBytes.length) {
+						this.nameBytes = Arrays.copyOf(this.nameBytes,
+								Math.max(this.names.size(), this.nameBytes.length * 2));
+				}
+				byte[] bytes = this.nameBytes[nameId];
+				if (bytes == null) {
+						final String name = getName(nameId);
+						if (name == null) {
+								throw new IllegalArgumentException("Unknown name id " + nameId);
+						}
+						bytes = name.getBytes(StandardCharsets.UTF_8);
+						this.nameBytes[nameId] = bytes;
+				}
+				return bytes;
+		}
+
+		public int getNameCount() {
+				return this.names.size();
+		}
+
+		public int getNameId(final int index) {
+				return this.nameIdColumn[checkIndex(index)];
+		}
+
+		public long getTimeStamp(final int index) {
+				return this.timeStamps[checkIndex(index)];
+		}
+
+		public ValueType getValueType(final int index) {
+				return VALUE_TYPES[this.valueTypes[checkIndex(index)]];
+		}
+
+		public long getLong(final int index) {
+				return this.values[checkIndex(index)];
+		}
+
+		public double getDouble(final int index) {
+				return Double.longBitsToDouble(this.values[checkIndex(index)]);
+		}
+
+		public String getText(final int index) {
+				checkIndex(index);
+				return this.texts == null ? null : this.texts[index];
+		}
+
+		/**
+		 * Returns a read-only view of the values. The {@link DiscreteTimeValue}s are created on
+		 * access, so prefer the column accessors on hot paths.
+		 *
+		 * @return a view of the values
+		 */
 		public List<DiscreteTimeValue> getDiscreteTimeValues() {
-				return discreteTimeValues;
+				return new AbstractList<DiscreteTimeValue>() {
+						@Override
+						public DiscreteTimeValue get(final int index) {
+								return new DiscreteTimeValue(getTimeStamp(index), formatValue(index),
+										getName(getNameId(index)));
+						}
+
+						@Override
+						public int size() {
+								return size;
+						}
+				};
+		}
+
+		private String formatValue(final int index) {
+				switch (getValueType(index)) {
+						case LONG:
+								return Long.toString(getLong(index));
+						case DOUBLE:
+								return Double.toString(getDouble(index));
+						default:
+								return getText(index);
+				}
+		}
+
+		private int append(final int nameId, final long timeStamp, final long value,
+				final ValueType valueType) {
+				if (nameId < 0 || nameId >= this.names.size() || this.names.get(nameId) == null) {
+						throw new IllegalArgumentException("Unknown name id " + nameId);
+				}
+				if (this.size == this.timeStamps.length) {
+						grow();
+				}
+				final int index = this.size++;
+				this.timeStamps[index] = timeStamp;
+				this.nameIdColumn[index] = nameId;
+				this.values[index] = value;
+				this.valueTypes[index] = (byte) valueType.ordinal();
+				return index;
+		}
+
+		private void grow() {
+				final int capacity = this.timeStamps.length * 2;
+				this.timeStamps = Arrays.copyOf(this.timeStamps, capacity);
+				this.nameIdColumn = Arrays.copyOf(this.nameIdColumn, capacity);
+				this.values = Arrays.copyOf(this.values, capacity);
+				this.valueTypes = Arrays.copyOf(this.valueTypes, capacity);
+				if (this.texts != null) {
+						this.texts = Arrays.copyOf(this.texts, capacity);
+				}
+		}
+
+		private int checkIndex(final int index) {
+				if (index < 0 || index >= this.size) {
+						throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+				}
+				return index;
 		}
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.util.Arrays;
+
+/**
+ * Splits a {@link SeriesSet} into one set per shard by {@link ShardedMqttSender#shardOf(String,
+ * int)}, or by another assignment of names to sets, see {@link #shardOf(int, String)}. The shard
+ * and the name id in the shard set are resolved once per name id of the source set, together
+ * with the name to notice when a released id was handed out for another name. Every source id
+ * holds its own reference to the shard name, so a name which came back under another source id
+ * keeps its shard id when the stale entry of its old source id is replaced.
+ *
+ * @author Baris Cubukcuoglu
+ */
+class ShardPartitioner {
+		private final SeriesSet[] shards;
+		private String[] names = new String[64];
+		private int[] shardOf = new int[64];
+		private int[] shardNameIds = new int[64];
+
+		ShardPartitioner(final int shards) {
+				this.shards = new SeriesSet[shards];
+				for (int i = 0; i < shards; i++) {
+						this.shards[i] = new SeriesSet();
+				}
+		}
+
+		int getShards() {
+				return shards.length;
+		}
+
+		SeriesSet getShard(final int shard) {
+				return shards[shard];
+		}
+
+		void partition(final SeriesSet source) {
+				for (SeriesSet shard : shards) {
+						shard.resetSeries();
+				}
+				ensureCapacity(source.getNameCount());
+				for (int i = 0; i < source.size(); i++) {
+						final int nameId = source.getNameId(i);
+						final String name = source.getName(nameId);
+						if (names[nameId] != name) {
+								if (names[nameId] != null) {
+										shards[shardOf[nameId]].releaseName(shardNameIds[nameId]);
+								}
+								names[nameId] = name;
+								shardOf[nameId] = shardOf(nameId, name);
+								shardNameIds[nameId] = shards[shardOf[nameId]].nameId(name);
+						}
+						final SeriesSet shard = shards[shardOf[nameId]];
+						final int shardNameId = shardNameIds[nameId];
+						final long timestamp = source.getTimeStamp(i);
+						switch (source.getValueType(i)) {
+								case LONG:
+										shard.add(shardNameId, timestamp, source.getLong(i));
+										break;
+								case DOUBLE:
+										shard.add(shardNameId, timestamp, source.getDouble(i));
+										break;
+								default:
+										shard.add(shardNameId, timestamp, source.getText(i));
+						}
+				}
+		}
+
+		/**
+		 * @return the set the values of the given name go to
+		 */
+		int shardOf(final int nameId, final String name) {
+				return ShardedMqttSender.shardOf(name, shards.length);
+		}
+
+		private void ensureCapacity(final int nameCount) {
+				if (nameCount > names.length) {
+						final int capacity = Math.max(nameCount, names.length * 2);
+						names = Arrays.copyOf(names, capacity);
+						shardOf = Arrays.copyOf(shardOf, capacity);
+						shardNameIds = Arrays.copyOf(shardNameIds, capacity);
+				}
+		}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link MqttSender} which spreads metrics over several senders, each with its own connection
+ * and topic. A {@link MqttReporter} using it assigns every metric to a shard by a stable hash of
+ * its name, see {@link #shardOf(String, int)}, encodes one payload per shard and publishes the
+ * shards concurrently on a thread per shard. Payloads handed to {@link #send(byte[], int, int)}
+ * directly go to the first shard. A shard which is down does not stop the others: it is
+ * reconnected before its next publish and its payloads are dropped until then.
+ * <p>
+ * The reporter only shards if this is its sender itself. To compress or spool the payloads, wrap
+ * the shards instead, the decorators of this library reject a sharded delegate.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class ShardedMqttSender implements ReconnectingMqttSender, BufferingMqttSender,
+		InstrumentedMqttSender {
+		private static final Logger LOGGER = LoggerFactory.getLogger(ShardedMqttSender.class);
+
+		private final List<MqttSender> shards;
+		private final AtomicInteger reconnects = new AtomicInteger();
+		private ExecutorService executor;
+
+		public ShardedMqttSender(final List<? extends MqttSender> shards) {
+				if (shards.isEmpty()) {
+						throw new IllegalArgumentException("At least one shard is required");
+				}
+				this.shards = new ArrayList<>(shards);
+		}
+
+		/**
+		 * Creates a {@link SimpleMqttSender} per shard, publishing to {@code topic/0} up to
+		 * {@code topic/(shards - 1)}.
+		 *
+		 * @param hostname the host of the broker
+		 * @param port     the port of the broker
+		 * @param qos      the quality of service of all shards
+		 * @param topic    the prefix of the topics of the shards
+		 * @param shards   the number of shards
+		 * @return a sender with {@code shards} connections
+		 */
+		public static ShardedMqttSender forTopics(final String hostname, final int port,
+				final QualityOfService qos, final String topic, final int shards) {
+				final List<MqttSender> senders = new ArrayList<>(shards);
+				final String clientId = MqttClient.generateClientId();
+				for (int i = 0; i < shards; i++) {
+						senders.add(new SimpleMqttSender(hostname, port, qos, topic + "/" + i, null,
+								clientId + "-" + i));
+				}
+				return new ShardedMqttSender(senders);
+		}
+
+		/**
+		 * Returns the shard of a metric name. The hash only depends on the name, so a metric
+		 * stays on its shard across restarts and JVMs.
+		 *
+		 * @param name   the metric name
+		 * @param shards the number of shards
+		 * @return the shard, between {@code 0} and {@code shards - 1}
+		 */
+		public static int shardOf(final String name, final int shards) {
+				int hash = name.hashCode();
+				// spread the bits, String.hashCode() varies little in the upper bits for similar names
+				hash ^= hash >>> 16;
+				hash *= 0x85EBCA6B;
+				hash ^= hash >>> 13;
+				return (hash & Integer.MAX_VALUE) % shards;
+		}
+
+		/**
+		 * Rejects a sharded sender as the delegate of a decorator. The reporter would only see the
+		 * decorator and publish all metrics to the first shard.
+		 *
+		 * @param delegate the delegate of a decorator
+		 * @return the delegate
+		 */
+		static MqttSender requireUnsharded(final MqttSender delegate) {
+				if (delegate instanceof ShardedMqttSender) {
+						throw new IllegalArgumentException(
+								"Cannot wrap a ShardedMqttSender, wrap each of its shards instead");
+				}
+				return delegate;
+		}
+
+		public int getShards() {
+				return shards.size();
+		}
+
+		/**
+		 * Connects all shards which are not connected yet. Fails only if no shard is connected
+		 * afterwards, the others are reconnected with the next {@link #send(List, int[])}.
+		 */
+		public synchronized void connect() throws IllegalStateException, IOException,
+				MqttException {
+				if (executor == null) {
+						executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+								private final AtomicInteger count = new AtomicInteger();
+
+								public Thread newThread(final Runnable runnable) {
+										final Thread thread = new Thread(runnable,
+												"mqtt-reporter-shard-" + count.getAndIncrement());
+										thread.setDaemon(true);
+										return thread;
+								}
+						});
+				}
+				// connect as many shards as possible, a failed one is retried with the next send
+				MqttException mqttFailure = null;
+				IOException ioFailure = null;
+				for (int i = 0; i < shards.size(); i++) {
+						final MqttSender shard = shards.get(i);
+						if (shard.isConnected()) {
+								continue;
+						}
+						try {
+								shard.connect();
+						}
+						catch (MqttException e) {
+								LOGGER.warn("Unable to connect shard {}", i, e);
+								mqttFailure = e;
+						}
+						catch (IOException e) {
+								LOGGER.warn("Unable to connect shard {}", i, e);
+								ioFailure = e;
+						}
+						catch (IllegalStateException e) {
+								// a background reconnect of the shard won the race
+								LOGGER.debug("Shard {} connected meanwhile", i, e);
+						}
+				}
+				if (isConnected()) {
+						return;
+				}
+				if (mqttFailure != null) {
+						throw mqttFailure;
+				}
+				if (ioFailure != null) {
+						throw ioFailure;
+				}
+		}
+
+		public void send(final String jsonPayload) {
+				shards.get(0).send(jsonPayload);
+		}
+
+		public void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				shards.get(0).send(payload, offset, length);
+		}
+
+		/**
+		 * Publishes the payloads of every shard, the shards concurrently and the payloads of a
+		 * shard in order. A disconnected shard is reconnected first. Returns once all shards
+		 * finished, the remaining payloads of a failed shard are dropped.
+		 *
+		 * @param payloads the payloads per shard
+		 * @param counts   the number of payloads per shard
+		 * @throws MqttException the first failure, if all shards with payloads failed
+		 */
+		public void send(final List<List<PayloadBuffer>> payloads, final int[] counts)
+				throws MqttException {
+				final ExecutorService executor = this.executor;
+				if (executor == null) {
+						throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+				}
+				final List<Future<Void>> futures = new ArrayList<>(shards.size());
+				final List<Integer> published = new ArrayList<>(shards.size());
+				for (int i = 0; i < shards.size(); i++) {
+						if (counts[i] > 0) {
+								futures.add(executor.submit(new ShardPublish(shards.get(i), payloads.get(i),
+										counts[i], reconnects)));
+								published.add(i);
+						}
+				}
+				MqttException failure = null;
+				int failed = 0;
+				boolean interrupted = false;
+				for (int i = 0; i < futures.size(); i++) {
+						while (true) {
+								try {
+										futures.get(i).get();
+										break;
+								}
+								catch (InterruptedException e) {
+										interrupted = true;
+								}
+								catch (ExecutionException e) {
+										LOGGER.warn("Unable to publish shard {}, dropping its payloads", published.get(i),
+												e.getCause());
+										if (failure == null) {
+												failure = e.getCause() instanceof MqttException ? (MqttException) e.getCause()
+														: new MqttException(e.getCause());
+										}
+										failed++;
+										break;
+								}
+						}
+				}
+				if (interrupted) {
+						Thread.currentThread().interrupt();
+				}
+				if (failure != null && failed == futures.size()) {
+						throw failure;
+				}
+		}
+
+		public synchronized void disconnect() throws MqttException {
+				if (executor != null) {
+						executor.shutdown();
+						executor = null;
+				}
+				MqttException failure = null;
+				for (MqttSender shard : shards) {
+						try {
+								shard.disconnect();
+						}
+						catch (MqttException e) {
+								LOGGER.warn("Unable to disconnect shard", e);
+								failure = e;
+						}
+				}
+				if (failure != null) {
+						throw failure;
+				}
+		}
+
+		/**
+		 * @return {@code true} if at least one shard is connected
+		 */
+		public boolean isConnected() {
+				for (MqttSender shard : shards) {
+						if (shard.isConnected()) {
+								return true;
+						}
+				}
+				return false;
+		}
+
+		/**
+		 * @return the sum of the background reconnects of all shards and of the shards
+		 * reconnected before a publish
+		 */
+		public int getReconnects() {
+				int reconnects = this.reconnects.get();
+				for (MqttSender shard : shards) {
+						if (shard instanceof ReconnectingMqttSender) {
+								reconnects += ((ReconnectingMqttSender) shard).getReconnects();
+						}
+				}
+				return reconnects;
+		}
+
+		/**
+		 * @return {@code true} if all shards buffer while disconnected
+		 */
+		public boolean buffersWhileDisconnected() {
+				for (MqttSender shard : shards) {
+						if (!(shard instanceof BufferingMqttSender)
+								|| !((BufferingMqttSender) shard).buffersWhileDisconnected()) {
+								return false;
+						}
+				}
+				return true;
+		}
+
+		/**
+		 * @return the gauges of the first shard, since the gauges of the shards share their names,
+		 * and the {@code reconnects} of all shards
+		 */
+		public Map<String, Gauge<?>> getGauges() {
+				final Map<String, Gauge<?>> gauges = new LinkedHashMap<>();
+				if (shards.get(0) instanceof InstrumentedMqttSender) {
+						gauges.putAll(((InstrumentedMqttSender) shards.get(0)).getGauges());
+				}
+				gauges.put("reconnects", new Gauge<Integer>() {
+						public Integer getValue() {
+								return getReconnects();
+						}
+				});
+				return gauges;
+		}
+
+		private static final class ShardPublish implements Callable<Void> {
+				private final MqttSender shard;
+				private final List<PayloadBuffer> payloads;
+				private final int count;
+				private final AtomicInteger reconnects;
+
+				private ShardPublish(final MqttSender shard, final List<PayloadBuffer> payloads,
+						final int count, final AtomicInteger reconnects) {
+						this.shard = shard;
+						this.payloads = payloads;
+						this.count = count;
+						this.reconnects = reconnects;
+				}
+
+				public Void call() throws IOException, MqttException {
+						if (!shard.isConnected()) {
+								try {
+										shard.connect();
+										reconnects.incrementAndGet();
+								}
+								catch (IOException | MqttException e) {
+										// a sender which buffers while disconnected still takes the payloads
+										LOGGER.debug("Unable to reconnect shard", e);
+								}
+								catch (IllegalStateException e) {
+										// a background reconnect of the shard won the race
+										LOGGER.debug("Shard connected meanwhile", e);
+								}
+						}
+						for (int i = 0; i < count; i++) {
+								final PayloadBuffer payload = payloads.get(i);
+								shard.send(payload.array(), 0, payload.length());
+						}
+						return null;
+				}
+		}
+}
@@ -16,21 +16,50 @@
 
 package com.bcubk;
 
+import com.codahale.metrics.Gauge;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MqttSender} which keeps one long-lived connection to the broker. The connection is
+ * opened once by {@link #connect()} and kept open by the MQTT keep-alive until
+ * {@link #disconnect()} is called. If the connection is lost (or the first connect fails) it is
+ * re-established in the background with an exponential backoff.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class SimpleMqttSender implements ReconnectingMqttSender, InstrumentedMqttSender,
+		SubtopicMqttSender {
+		private static final Logger LOGGER = LoggerFactory.getLogger(SimpleMqttSender.class);
+
+		static final int DEFAULT_KEEP_ALIVE_INTERVAL = 60;
 
-public class SimpleMqttSender implements MqttSender {
 		private final QualityOfService qos;
 		private final String topic;
 		private final String clientId;
 		private InetSocketAddress address;
 		private MqttClient mqttClient;
 
+		private final ReconnectScheduler reconnectScheduler =
+				new ReconnectScheduler(new ClientConnection());
+		private int keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+		private boolean retained;
+
 		public SimpleMqttSender(String hostname, int port, String topic) {
 				this(hostname, port, QualityOfService.EXACTLY_ONCE, topic, null,
 						MqttClient.generateClientId());
@@ -62,41 +91,208 @@ public class SimpleMqttSender implements MqttSender {
 				if (address == null) {
 						this.address = new InetSocketAddress(hostname, port);
 				}
+				else {
+						this.address = address;
+				}
 				this.qos = qos;
 				this.topic = topic;
 				this.clientId = clientId;
 		}
 
-		public void connect() throws IllegalStateException, IOException, MqttException {
+		/**
+		 * Use the given MQTT keep-alive interval for the connection.
+		 *
+		 * @param keepAliveInterval the keep-alive interval in seconds, {@code 0} disables it
+		 * @return {@code this}
+		 */
+		public SimpleMqttSender withKeepAliveInterval(final int keepAliveInterval) {
+				this.keepAliveInterval = keepAliveInterval;
+				return this;
+		}
+
+		/**
+		 * Publish retained messages, so the broker keeps the last one of the topic and of every
+		 * subtopic for new subscribers, e.g. for the {@link NameDictionary} announced by the
+		 * reporter.
+		 *
+		 * @return {@code this}
+		 */
+		public SimpleMqttSender withRetainedMessages() {
+				this.retained = true;
+				return this;
+		}
+
+		/**
+		 * Reconnect in the background with an exponential backoff starting at {@code initialDelay}
+		 * and doubling up to {@code maxDelay}. Defaults to 1 second up to 2 minutes.
+		 *
+		 * @param initialDelay the delay before the first reconnect attempt
+		 * @param maxDelay     the upper bound of the delay between two attempts
+		 * @param unit         the unit of both delays
+		 * @return {@code this}
+		 */
+		public SimpleMqttSender withReconnectBackoff(final long initialDelay,
+				final long maxDelay, final TimeUnit unit) {
+				this.reconnectScheduler.setBackoff(initialDelay, maxDelay, unit);
+				return this;
+		}
+
+		/**
+		 * Do not reconnect in the background, a lost connection is only re-established by the next
+		 * call to {@link #connect()}.
+		 *
+		 * @return {@code this}
+		 */
+		public SimpleMqttSender withoutReconnect() {
+				this.reconnectScheduler.disable();
+				return this;
+		}
+
+		public synchronized void connect()
+				throws IllegalStateException, IOException, MqttException {
 				if (isConnected()) {
 						throw new IllegalStateException("Already connected");
 				}
+				if (this.reconnectScheduler.isPending()) {
+						throw new IOException("Reconnect to " + serverUri() + " in progress");
+				}
 
-				this.mqttClient = new MqttClient(
-						this.address.getHostName() + ":" + this.address.getPort(),
-						clientId, new MemoryPersistence());
-				this.mqttClient.connect();
-
+				this.reconnectScheduler.open();
+				if (this.mqttClient == null) {
+						this.mqttClient = new MqttClient(serverUri(), clientId,
+								new MemoryPersistence());
+						this.mqttClient.setCallback(new ConnectionLostCallback());
+				}
+				try {
+						this.mqttClient.connect(connectOptions());
+				}
+				catch (MqttException e) {
+						this.reconnectScheduler.schedule();
+						throw e;
+				}
 		}
 
 		public void send(final String jsonPayload) {
-				MqttMessage mqttMessage = new MqttMessage();
-				mqttMessage.setQos(this.qos.getQos());
-				mqttMessage.setPayload(jsonPayload.getBytes());
+				final byte[] payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
 				try {
-						mqttClient.publish(this.topic, mqttMessage);
+						send(payload, 0, payload.length);
 				}
 				catch (MqttException e) {
-						e.printStackTrace();
+						LOGGER.warn("Unable to publish to {}", this.topic, e);
 				}
 		}
 
-		public void disconnect() throws MqttException {
-				this.mqttClient.close();
+		public void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				publish(this.topic, payload, offset, length);
+		}
+
+		public void send(final String subtopic, final byte[] payload, final int offset,
+				final int length) throws MqttException {
+				publish(this.topic + '/' + subtopic, payload, offset, length);
+		}
+
+		private void publish(final String topic, final byte[] payload, final int offset,
+				final int length) throws MqttException {
+				final MqttClient client = this.mqttClient;
+				if (client == null || !client.isConnected()) {
+						throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+				}
+				final MqttMessage mqttMessage = new MqttMessage();
+				mqttMessage.setQos(this.qos.getQos());
+				mqttMessage.setRetained(this.retained);
+				// MqttMessage takes the whole array, only slices have to be copied. The publish
+				// blocks until the message is delivered, so the caller may reuse the array afterwards.
+				if (offset == 0 && length == payload.length) {
+						mqttMessage.setPayload(payload);
+				}
+				else {
+						mqttMessage.setPayload(Arrays.copyOfRange(payload, offset, offset + length));
+				}
+				client.publish(topic, mqttMessage);
+		}
+
+		public synchronized void disconnect() throws MqttException {
+				this.reconnectScheduler.close();
+
+				final MqttClient client = this.mqttClient;
+				this.mqttClient = null;
+				if (client != null) {
+						try {
+								if (client.isConnected()) {
+										client.disconnect();
+								}
+						}
+						finally {
+								client.close();
+						}
+				}
 		}
 
 		public boolean isConnected() {
-				return this.mqttClient != null && this.mqttClient.isConnected();
+				final MqttClient client = this.mqttClient;
+				return client != null && client.isConnected();
+		}
+
+		/**
+		 * @return the number of successful background reconnects
+		 */
+		public int getReconnects() {
+				return this.reconnectScheduler.getReconnects();
+		}
+
+		public Map<String, Gauge<?>> getGauges() {
+				final Map<String, Gauge<?>> gauges = new LinkedHashMap<>();
+				gauges.put("reconnects", new Gauge<Integer>() {
+						public Integer getValue() {
+								return getReconnects();
+						}
+				});
+				return gauges;
+		}
+
+		private String serverUri() {
+				return serverUri(this.address);
+		}
+
+		static String serverUri(final InetSocketAddress address) {
+				final String host = address.getHostString();
+				if (host.contains("://")) {
+						return host + ":" + address.getPort();
+				}
+				return "tcp://" + host + ":" + address.getPort();
+		}
+
+		private MqttConnectOptions connectOptions() {
+				final MqttConnectOptions options = new MqttConnectOptions();
+				options.setKeepAliveInterval(this.keepAliveInterval);
+				return options;
+		}
+
+		private class ClientConnection implements ReconnectScheduler.Connection {
+				public void reconnect() throws MqttException {
+						final MqttClient client = mqttClient;
+						if (client != null && !client.isConnected()) {
+								client.connect(connectOptions());
+						}
+				}
+
+				public String describe() {
+						return serverUri();
+				}
+		}
+
+		private class ConnectionLostCallback implements MqttCallback {
+				public void connectionLost(final Throwable cause) {
+						LOGGER.warn("Lost connection to {}", serverUri(), cause);
+						reconnectScheduler.schedule();
+				}
+
+				public void messageArrived(final String topic, final MqttMessage message) {
+				}
+
+				public void deliveryComplete(final IMqttDeliveryToken token) {
+				}
 		}
 
 }
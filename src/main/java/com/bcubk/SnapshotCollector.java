@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Takes the snapshots of histograms and timers and keeps their statistics in primitive arrays
+ * indexed by the position the metric was added at. With an {@link Executor} the snapshots are
+ * taken in chunks by up to {@code parallelism} tasks, the reporting thread works on chunks as
+ * well and waits for the rest. The results are read back in the order the metrics were added.
+ * With {@link #exportSketches(double, int)} a {@link HistogramSketch} of the values of every
+ * snapshot is built and written to text on the same threads.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class SnapshotCollector {
+		static final int CHUNK_SIZE = 16;
+
+		private static final int MEAN = 0;
+		private static final int STDDEV = 1;
+		private static final int P50 = 2;
+		private static final int P75 = 3;
+		private static final int P95 = 4;
+		private static final int P98 = 5;
+		private static final int P99 = 6;
+		private static final int P999 = 7;
+		private static final int STATISTICS = 8;
+
+		private final Executor executor;
+		private final int parallelism;
+
+		private Sampling[] samplings = new Sampling[64];
+		private long[] extremes = new long[2 * 64];
+		private double[] statistics = new double[STATISTICS * 64];
+		private double[] scales = new double[64];
+		private HistogramSketch[] sketches = new HistogramSketch[64];
+		private String[] sketchTexts = new String[64];
+		private double sketchAccuracy;
+		private int sketchBuckets;
+		private int size;
+
+		SnapshotCollector(final Executor executor, final int parallelism) {
+				this.executor = executor;
+				this.parallelism = parallelism;
+		}
+
+		/**
+		 * Builds a sketch of the values of every snapshot, see {@link #getSketch(int)}.
+		 *
+		 * @param relativeAccuracy the relative accuracy of the sketches
+		 * @param maxBuckets       the maximum number of buckets per sign
+		 */
+		void exportSketches(final double relativeAccuracy, final int maxBuckets) {
+				this.sketchAccuracy = relativeAccuracy;
+				this.sketchBuckets = maxBuckets;
+		}
+
+		boolean isExportingSketches() {
+				return sketchBuckets > 0;
+		}
+
+		void reset() {
+				Arrays.fill(samplings, 0, size, null);
+				Arrays.fill(sketchTexts, 0, size, null);
+				size = 0;
+		}
+
+		/**
+		 * Adds a metric whose snapshot is taken by the next {@link #collect()}.
+		 *
+		 * @param sampling the histogram or timer
+		 * @return the index of the statistics of the metric
+		 */
+		int add(final Sampling sampling) {
+				return add(sampling, 1d);
+		}
+
+		/**
+		 * Adds a metric whose snapshot is taken by the next {@link #collect()}.
+		 *
+		 * @param sampling the histogram or timer
+		 * @param scale    the factor to scale the values of the sketch with, e.g. to convert
+		 *                 durations
+		 * @return the index of the statistics of the metric
+		 */
+		int add(final Sampling sampling, final double scale) {
+				if (size == samplings.length) {
+						final int capacity = size * 2;
+						samplings = Arrays.copyOf(samplings, capacity);
+						extremes = Arrays.copyOf(extremes, 2 * capacity);
+						statistics = Arrays.copyOf(statistics, STATISTICS * capacity);
+						scales = Arrays.copyOf(scales, capacity);
+						sketches = Arrays.copyOf(sketches, capacity);
+						sketchTexts = Arrays.copyOf(sketchTexts, capacity);
+				}
+				samplings[size] = sampling;
+				scales[size] = scale;
+				return size++;
+		}
+
+		/**
+		 * Takes the snapshots of all added metrics and returns once all statistics are available.
+		 */
+		void collect() {
+				final int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+				final int helpers = executor == null ? 0 : Math.min(chunks - 1, parallelism - 1);
+				if (helpers <= 0) {
+						take(0, size);
+						return;
+				}
+
+				final Chunks work = new Chunks(chunks);
+				for (int i = 0; i < helpers; i++) {
+						try {
+								executor.execute(work);
+						}
+						catch (RejectedExecutionException e) {
+								// the reporting thread takes over the remaining chunks
+								break;
+						}
+				}
+				work.run();
+				work.await();
+		}
+
+		long getMax(final int index) {
+				return extremes[2 * index];
+		}
+
+		long getMin(final int index) {
+				return extremes[2 * index + 1];
+		}
+
+		double getMean(final int index) {
+				return statistics[STATISTICS * index + MEAN];
+		}
+
+		double getStdDev(final int index) {
+				return statistics[STATISTICS * index + STDDEV];
+		}
+
+		double getMedian(final int index) {
+				return statistics[STATISTICS * index + P50];
+		}
+
+		double get75thPercentile(final int index) {
+				return statistics[STATISTICS * index + P75];
+		}
+
+		double get95thPercentile(final int index) {
+				return statistics[STATISTICS * index + P95];
+		}
+
+		double get98thPercentile(final int index) {
+				return statistics[STATISTICS * index + P98];
+		}
+
+		double get99thPercentile(final int index) {
+				return statistics[STATISTICS * index + P99];
+		}
+
+		double get999thPercentile(final int index) {
+				return statistics[STATISTICS * index + P999];
+		}
+
+		/**
+		 * @return the text form of the sketch of the metric at the given index
+		 */
+		String getSketch(final int index) {
+				return sketchTexts[index];
+		}
+
+		private void take(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+						final Snapshot snapshot = samplings[i].getSnapshot();
+						extremes[2 * i] = snapshot.getMax();
+						extremes[2 * i + 1] = snapshot.getMin();
+						final int offset = STATISTICS * i;
+						statistics[offset + MEAN] = snapshot.getMean();
+						statistics[offset + STDDEV] = snapshot.getStdDev();
+						statistics[offset + P50] = snapshot.getMedian();
+						statistics[offset + P75] = snapshot.get75thPercentile();
+						statistics[offset + P95] = snapshot.get95thPercentile();
+						statistics[offset + P98] = snapshot.get98thPercentile();
+						statistics[offset + P99] = snapshot.get99thPercentile();
+						statistics[offset + P999] = snapshot.get999thPercentile();
+						if (sketchBuckets > 0) {
+								sketchTexts[i] = sketch(i, snapshot);
+						}
+				}
+		}
+
+		private String sketch(final int index, final Snapshot snapshot) {
+				// the sketch of a position is reused, it is only touched by the thread taking it
+				HistogramSketch sketch = sketches[index];
+				if (sketch == null) {
+						sketch = new HistogramSketch(sketchAccuracy, sketchBuckets);
+						sketches[index] = sketch;
+				}
+				else {
+						sketch.clear();
+				}
+				final double scale = scales[index];
+				if (snapshot instanceof IntervalReservoir.IntervalSnapshot) {
+						((IntervalReservoir.IntervalSnapshot) snapshot).addTo(sketch, scale);
+				}
+				else {
+						for (long value : snapshot.getValues()) {
+								sketch.add(value * scale);
+						}
+				}
+				return sketch.toString();
+		}
+
+		/**
+		 * The chunks of one {@link #collect()}, claimed one by one by every thread running it.
+		 */
+		private final class Chunks implements Runnable {
+				private final AtomicInteger next = new AtomicInteger();
+				private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+				private final int chunks;
+				private final CountDownLatch done;
+
+				private Chunks(final int chunks) {
+						this.chunks = chunks;
+						this.done = new CountDownLatch(chunks);
+				}
+
+				@Override
+				public void run() {
+						int chunk;
+						while ((chunk = next.getAndIncrement()) < chunks) {
+								try {
+										take(chunk * CHUNK_SIZE, Math.min(size, (chunk + 1) * CHUNK_SIZE));
+								}
+								catch (RuntimeException e) {
+										failure.compareAndSet(null, e);
+								}
+								finally {
+										done.countDown();
+								}
+						}
+				}
+
+				private void await() {
+						boolean interrupted = false;
+						while (true) {
+								try {
+										done.await();
+										break;
+								}
+								catch (InterruptedException e) {
+										// chunks are short, finish them so the arrays are complete
+										interrupted = true;
+								}
+						}
+						if (interrupted) {
+								Thread.currentThread().interrupt();
+						}
+						final RuntimeException e = failure.get();
+						if (e != null) {
+								throw e;
+						}
+				}
+		}
+}
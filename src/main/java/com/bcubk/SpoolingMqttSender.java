@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Gauge;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MqttSender} which stores payloads in a {@link PayloadSpool} while the broker is
+ * unreachable and forwards them once the connection is back. The spool is drained in the
+ * background at a fixed rate, so a reconnect does not publish the whole backlog at once. While the
+ * spool is not empty new payloads are appended to it as well, which keeps them in order.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class SpoolingMqttSender implements ReconnectingMqttSender, BufferingMqttSender,
+		InstrumentedMqttSender {
+		private static final Logger LOGGER = LoggerFactory.getLogger(SpoolingMqttSender.class);
+
+		private static final int DEFAULT_DRAIN_RATE = 10;
+		private static final int MAX_DRAIN_TICKS_PER_SECOND = 100;
+
+		private final MqttSender delegate;
+		private final PayloadSpool spool;
+		private final PayloadBuffer drainBuffer = new PayloadBuffer();
+		private int drainRate = DEFAULT_DRAIN_RATE;
+		private ScheduledExecutorService drainExecutor;
+
+		public SpoolingMqttSender(final MqttSender delegate, final PayloadSpool spool) {
+				this.delegate = ShardedMqttSender.requireUnsharded(delegate);
+				this.spool = spool;
+		}
+
+		/**
+		 * Forward at most {@code messagesPerSecond} spooled payloads per second. Defaults to 10.
+		 *
+		 * @param messagesPerSecond the drain rate
+		 * @return {@code this}
+		 */
+		public SpoolingMqttSender withDrainRate(final int messagesPerSecond) {
+				if (messagesPerSecond < 1) {
+						throw new IllegalArgumentException(
+								"messagesPerSecond must be positive: " + messagesPerSecond);
+				}
+				this.drainRate = messagesPerSecond;
+				return this;
+		}
+
+		/**
+		 * Connects the delegate. A failed connect is only logged, since payloads are spooled until
+		 * the delegate is connected.
+		 */
+		public void connect() throws IllegalStateException {
+				startDrain();
+				try {
+						delegate.connect();
+				}
+				catch (IOException | MqttException e) {
+						LOGGER.debug("Unable to connect, spooling payloads", e);
+				}
+		}
+
+		public void send(final String jsonPayload) {
+				final byte[] payload = jsonPayload.getBytes(StandardCharsets.UTF_8);
+				try {
+						send(payload, 0, payload.length);
+				}
+				catch (MqttException e) {
+						LOGGER.warn("Unable to spool payload", e);
+				}
+		}
+
+		/**
+		 * Publishes the payload if the delegate is connected and nothing is spooled, otherwise the
+		 * payload is appended to the spool.
+		 *
+		 * @throws MqttException if the payload could neither be published nor spooled
+		 */
+		public void send(final byte[] payload, final int offset, final int length)
+				throws MqttException {
+				if (spool.isEmpty() && delegate.isConnected()) {
+						try {
+								delegate.send(payload, offset, length);
+								return;
+						}
+						catch (MqttException e) {
+								LOGGER.debug("Unable to publish, spooling payload", e);
+						}
+				}
+				try {
+						spool.append(payload, offset, length);
+				}
+				catch (IOException | IllegalArgumentException e) {
+						throw new MqttException(e);
+				}
+		}
+
+		public void disconnect() throws MqttException {
+				synchronized (this) {
+						if (drainExecutor != null) {
+								drainExecutor.shutdownNow();
+								drainExecutor = null;
+						}
+				}
+				try {
+						delegate.disconnect();
+				}
+				finally {
+						spool.flush();
+				}
+		}
+
+		/**
+		 * @return the background reconnects of the delegate, {@code 0} if it does not reconnect
+		 */
+		public int getReconnects() {
+				return delegate instanceof ReconnectingMqttSender
+						? ((ReconnectingMqttSender) delegate).getReconnects() : 0;
+		}
+
+		/**
+		 * @return {@code true}, payloads sent while disconnected are spooled
+		 */
+		public boolean buffersWhileDisconnected() {
+				return true;
+		}
+
+		/**
+		 * @return the gauges of the delegate and the {@code spooled} and {@code evicted} payloads
+		 */
+		public Map<String, Gauge<?>> getGauges() {
+				final Map<String, Gauge<?>> gauges = new LinkedHashMap<>();
+				if (delegate instanceof InstrumentedMqttSender) {
+						gauges.putAll(((InstrumentedMqttSender) delegate).getGauges());
+				}
+				gauges.put("spooled", new Gauge<Long>() {
+						public Long getValue() {
+								return spool.size();
+						}
+				});
+				gauges.put("evicted", new Gauge<Long>() {
+						public Long getValue() {
+								return spool.getEvicted();
+						}
+				});
+				return gauges;
+		}
+
+		PayloadSpool getSpool() {
+				return spool;
+		}
+
+		public boolean isConnected() {
+				return delegate.isConnected();
+		}
+
+		private synchronized void startDrain() {
+				if (drainExecutor != null) {
+						return;
+				}
+				final int ticksPerSecond = Math.min(drainRate, MAX_DRAIN_TICKS_PER_SECOND);
+				final long period = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+				drainExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(final Runnable runnable) {
+								final Thread thread = new Thread(runnable, "mqtt-reporter-spool");
+								thread.setDaemon(true);
+								return thread;
+						}
+				});
+				drainExecutor.scheduleAtFixedRate(new Drain(drainRate, ticksPerSecond), period, period,
+						TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return the number of payloads to forward in the given tick, spreading the remainder of
+		 * {@code drainRate / ticksPerSecond} over the ticks of every second
+		 */
+		static int messagesOfTick(final int drainRate, final int ticksPerSecond, final long tick) {
+				final long second = tick % ticksPerSecond;
+				return (int) ((second + 1) * drainRate / ticksPerSecond
+						- second * drainRate / ticksPerSecond);
+		}
+
+		private class Drain implements Runnable {
+				private final int drainRate;
+				private final int ticksPerSecond;
+				private long tick;
+
+				private Drain(final int drainRate, final int ticksPerSecond) {
+						this.drainRate = drainRate;
+						this.ticksPerSecond = ticksPerSecond;
+				}
+
+				public void run() {
+						final int messages = messagesOfTick(drainRate, ticksPerSecond, tick++);
+						for (int i = 0; i < messages && delegate.isConnected(); i++) {
+								if (!spool.peek(drainBuffer)) {
+										return;
+								}
+								try {
+										delegate.send(drainBuffer.array(), 0, drainBuffer.length());
+										spool.remove();
+								}
+								catch (MqttException e) {
+										LOGGER.debug("Unable to forward spooled payload", e);
+										return;
+								}
+								catch (RuntimeException e) {
+										LOGGER.warn("Unable to forward spooled payload", e);
+										return;
+								}
+						}
+				}
+		}
+}
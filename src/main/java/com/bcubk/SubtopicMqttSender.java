@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * A {@link MqttSender} which can also publish to subtopics of its topic, e.g. to keep every
+ * chunk of a {@link NameDictionary} as a retained message of its own.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public interface SubtopicMqttSender extends MqttSender {
+		/**
+		 * Publishes like {@link #send(byte[], int, int)}, but to {@code <topic>/<subtopic>}.
+		 *
+		 * @param subtopic the level appended to the topic of the sender
+		 * @param payload  the encoded payload
+		 * @param offset   the offset of the first byte to publish
+		 * @param length   the number of bytes to publish
+		 * @throws MqttException if the payload could not be published
+		 */
+		void send(final String subtopic, final byte[] payload, final int offset, final int length)
+				throws MqttException;
+}
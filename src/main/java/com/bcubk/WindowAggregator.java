@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import java.util.Arrays;
+
+/**
+ * Rolls the values of several report cycles up into one window. Per name id the minimum, the
+ * maximum, the sum and the count of the numeric values and the last value are kept in primitive
+ * arrays. When the window is complete, the last value is published under the name itself and the
+ * minimum, maximum and average under the name plus {@code .min}, {@code .max} and {@code .avg}.
+ * Minimum and maximum stay integral as long as all values of the window were.
+ *
+ * @author Baris Cubukcuoglu
+ */
+final class WindowAggregator {
+		private static final byte NONE = 0;
+		private static final int MIN = 0;
+		private static final int MAX = 1;
+		private static final int AVG = 2;
+		private static final String[] SUFFIXES = {".min", ".max", ".avg"};
+
+		private final int cycles;
+		private int cycle;
+
+		private String[] names = new String[64];
+		private int[] counts = new int[64];
+		private boolean[] integral = new boolean[64];
+		private long[] minLongs = new long[64];
+		private long[] maxLongs = new long[64];
+		private double[] minDoubles = new double[64];
+		private double[] maxDoubles = new double[64];
+		private double[] sums = new double[64];
+		private long[] lastValues = new long[64];
+		private byte[] lastTypes = new byte[64];
+		private long[] lastTimeStamps = new long[64];
+		private String[] lastTexts = new String[64];
+		private int[] derivedIds = new int[64 * SUFFIXES.length];
+		private int[] baseIds = new int[64];
+
+		WindowAggregator(final int cycles) {
+				this.cycles = cycles;
+				Arrays.fill(derivedIds, -1);
+				Arrays.fill(baseIds, -1);
+		}
+
+		/**
+		 * Returns the name id of the metric a rolled up value was derived from.
+		 *
+		 * @param nameId the name id of a value in the published set
+		 * @return the name id of its metric, or {@code -1} if the value was not derived
+		 */
+		int baseNameIdOf(final int nameId) {
+				final int baseId = nameId < baseIds.length ? baseIds[nameId] : -1;
+				if (baseId < 0) {
+						return -1;
+				}
+				// the id may have been released and handed out again since
+				for (int i = baseId * SUFFIXES.length; i < (baseId + 1) * SUFFIXES.length; i++) {
+						if (derivedIds[i] == nameId) {
+								return baseId;
+						}
+				}
+				return -1;
+		}
+
+		/**
+		 * Adds the values of a report cycle to the window.
+		 *
+		 * @param seriesSet the values of the cycle
+		 * @return {@code true} if the window is complete and should be published
+		 */
+		boolean add(final SeriesSet seriesSet) {
+				ensureCapacity(seriesSet.getNameCount());
+				for (int i = 0; i < seriesSet.size(); i++) {
+						final int nameId = seriesSet.getNameId(i);
+						final String name = seriesSet.getName(nameId);
+						if (names[nameId] != name) {
+								// a new name, or an id released and handed out for another name
+								release(seriesSet, nameId);
+								names[nameId] = name;
+						}
+						final SeriesSet.ValueType valueType = seriesSet.getValueType(i);
+						lastTypes[nameId] = (byte) (valueType.ordinal() + 1);
+						lastValues[nameId] = seriesSet.getLong(i);
+						lastTimeStamps[nameId] = seriesSet.getTimeStamp(i);
+						if (valueType == SeriesSet.ValueType.TEXT) {
+								lastTexts[nameId] = seriesSet.getText(i);
+								continue;
+						}
+						lastTexts[nameId] = null;
+						final boolean isLong = valueType == SeriesSet.ValueType.LONG;
+						final double value = isLong ? seriesSet.getLong(i) : seriesSet.getDouble(i);
+						if (counts[nameId]++ == 0) {
+								integral[nameId] = isLong;
+								minDoubles[nameId] = value;
+								maxDoubles[nameId] = value;
+								sums[nameId] = value;
+								if (isLong) {
+										minLongs[nameId] = seriesSet.getLong(i);
+										maxLongs[nameId] = seriesSet.getLong(i);
+								}
+								continue;
+						}
+						minDoubles[nameId] = Math.min(minDoubles[nameId], value);
+						maxDoubles[nameId] = Math.max(maxDoubles[nameId], value);
+						sums[nameId] += value;
+						if (isLong && integral[nameId]) {
+								minLongs[nameId] = Math.min(minLongs[nameId], seriesSet.getLong(i));
+								maxLongs[nameId] = Math.max(maxLongs[nameId], seriesSet.getLong(i));
+						}
+						else {
+								integral[nameId] = false;
+						}
+				}
+				return ++cycle >= cycles;
+		}
+
+		/**
+		 * Replaces the values of the set with the rolled up values of the window and starts a new
+		 * window.
+		 *
+		 * @param seriesSet the set to publish
+		 */
+		void flush(final SeriesSet seriesSet) {
+				seriesSet.resetSeries();
+				for (int nameId = 0; nameId < names.length; nameId++) {
+						if (lastTypes[nameId] == NONE) {
+								if (names[nameId] != null) {
+										// no values in this window, the metric is gone
+										release(seriesSet, nameId);
+										names[nameId] = null;
+								}
+								continue;
+						}
+						if (names[nameId] == seriesSet.getName(nameId)) {
+								publish(seriesSet, nameId);
+						}
+						lastTypes[nameId] = NONE;
+						lastTexts[nameId] = null;
+						counts[nameId] = 0;
+				}
+				cycle = 0;
+		}
+
+		private void publish(final SeriesSet seriesSet, final int nameId) {
+				final long timestamp = lastTimeStamps[nameId];
+				switch (lastTypes[nameId] - 1) {
+						case 0:
+								seriesSet.add(nameId, timestamp, lastValues[nameId]);
+								break;
+						case 1:
+								seriesSet.add(nameId, timestamp, Double.longBitsToDouble(lastValues[nameId]));
+								break;
+						default:
+								seriesSet.add(nameId, timestamp, lastTexts[nameId]);
+				}
+				if (counts[nameId] == 0) {
+						return;
+				}
+				if (integral[nameId]) {
+						seriesSet.add(derivedId(seriesSet, nameId, MIN), timestamp, minLongs[nameId]);
+						seriesSet.add(derivedId(seriesSet, nameId, MAX), timestamp, maxLongs[nameId]);
+				}
+				else {
+						seriesSet.add(derivedId(seriesSet, nameId, MIN), timestamp, minDoubles[nameId]);
+						seriesSet.add(derivedId(seriesSet, nameId, MAX), timestamp, maxDoubles[nameId]);
+				}
+				seriesSet.add(derivedId(seriesSet, nameId, AVG), timestamp,
+						sums[nameId] / counts[nameId]);
+		}
+
+		private int derivedId(final SeriesSet seriesSet, final int nameId, final int statistic) {
+				final int index = nameId * SUFFIXES.length + statistic;
+				if (derivedIds[index] < 0) {
+						// shared with a metric of the same name, the set keeps it until both released it
+						final int derivedId = seriesSet.nameId(names[nameId] + SUFFIXES[statistic]);
+						if (derivedId >= baseIds.length) {
+								final int length = baseIds.length;
+								baseIds = Arrays.copyOf(baseIds, Math.max(derivedId + 1, length * 2));
+								Arrays.fill(baseIds, length, baseIds.length, -1);
+						}
+						baseIds[derivedId] = nameId;
+						derivedIds[index] = derivedId;
+				}
+				return derivedIds[index];
+		}
+
+		private void release(final SeriesSet seriesSet, final int nameId) {
+				for (int i = nameId * SUFFIXES.length; i < (nameId + 1) * SUFFIXES.length; i++) {
+						if (derivedIds[i] >= 0) {
+								seriesSet.releaseName(derivedIds[i]);
+								derivedIds[i] = -1;
+						}
+				}
+				lastTypes[nameId] = NONE;
+				lastTexts[nameId] = null;
+				counts[nameId] = 0;
+		}
+
+		private void ensureCapacity(final int nameCount) {
+				if (nameCount <= names.length) {
+						return;
+				}
+				final int capacity = Math.max(nameCount, names.length * 2);
+				names = Arrays.copyOf(names, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				integral = Arrays.copyOf(integral, capacity);
+				minLongs = Arrays.copyOf(minLongs, capacity);
+				maxLongs = Arrays.copyOf(maxLongs, capacity);
+				minDoubles = Arrays.copyOf(minDoubles, capacity);
+				maxDoubles = Arrays.copyOf(maxDoubles, capacity);
+				sums = Arrays.copyOf(sums, capacity);
+				lastValues = Arrays.copyOf(lastValues, capacity);
+				lastTypes = Arrays.copyOf(lastTypes, capacity);
+				lastTimeStamps = Arrays.copyOf(lastTimeStamps, capacity);
+				lastTexts = Arrays.copyOf(lastTexts, capacity);
+				final int derived = derivedIds.length;
+				derivedIds = Arrays.copyOf(derivedIds, capacity * SUFFIXES.length);
+				Arrays.fill(derivedIds, derived, derivedIds.length, -1);
+		}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.MetricFilter;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The sender is never connected here, so every message stays queued, except with a
+ * {@link ConnectedClient} which takes the published messages without a broker.
+ *
+ * @author Baris Cubukcuoglu
+ */
+public class AsyncMqttSenderTest {
+
+		private static final byte[] PAYLOAD = {1, 2, 3};
+
+		@Test
+		public void dropOldestWhenQueueIsFull() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.DROP_OLDEST);
+				final Future<Void> oldest = sender.sendAsync(PAYLOAD, 0, 3, null);
+				final Future<Void> queued = sender.sendAsync(PAYLOAD, 0, 3, null);
+				final Future<Void> newest = sender.sendAsync(PAYLOAD, 0, 3, null);
+
+				assertThat(oldest.isDone()).isTrue();
+				assertThat(queued.isDone()).isFalse();
+				assertThat(newest.isDone()).isFalse();
+				assertThat(sender.getQueued()).isEqualTo(2);
+				assertThat(sender.getDropped()).isEqualTo(1L);
+		}
+
+		@Test(expected = MqttException.class)
+		public void dropNewestWhenQueueIsFull() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.DROP_NEWEST);
+				sender.send(PAYLOAD, 0, 3);
+				sender.send(PAYLOAD, 0, 3);
+				sender.send(PAYLOAD, 0, 3);
+		}
+
+		@Test
+		public void blockUntilTimeoutWhenQueueIsFull() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.BLOCK)
+						.withBlockTimeout(50, TimeUnit.MILLISECONDS);
+				sender.sendAsync(PAYLOAD, 0, 3, null);
+				sender.sendAsync(PAYLOAD, 0, 3, null);
+
+				final long start = System.nanoTime();
+				final Future<Void> blocked = sender.sendAsync(PAYLOAD, 0, 3, null);
+
+				assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+						.isGreaterThanOrEqualTo(50);
+				assertThat(blocked.isDone()).isTrue();
+				assertThat(sender.getDropped()).isEqualTo(1L);
+		}
+
+		@Test
+		public void failQueuedMessagesOnDisconnect() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.DROP_OLDEST);
+				final RecordingCallback callback = new RecordingCallback();
+				final Future<Void> queued = sender.sendAsync(PAYLOAD, 0, 3, callback);
+
+				sender.disconnect();
+
+				assertThat(queued.isDone()).isTrue();
+				assertThat(callback.failure).isInstanceOf(MqttException.class);
+				assertThat(sender.getQueued()).isEqualTo(0);
+		}
+
+		@Test
+		public void dropOldestMessageOfAFullLane() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.DROP_OLDEST);
+				sender.useLanes(Arrays.asList(PriorityLane.of("slo", MetricFilter.ALL).withMaxQueued(1),
+						PriorityLane.of("debug", MetricFilter.ALL)));
+
+				sender.send(0, PAYLOAD, 0, 3);
+				sender.send(0, PAYLOAD, 0, 3);
+				sender.send(1, PAYLOAD, 0, 3);
+
+				assertThat(sender.getQueued()).isEqualTo(2);
+				assertThat(sender.getDropped("slo")).isEqualTo(1L);
+				assertThat(sender.getDropped("debug")).isZero();
+				assertThat(sender.getDropped()).isEqualTo(1L);
+		}
+
+		@Test
+		public void sampleLaneWhileLaneBeforeIsBackedUp() throws Exception {
+				final AsyncMqttSender sender = sender(AsyncMqttSender.BackpressurePolicy.DROP_OLDEST);
+				sender.useLanes(Arrays.asList(PriorityLane.of("slo", MetricFilter.ALL),
+						PriorityLane.of("debug", MetricFilter.ALL).sampleUnderBackpressure(2)));
+
+				for (int i = 0; i < 4; i++) {
+						sender.send(1, PAYLOAD, 0, 3);
+				}
+				assertThat(sender.getSampledOut("debug")).isZero();
+
+				sender.send(0, PAYLOAD, 0, 3);
+				for (int i = 0; i < 4; i++) {
+						sender.send(1, PAYLOAD, 0, 3);
+				}
+
+				assertThat(sender.getSampledOut("debug")).isEqualTo(2L);
+				assertThat(sender.getSampledOut("slo")).isZero();
+				assertThat(sender.getQueued()).isEqualTo(7);
+				assertThat(sender.getDropped()).isZero();
+		}
+
+		@Test
+		public void drainRateLimitedLaneWhenTokensAreAvailable() throws Exception {
+				final List<MqttMessage> published = Collections.synchronizedList(
+						new ArrayList<MqttMessage>());
+				final AsyncMqttSender sender = new AsyncMqttSender("tcp://localhost", 1884, "test") {
+						@Override
+						MqttAsyncClient newClient(final String serverUri, final String clientId)
+								throws MqttException {
+								return new ConnectedClient(serverUri, clientId, published);
+						}
+				}.withMaxInFlight(100);
+				sender.useLanes(Collections.singletonList(
+						PriorityLane.of("slo", MetricFilter.ALL).withRateLimit(10)));
+				sender.connect();
+				try {
+						for (int i = 0; i < 15; i++) {
+								sender.send(0, PAYLOAD, 0, 3);
+						}
+
+						// a burst of one second worth of messages, the rest waits for tokens
+						assertThat(published).hasSize(10);
+						assertThat(sender.getQueued()).isEqualTo(5);
+
+						final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+						while (published.size() < 15 && System.nanoTime() < deadline) {
+								Thread.sleep(10);
+						}
+						assertThat(published).hasSize(15);
+						assertThat(sender.getQueued()).isZero();
+				}
+				finally {
+						sender.disconnect();
+				}
+		}
+
+		private static AsyncMqttSender sender(final AsyncMqttSender.BackpressurePolicy policy) {
+				return new AsyncMqttSender("tcp://localhost", 1884, "test").withMaxQueued(2)
+						.withBackpressurePolicy(policy);
+		}
+
+		/**
+		 * A client which is connected without a broker and keeps the published messages in
+		 * flight.
+		 */
+		private static class ConnectedClient extends MqttAsyncClient {
+				private static final IMqttToken COMPLETED = (IMqttToken) Proxy.newProxyInstance(
+						IMqttToken.class.getClassLoader(), new Class<?>[] {IMqttToken.class},
+						new InvocationHandler() {
+								public Object invoke(final Object proxy, final Method method,
+										final Object[] args) {
+										return null;
+								}
+						});
+
+				private final List<MqttMessage> published;
+				private volatile boolean connected;
+
+				private ConnectedClient(final String serverUri, final String clientId,
+						final List<MqttMessage> published) throws MqttException {
+						super(serverUri, clientId, new MemoryPersistence());
+						this.published = published;
+				}
+
+				@Override
+				public IMqttToken connect(final MqttConnectOptions options) {
+						this.connected = true;
+						return COMPLETED;
+				}
+
+				@Override
+				public IMqttDeliveryToken publish(final String topic, final MqttMessage message,
+						final Object context, final IMqttActionListener callback) {
+						this.published.add(message);
+						return null;
+				}
+
+				@Override
+				public IMqttToken disconnect() {
+						this.connected = false;
+						return COMPLETED;
+				}
+
+				@Override
+				public boolean isConnected() {
+						return connected;
+				}
+		}
+
+		private static class RecordingCallback implements AsyncMqttSender.SendCallback {
+				private Throwable failure;
+
+				public void onSuccess() {
+				}
+
+				public void onFailure(final Throwable cause) {
+						this.failure = cause;
+				}
+		}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class BinaryPayloadEncoderTest {
+
+		private SeriesSet seriesSet;
+		private PayloadBuffer buffer;
+
+		@Before
+		public void setUp() throws Exception {
+				this.seriesSet = new SeriesSet();
+				this.buffer = new PayloadBuffer();
+		}
+
+		@Test
+		public void roundTrip() throws Exception {
+				seriesSet.add("app.requests.count", 1482710400L, 42L);
+				seriesSet.add("app.requests.min", 1482710400L, Long.MIN_VALUE);
+				seriesSet.add("app.load", 1482710400L, 0.1d);
+				seriesSet.add("app.load", 1482710399L, Double.NaN);
+				seriesSet.add(seriesSet.nameId("app.version"), 1482710401L, "1.0-ä");
+
+				final SeriesSet decoded = decode(encode());
+
+				assertThat(decoded.size()).isEqualTo(5);
+				for (int i = 0; i < seriesSet.size(); i++) {
+						assertThat(decoded.getName(decoded.getNameId(i)))
+								.isEqualTo(seriesSet.getName(seriesSet.getNameId(i)));
+						assertThat(decoded.getTimeStamp(i)).isEqualTo(seriesSet.getTimeStamp(i));
+						assertThat(decoded.getValueType(i)).isEqualTo(seriesSet.getValueType(i));
+						assertThat(decoded.getLong(i)).isEqualTo(seriesSet.getLong(i));
+						assertThat(decoded.getText(i)).isEqualTo(seriesSet.getText(i));
+				}
+		}
+
+		@Test
+		public void writeSharedTimestampOnce() throws Exception {
+				seriesSet.add("a", 1482710400L, 1L);
+				seriesSet.add("b", 1482710400L, 2L);
+
+				// magic, version, 5 byte timestamp, 2 * (type, name, value), end
+				assertThat(encode().length).isEqualTo(2 + 5 + 2 * 4 + 1);
+		}
+
+		@Test
+		public void encodeEmptySet() throws Exception {
+				assertThat(decode(encode()).isEmpty()).isTrue();
+		}
+
+		@Test
+		public void encodeChunks() throws Exception {
+				for (int i = 0; i < 50; i++) {
+						seriesSet.add("requests" + i, 1482710400L + i % 2, (long) i);
+				}
+				final BinaryPayloadEncoder encoder = new BinaryPayloadEncoder();
+				final BinaryPayloadDecoder decoder = new BinaryPayloadDecoder();
+				final SeriesSet decoded = new SeriesSet();
+				final List<byte[]> chunks = new ArrayList<>();
+				int next = 0;
+				while (next < seriesSet.size()) {
+						buffer.reset();
+						next = encoder.encodeChunk(seriesSet, next, 128, 7L, chunks.size(), buffer);
+						assertThat(buffer.length()).isLessThanOrEqualTo(128);
+						encoder.setChunkCount(buffer, 99);
+						chunks.add(buffer.toByteArray());
+				}
+
+				for (int i = 0; i < chunks.size(); i++) {
+						decoder.decode(chunks.get(i), 0, chunks.get(i).length, decoded);
+						assertThat(decoder.getCycleId()).isEqualTo(7L);
+						assertThat(decoder.getChunk()).isEqualTo(i);
+						assertThat(decoder.getChunks()).isEqualTo(99);
+				}
+				assertThat(chunks.size()).isGreaterThan(1);
+				assertThat(decoded.size()).isEqualTo(50);
+				assertThat(decoded.getLong(49)).isEqualTo(49L);
+				assertThat(decoded.getTimeStamp(49)).isEqualTo(1482710401L);
+		}
+
+		@Test
+		public void resolveNameIdsWithAnnouncedDictionary() throws Exception {
+				seriesSet.add("app.very.long.metric.name.requests.count", 1482710400L, 42L);
+				seriesSet.add("app.very.long.metric.name.load", 1482710400L, 0.5d);
+				final NameDictionary dictionary = new NameDictionary(7L, 100);
+				assertThat(dictionary.update(seriesSet)).isTrue();
+				assertThat(dictionary.update(seriesSet)).isFalse();
+				buffer.reset();
+				new BinaryPayloadEncoder(dictionary).encode(seriesSet, buffer);
+				final byte[] payload = buffer.toByteArray();
+				buffer.reset();
+				dictionary.encode(buffer);
+				final byte[] announcement = buffer.toByteArray();
+
+				final NameDictionary received = new NameDictionary();
+				assertThat(NameDictionary.isNameDictionary(announcement, 0, announcement.length)).isTrue();
+				received.read(announcement, 0, announcement.length);
+				final SeriesSet decoded = new SeriesSet();
+				new BinaryPayloadDecoder().withNameDictionary(received)
+						.decode(payload, 0, payload.length, decoded);
+
+				assertThat(payload.length).isLessThan(encode().length / 2);
+				assertThat(received.getEpoch()).isEqualTo(7L);
+				assertThat(decoded.size()).isEqualTo(2);
+				assertThat(decoded.getName(decoded.getNameId(0)))
+						.isEqualTo("app.very.long.metric.name.requests.count");
+				assertThat(decoded.getDouble(1)).isEqualTo(0.5d);
+		}
+
+		@Test
+		public void resolveNameIdsWithDictionaryAnnouncedInChunks() throws Exception {
+				for (int i = 0; i < 100; i++) {
+						seriesSet.add("app.very.long.metric.name." + i, 1482710400L, (long) i);
+				}
+				final NameDictionary dictionary = new NameDictionary(3L, 1000);
+				dictionary.update(seriesSet);
+				assertThat(dictionary.encodedSize()).isGreaterThan(256);
+				buffer.reset();
+				new BinaryPayloadEncoder(dictionary).encode(seriesSet, buffer);
+				final byte[] payload = buffer.toByteArray();
+
+				final NameDictionary received = new NameDictionary();
+				int chunks = 0;
+				for (int next = 0; next < dictionary.size(); chunks++) {
+						buffer.reset();
+						next = dictionary.encodeChunk(next, 256, buffer);
+						assertThat(buffer.length()).isLessThanOrEqualTo(256);
+						final byte[] announcement = buffer.toByteArray();
+						assertThat(NameDictionary.isNameDictionary(announcement, 0, announcement.length))
+								.isTrue();
+						received.read(announcement, 0, announcement.length);
+				}
+				final SeriesSet decoded = new SeriesSet();
+				new BinaryPayloadDecoder().withNameDictionary(received)
+						.decode(payload, 0, payload.length, decoded);
+
+				assertThat(chunks).isGreaterThan(1);
+				assertThat(received.size()).isEqualTo(100);
+				assertThat(decoded.size()).isEqualTo(100);
+				assertThat(decoded.getName(decoded.getNameId(99))).isEqualTo("app.very.long.metric.name.99");
+				assertThat(decoded.getLong(99)).isEqualTo(99L);
+		}
+
+		@Test
+		public void ignoreNamesOfAnOlderEpoch() throws Exception {
+				seriesSet.add("a", 1L, 1L);
+				final NameDictionary older = new NameDictionary(3L, 100);
+				older.update(seriesSet);
+				seriesSet.add("b", 1L, 2L);
+				final NameDictionary newer = new NameDictionary(4L, 100);
+				newer.update(seriesSet);
+
+				final byte[] newerNames = announce(newer);
+				final byte[] olderNames = announce(older);
+
+				final NameDictionary received = new NameDictionary();
+				received.read(newerNames, 0, newerNames.length);
+				received.read(olderNames, 0, olderNames.length);
+
+				assertThat(received.getEpoch()).isEqualTo(4L);
+				assertThat(received.size()).isEqualTo(2);
+		}
+
+		@Test(expected = IOException.class)
+		public void rejectNameIdsWithoutDictionary() throws Exception {
+				seriesSet.add("a", 1L, 1L);
+				final NameDictionary dictionary = new NameDictionary(1L, 100);
+				dictionary.update(seriesSet);
+				buffer.reset();
+				new BinaryPayloadEncoder(dictionary).encode(seriesSet, buffer);
+				decode(buffer.toByteArray());
+		}
+
+		@Test(expected = IOException.class)
+		public void rejectTruncatedPayload() throws Exception {
+				seriesSet.add("a", 1L, 1L);
+				final byte[] payload = encode();
+				new BinaryPayloadDecoder().decode(payload, 0, payload.length - 1, new SeriesSet());
+		}
+
+		private byte[] encode() {
+				buffer.reset();
+				new BinaryPayloadEncoder().encode(seriesSet, buffer);
+				return buffer.toByteArray();
+		}
+
+		private byte[] announce(final NameDictionary dictionary) {
+				buffer.reset();
+				dictionary.encodeChunk(0, 256, buffer);
+				return buffer.toByteArray();
+		}
+
+		private static SeriesSet decode(final byte[] payload) throws IOException {
+				final SeriesSet decoded = new SeriesSet();
+				assertThat(BinaryPayloadDecoder.isBinaryPayload(payload, 0, payload.length)).isTrue();
+				new BinaryPayloadDecoder().decode(payload, 0, payload.length, decoded);
+				return decoded;
+		}
+}
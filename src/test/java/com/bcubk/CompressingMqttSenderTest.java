@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class CompressingMqttSenderTest {
+
+		private RecordingMqttSender delegate;
+		private byte[] payload;
+
+		@Before
+		public void setUp() throws Exception {
+				this.delegate = new RecordingMqttSender();
+				final StringBuilder json = new StringBuilder("{\"discreteTimeValues\":[");
+				for (int i = 0; i < 100; i++) {
+						json.append("{\"timeStamp\":1482710400,\"value\":\"").append(i)
+								.append("\",\"name\":\"com.bcubk.service.requests.p99\"},");
+				}
+				this.payload = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Test
+		public void passSmallPayloadsUnchanged() throws Exception {
+				new CompressingMqttSender(delegate, DeflatePayloadCodec.deflate()).withMinSize(64)
+						.send(payload, 0, 10);
+
+				assertThat(delegate.payloads.get(0)).isEqualTo(Arrays.copyOf(payload, 10));
+		}
+
+		@Test
+		public void roundTripDeflate() throws Exception {
+				final CompressingMqttSender sender =
+						new CompressingMqttSender(delegate, DeflatePayloadCodec.deflate());
+				sender.send(payload, 0, payload.length);
+				sender.send(payload, 0, payload.length);
+
+				for (byte[] sent : delegate.payloads) {
+						assertThat(sent.length).isLessThan(payload.length / 4);
+						assertThat(sent[0]).isEqualTo((byte) 0);
+						assertThat(sent[1]).isEqualTo((byte) DeflatePayloadCodec.DEFLATE_ID);
+						assertThat(decode(sent)).isEqualTo(payload);
+				}
+		}
+
+		@Test
+		public void writeStandardGzip() throws Exception {
+				new CompressingMqttSender(delegate, DeflatePayloadCodec.gzip())
+						.send(payload, 0, payload.length);
+
+				final byte[] sent = delegate.payloads.get(0);
+				assertThat(decode(sent)).isEqualTo(payload);
+
+				final GZIPInputStream gzip = new GZIPInputStream(
+						new ByteArrayInputStream(sent, 2, sent.length - 2));
+				final ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+				final byte[] chunk = new byte[1024];
+				for (int count = gzip.read(chunk); count >= 0; count = gzip.read(chunk)) {
+						inflated.write(chunk, 0, count);
+				}
+				assertThat(inflated.toByteArray()).isEqualTo(payload);
+		}
+
+		@Test(expected = IOException.class)
+		public void rejectUnknownCodec() throws Exception {
+				CompressingMqttSender.decode(new byte[]{0, 42, 1}, 0, 3, new PayloadBuffer(),
+						DeflatePayloadCodec.deflate());
+		}
+
+		private static byte[] decode(final byte[] sent) throws IOException {
+				final PayloadBuffer out = new PayloadBuffer(16);
+				CompressingMqttSender.decode(sent, 0, sent.length, out,
+						DeflatePayloadCodec.deflate(), DeflatePayloadCodec.gzip());
+				return out.toByteArray();
+		}
+
+		private static class RecordingMqttSender implements MqttSender {
+				private final List<byte[]> payloads = new ArrayList<>();
+
+				public void connect() {
+				}
+
+				public void send(final String jsonPayload) {
+						this.payloads.add(jsonPayload.getBytes(StandardCharsets.UTF_8));
+				}
+
+				public void send(final byte[] payload, final int offset, final int length) {
+						this.payloads.add(Arrays.copyOfRange(payload, offset, offset + length));
+				}
+
+				public void disconnect() {
+				}
+
+				public boolean isConnected() {
+						return true;
+				}
+		}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class HistogramSketchTest {
+
+		@Test
+		public void quantilesWithinRelativeAccuracy() throws Exception {
+				final HistogramSketch sketch = new HistogramSketch(0.01d, 2048);
+				for (int i = 1; i <= 10000; i++) {
+						sketch.add(i);
+				}
+
+				assertThat(sketch.getCount()).isEqualTo(10000L);
+				assertThat(sketch.getQuantile(0.5d)).isCloseTo(5000d, within(50d));
+				assertThat(sketch.getQuantile(0.99d)).isCloseTo(9900d, within(99d));
+				assertThat(sketch.getQuantile(0d)).isCloseTo(1d, within(0.01d));
+		}
+
+		@Test
+		public void mergeMatchesSketchOfAllValues() throws Exception {
+				final HistogramSketch all = new HistogramSketch();
+				final HistogramSketch first = new HistogramSketch();
+				final HistogramSketch second = new HistogramSketch();
+				for (int i = -500; i <= 1000; i++) {
+						all.add(i * 3.5d);
+						(i % 2 == 0 ? first : second).add(i * 3.5d);
+				}
+
+				first.merge(second);
+
+				assertThat(first.toString()).isEqualTo(all.toString());
+				assertThat(first.getQuantile(0.25d)).isEqualTo(all.getQuantile(0.25d));
+		}
+
+		@Test
+		public void parseTextForm() throws Exception {
+				final HistogramSketch sketch = new HistogramSketch();
+				sketch.add(0d);
+				sketch.add(-2d);
+				sketch.add(1d, 3L);
+				sketch.add(1000d);
+
+				final HistogramSketch parsed = HistogramSketch.parse(sketch.toString(), 256);
+
+				assertThat(parsed.toString()).isEqualTo(sketch.toString());
+				assertThat(parsed.getCount()).isEqualTo(6L);
+				assertThat(parsed.getQuantile(0d)).isCloseTo(-2d, within(0.02d));
+				assertThat(parsed.getQuantile(1d)).isCloseTo(1000d, within(10d));
+		}
+
+		@Test
+		public void collapseSmallestBuckets() throws Exception {
+				final HistogramSketch sketch = new HistogramSketch(0.01d, 8);
+				for (int i = 1; i <= 100000; i *= 2) {
+						sketch.add(i);
+				}
+				sketch.add(0.001d);
+
+				assertThat(sketch.getCount()).isEqualTo(18L);
+				assertThat(sketch.toString().split(",").length).isLessThanOrEqualTo(8);
+				assertThat(sketch.getQuantile(1d)).isCloseTo(65536d, within(656d));
+		}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class IntervalReservoirTest {
+
+		@Test
+		public void snapshotOnlyHoldsTheLastInterval() throws Exception {
+				final IntervalReservoir reservoir = new IntervalReservoir();
+				for (int i = 1; i <= 10; i++) {
+						reservoir.update(i);
+				}
+				final Snapshot first = reservoir.getSnapshot();
+				reservoir.update(5000L);
+				final Snapshot second = reservoir.getSnapshot();
+
+				assertThat(first.size()).isEqualTo(10);
+				assertThat(first.getMin()).isEqualTo(1L);
+				assertThat(first.getMax()).isEqualTo(10L);
+				assertThat(first.getMean()).isEqualTo(5.5d);
+				assertThat(second.size()).isEqualTo(1);
+				assertThat(second.getMedian()).isCloseTo(5000d, within(100d));
+				assertThat(reservoir.getSnapshot().size()).isEqualTo(0);
+		}
+
+		@Test
+		public void keepValuesWithinPrecision() throws Exception {
+				final IntervalReservoir reservoir = new IntervalReservoir();
+				for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value *= 3) {
+						reservoir.update(value);
+						final double recorded = reservoir.getSnapshot().getValue(1d);
+						assertThat(Math.abs(recorded - value) / value).isLessThanOrEqualTo(0.02d);
+				}
+				reservoir.update(Long.MAX_VALUE);
+				reservoir.update(-1L);
+				final Snapshot snapshot = reservoir.getSnapshot();
+				assertThat(snapshot.getMin()).isEqualTo(0L);
+				assertThat(snapshot.getValues()).hasSize(2);
+		}
+
+		@Test
+		public void countEveryValueOfConcurrentWriters() throws Exception {
+				final IntervalReservoir reservoir = new IntervalReservoir();
+				final Thread[] writers = new Thread[4];
+				for (int i = 0; i < writers.length; i++) {
+						writers[i] = new Thread(new Runnable() {
+								public void run() {
+										for (int n = 0; n < 100000; n++) {
+												reservoir.update(n);
+										}
+								}
+						});
+						writers[i].start();
+				}
+
+				long counted = 0;
+				for (Thread writer : writers) {
+						while (writer.isAlive()) {
+								counted += reservoir.getSnapshot().size();
+						}
+				}
+				counted += reservoir.getSnapshot().size();
+
+				assertThat(counted).isEqualTo(400000L);
+		}
+}
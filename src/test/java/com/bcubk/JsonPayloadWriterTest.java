@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class JsonPayloadWriterTest {
+
+		private PayloadBuffer buffer;
+		private JsonPayloadWriter writer;
+
+		@Before
+		public void setUp() throws Exception {
+				this.buffer = new PayloadBuffer(16);
+				this.writer = new JsonPayloadWriter();
+		}
+
+		@Test
+		public void writeEmptyPayload() throws Exception {
+				writer.encode(new SeriesSet(), buffer);
+				assertThat(payload()).isEqualTo("{\"discreteTimeValues\":[]}");
+		}
+
+		@Test
+		public void writeValuesLikeGson() throws Exception {
+				final SeriesSet seriesSet = new SeriesSet();
+				seriesSet.add(seriesSet.nameId("app.requests.count"), 42L, -7L);
+				seriesSet.add(seriesSet.nameId("load"), 42L, 0.5d);
+				seriesSet.add(seriesSet.nameId("version"), 42L, "1.0");
+
+				writer.encode(seriesSet, buffer);
+
+				assertThat(payload()).isEqualTo("{\"discreteTimeValues\":["
+						+ "{\"timeStamp\":42,\"value\":\"-7\",\"name\":\"app.requests.count\"},"
+						+ "{\"timeStamp\":42,\"value\":\"0.50\",\"name\":\"load\"},"
+						+ "{\"timeStamp\":42,\"value\":\"1.0\",\"name\":\"version\"}]}");
+		}
+
+		@Test
+		public void escapeNames() throws Exception {
+				final SeriesSet seriesSet = new SeriesSet();
+				seriesSet.add(seriesSet.nameId("a\"b\\c\n\u0001ä€"), 0L, 1L);
+
+				writer.encode(seriesSet, buffer);
+				buffer.reset();
+				writer.encode(seriesSet, buffer);
+
+				assertThat(payload()).contains("\"name\":\"a\\\"b\\\\c\\n\\u0001ä€\"");
+		}
+
+		@Test
+		public void writeChunksWithinMaxLength() throws Exception {
+				final SeriesSet seriesSet = new SeriesSet();
+				for (int i = 0; i < 10; i++) {
+						seriesSet.add(seriesSet.nameId("requests" + i), 42L, (long) i);
+				}
+
+				final PayloadBuffer first = new PayloadBuffer();
+				final int next = writer.encodeChunk(seriesSet, 0, 200, 7L, 0, first);
+				final PayloadBuffer second = new PayloadBuffer();
+				assertThat(writer.encodeChunk(seriesSet, next, 1000, 7L, 1, second)).isEqualTo(10);
+				writer.setChunkCount(first, 2);
+				writer.setChunkCount(second, 2);
+
+				assertThat(next).isBetween(1, 9);
+				assertThat(first.length()).isLessThanOrEqualTo(200);
+				final String chunk = new String(first.array(), 0, first.length(), StandardCharsets.UTF_8);
+				assertThat(chunk).startsWith("{\"chunks\":2         ,\"cycleId\":7,\"chunk\":0,"
+						+ "\"discreteTimeValues\":[{\"timeStamp\":42,\"value\":\"0\",\"name\":\"requests0\"}");
+				assertThat(chunk).endsWith("]}");
+				assertThat(new String(second.array(), 0, second.length(), StandardCharsets.UTF_8))
+						.contains("\"chunk\":1,").endsWith("\"name\":\"requests9\"}]}");
+		}
+
+		@Test
+		public void reuseBuffer() throws Exception {
+				buffer.writeLong(Long.MIN_VALUE);
+				buffer.reset();
+				buffer.writeLong(Long.MAX_VALUE);
+				assertThat(payload()).isEqualTo("9223372036854775807");
+		}
+
+		private String payload() {
+				return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+		}
+}
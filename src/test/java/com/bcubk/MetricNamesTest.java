@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class MetricNamesTest {
+
+		private final SeriesSet seriesSet = new SeriesSet();
+
+		@Test
+		public void keepTheNamesOfAllReportedMetrics() throws Exception {
+				final MetricNames metricNames = new MetricNames("app", seriesSet);
+				final String[] names = new String[20000];
+				for (int i = 0; i < names.length; i++) {
+						names[i] = seriesSet.getName(metricNames.id("m" + i, Statistic.COUNT));
+				}
+				assertThat(metricNames.sweep()).isEqualTo(0);
+				for (int i = 0; i < names.length - 1; i++) {
+						assertThat(seriesSet.getName(metricNames.id("m" + i, Statistic.COUNT)))
+								.isSameAs(names[i]);
+				}
+				assertThat(metricNames.sweep()).isEqualTo(1);
+				assertThat(metricNames.size()).isEqualTo(names.length - 1);
+		}
+
+		@Test
+		public void keepSharedIdUntilAllMetricsOfTheNameAreEvicted() throws Exception {
+				final MetricNames metricNames = new MetricNames("app", seriesSet);
+				final int counter = metricNames.id("requests", Statistic.COUNT);
+				assertThat(metricNames.id("requests.count", Statistic.VALUE)).isEqualTo(counter);
+				metricNames.sweep();
+
+				// the gauge is removed, the counter is still reported
+				assertThat(metricNames.id("requests", Statistic.COUNT)).isEqualTo(counter);
+				assertThat(metricNames.sweep()).isEqualTo(1);
+				seriesSet.add(metricNames.id("requests", Statistic.COUNT), 42L, 1L);
+
+				assertThat(seriesSet.getName(counter)).isEqualTo("app.requests.count");
+				assertThat(metricNames.sweep()).isEqualTo(0);
+				metricNames.sweep();
+				assertThat(seriesSet.getName(counter)).isNull();
+		}
+}
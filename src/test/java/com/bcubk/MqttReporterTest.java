@@ -0,0 +1,804 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class MqttReporterTest {
+
+		private MetricRegistry registry;
+		private RecordingMqttSender mqttSender;
+		private MqttReporter reporter;
+
+		@Before
+		public void setUp() throws Exception {
+				this.registry = new MetricRegistry();
+				this.mqttSender = new RecordingMqttSender();
+				this.reporter = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).build(mqttSender);
+		}
+
+		@Test
+		public void reportPublishesOneMessagePerCycle() throws Exception {
+				registry.counter("requests").inc(3);
+				registry.histogram("sizes").update(10);
+				registry.meter("hits").mark();
+				registry.timer("calls").time().stop();
+				registry.register("temperature", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 21;
+						}
+				});
+
+				reporter.report();
+
+				assertThat(mqttSender.payloads).hasSize(1);
+				final JsonArray values = parse(mqttSender.payloads.get(0));
+				// 1 gauge + 1 counter + 11 histogram + 5 meter + 15 timer values
+				assertThat(values.size()).isEqualTo(33);
+		}
+
+		@Test
+		public void reportWritesNameTimestampAndValue() throws Exception {
+				registry.counter("requests").inc(3);
+
+				reporter.report();
+
+				final JsonObject value = parse(mqttSender.payloads.get(0)).get(0).getAsJsonObject();
+				assertThat(value.get("name").getAsString()).isEqualTo("app.requests.count");
+				assertThat(value.get("timeStamp").getAsLong()).isEqualTo(42L);
+				assertThat(value.get("value").getAsString()).isEqualTo("3");
+		}
+
+		@Test
+		public void reportToSenderWhichOnlyPublishesStrings() throws Exception {
+				final List<String> payloads = new ArrayList<>();
+				final MqttReporter reporter = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).build(new AbstractMqttSender() {
+								public void connect() {
+								}
+
+								public void send(final String jsonPayload) {
+										payloads.add(jsonPayload);
+								}
+
+								public void disconnect() {
+								}
+
+								public boolean isConnected() {
+										return true;
+								}
+						});
+				registry.counter("requests").inc(3);
+
+				reporter.report();
+
+				assertThat(payloads).hasSize(1);
+				final JsonObject value = parse(payloads.get(0)).get(0).getAsJsonObject();
+				assertThat(value.get("name").getAsString()).isEqualTo("app.requests.count");
+				assertThat(value.get("value").getAsString()).isEqualTo("3");
+		}
+
+		@Test
+		public void reportSkipsEmptyRegistry() throws Exception {
+				reporter.report();
+
+				assertThat(mqttSender.payloads).isEmpty();
+		}
+
+		@Test
+		public void reportChangesOnlyBetweenKeyframes() throws Exception {
+				final MqttReporter changesOnly = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).reportChangesOnly(3).build(mqttSender);
+				registry.counter("requests").inc();
+				registry.counter("errors");
+
+				changesOnly.report();
+				changesOnly.report();
+				registry.counter("requests").inc();
+				changesOnly.report();
+				changesOnly.report();
+
+				assertThat(mqttSender.payloads).hasSize(3);
+				assertThat(parse(mqttSender.payloads.get(0)).size()).isEqualTo(2);
+				final JsonArray delta = parse(mqttSender.payloads.get(1));
+				assertThat(delta.size()).isEqualTo(1);
+				assertThat(delta.get(0).getAsJsonObject().get("value").getAsString()).isEqualTo("2");
+				// third publish is a keyframe again
+				assertThat(parse(mqttSender.payloads.get(2)).size()).isEqualTo(2);
+		}
+
+		@Test
+		public void countKeyframeIntervalInAggregatedWindows() throws Exception {
+				final MqttReporter changesOnly = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).aggregateOver(2).reportChangesOnly(3)
+						.build(mqttSender);
+				registry.counter("requests").inc();
+				registry.counter("errors");
+
+				for (int i = 0; i < 6; i++) {
+						if (i == 2) {
+								registry.counter("requests").inc();
+						}
+						changesOnly.report();
+				}
+
+				// windows end with the 2nd, 4th and 6th report: keyframe, delta, unchanged
+				assertThat(mqttSender.payloads).hasSize(2);
+				// last value, min, max and avg of both counters
+				assertThat(parse(mqttSender.payloads.get(0)).size()).isEqualTo(8);
+				final JsonArray delta = parse(mqttSender.payloads.get(1));
+				assertThat(delta.size()).isEqualTo(4);
+				assertThat(value(delta, "app.requests.count")).isEqualTo("2");
+		}
+
+		@Test
+		public void publishKeyframeAfterBackgroundReconnect() throws Exception {
+				final MqttReporter changesOnly = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).reportChangesOnly(100).build(mqttSender);
+				registry.counter("requests").inc();
+				registry.counter("errors");
+
+				changesOnly.report();
+				registry.counter("requests").inc();
+				changesOnly.report();
+				// the connection drops and is restored in the background between two reports
+				mqttSender.connected = false;
+				mqttSender.reconnects++;
+				mqttSender.connected = true;
+				changesOnly.report();
+
+				assertThat(mqttSender.payloads).hasSize(3);
+				assertThat(parse(mqttSender.payloads.get(1)).size()).isEqualTo(1);
+				assertThat(parse(mqttSender.payloads.get(2)).size()).isEqualTo(2);
+		}
+
+		@Test
+		public void reportChangesBeyondEpsilon() throws Exception {
+				final MqttReporter changesOnly = MqttReporter.forRegistry(registry)
+						.withClock(new FixedClock(42000L)).reportChangesOnly(100, 5d).build(mqttSender);
+				registry.counter("requests").inc(10);
+
+				changesOnly.report();
+				registry.counter("requests").inc(3);
+				changesOnly.report();
+				registry.counter("requests").inc(3);
+				changesOnly.report();
+
+				assertThat(mqttSender.payloads).hasSize(2);
+				final JsonObject value = parse(mqttSender.payloads.get(1)).get(0).getAsJsonObject();
+				assertThat(value.get("value").getAsString()).isEqualTo("16");
+		}
+
+		@Test
+		public void reportReleasesNamesOfRemovedMetrics() throws Exception {
+				registry.counter("requests").inc();
+				registry.counter("errors").inc();
+				reporter.report();
+
+				registry.remove("requests");
+				registry.counter("timeouts").inc();
+				reporter.report();
+				reporter.report();
+
+				final JsonArray values = parse(mqttSender.payloads.get(2));
+				assertThat(values.size()).isEqualTo(2);
+				assertThat(values.get(0).getAsJsonObject().get("name").getAsString())
+						.isEqualTo("app.errors.count");
+				assertThat(values.get(1).getAsJsonObject().get("name").getAsString())
+						.isEqualTo("app.timeouts.count");
+		}
+
+		@Test
+		public void keepReportingWhenAMetricWithACollidingNameIsRemoved() throws Exception {
+				registry.counter("requests").inc();
+				registry.register("requests.count", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 5;
+						}
+				});
+				reporter.report();
+
+				registry.remove("requests.count");
+				reporter.report();
+				reporter.report();
+
+				assertThat(mqttSender.payloads).hasSize(3);
+				final JsonArray values = parse(mqttSender.payloads.get(2));
+				assertThat(values.size()).isEqualTo(1);
+				assertThat(value(values, "app.requests.count")).isEqualTo("1");
+		}
+
+		@Test
+		public void reportEscapesCachedNames() throws Exception {
+				registry.counter("say \"hi\"").inc();
+
+				reporter.report();
+				reporter.report();
+
+				final JsonObject value = parse(mqttSender.payloads.get(1)).get(0).getAsJsonObject();
+				assertThat(value.get("name").getAsString()).isEqualTo("app.say \"hi\".count");
+		}
+
+		@Test
+		public void reportSnapshotsInParallelInSameOrder() throws Exception {
+				for (int i = 0; i < 40; i++) {
+						registry.histogram("sizes" + i).update(i);
+						registry.timer("calls" + i).update(i, TimeUnit.MILLISECONDS);
+				}
+				final ExecutorService executor = Executors.newFixedThreadPool(3);
+				try {
+						MqttReporter.forRegistry(registry).withPrefix("app")
+								.withClock(new FixedClock(42000L)).takeSnapshotsWith(executor, 4)
+								.build(mqttSender).report();
+				}
+				finally {
+						executor.shutdown();
+				}
+				reporter.report();
+
+				assertThat(mqttSender.payloads).hasSize(2);
+				assertThat(mqttSender.payloads.get(0)).isEqualTo(mqttSender.payloads.get(1));
+		}
+
+		@Test
+		public void reportLastGaugeValueWhenGaugeBlocks() throws Exception {
+				final CountDownLatch release = new CountDownLatch(1);
+				final AtomicInteger calls = new AtomicInteger();
+				registry.register("pool", new Gauge<Integer>() {
+						public Integer getValue() {
+								if (calls.incrementAndGet() > 1) {
+										try {
+												release.await();
+										}
+										catch (InterruptedException e) {
+												Thread.currentThread().interrupt();
+										}
+								}
+								return calls.get();
+						}
+				});
+				registry.counter("requests").inc();
+				final ExecutorService executor = Executors.newCachedThreadPool();
+				try {
+						final MqttReporter budgeted = MqttReporter.forRegistry(registry).withPrefix("app")
+								.withClock(new FixedClock(42000L))
+								.evaluateGaugesWith(executor, 50, TimeUnit.MILLISECONDS).build(mqttSender);
+						budgeted.report();
+						budgeted.report();
+						budgeted.report();
+						release.countDown();
+				}
+				finally {
+						executor.shutdown();
+				}
+
+				assertThat(calls.get()).isEqualTo(2);
+				assertThat(parse(mqttSender.payloads.get(0)).size()).isEqualTo(2);
+				final JsonArray stale = parse(mqttSender.payloads.get(2));
+				assertThat(stale.size()).isEqualTo(3);
+				assertThat(stale.get(0).getAsJsonObject().get("value").getAsString()).isEqualTo("1");
+				assertThat(stale.get(1).getAsJsonObject().get("name").getAsString())
+						.isEqualTo("app.pool.stale");
+		}
+
+		@Test
+		public void reportRecordsReporterMetrics() throws Exception {
+				final ReporterMetrics reporterMetrics = new ReporterMetrics(registry);
+				final MqttReporter instrumented = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).instrumentWith(reporterMetrics, false)
+						.build(mqttSender);
+				registry.counter("requests").inc();
+
+				instrumented.report();
+				instrumented.report();
+
+				assertThat(parse(mqttSender.payloads.get(1)).size()).isEqualTo(1);
+				assertThat(registry.timer("mqtt-reporter.report").getCount()).isEqualTo(2L);
+				assertThat(registry.meter("mqtt-reporter.sent").getCount()).isEqualTo(2L);
+				assertThat(registry.histogram("mqtt-reporter.payload-bytes").getSnapshot().getMax())
+						.isEqualTo((long) mqttSender.payloads.get(0).length());
+				assertThat(registry.meter("mqtt-reporter.failures").getCount()).isEqualTo(0L);
+		}
+
+		@Test
+		public void reportCountsFailures() throws Exception {
+				final ReporterMetrics reporterMetrics = new ReporterMetrics(registry, "self");
+				mqttSender.failing = true;
+				final MqttReporter instrumented = MqttReporter.forRegistry(registry)
+						.instrumentWith(reporterMetrics).build(mqttSender);
+				registry.counter("requests").inc();
+
+				instrumented.report();
+
+				assertThat(registry.meter("self.failures").getCount()).isEqualTo(1L);
+				assertThat(registry.meter("self.sent").getCount()).isEqualTo(0L);
+		}
+
+		@Test
+		public void reportSplitsLargeReportsIntoChunks() throws Exception {
+				final MqttReporter chunking = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).withMaxPayloadSize(512).build(mqttSender);
+				for (int i = 0; i < 100; i++) {
+						registry.counter("requests" + i).inc(i);
+				}
+
+				chunking.report();
+
+				assertThat(mqttSender.payloads.size()).isGreaterThan(1);
+				int values = 0;
+				for (int i = 0; i < mqttSender.payloads.size(); i++) {
+						final String payload = mqttSender.payloads.get(i);
+						assertThat(payload.getBytes(StandardCharsets.UTF_8).length).isLessThanOrEqualTo(512);
+						final JsonObject chunk = new JsonParser().parse(payload).getAsJsonObject();
+						assertThat(chunk.get("cycleId").getAsLong()).isEqualTo(42000L);
+						assertThat(chunk.get("chunk").getAsInt()).isEqualTo(i);
+						assertThat(chunk.get("chunks").getAsInt()).isEqualTo(mqttSender.payloads.size());
+						values += chunk.getAsJsonArray("discreteTimeValues").size();
+				}
+				assertThat(values).isEqualTo(100);
+		}
+
+		@Test
+		public void reportAggregatesWindows() throws Exception {
+				final MqttReporter aggregating = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).aggregateOver(3).build(mqttSender);
+				final AtomicInteger temperature = new AtomicInteger();
+				registry.register("temperature", new Gauge<Integer>() {
+						public Integer getValue() {
+								return temperature.get();
+						}
+				});
+
+				for (int value : new int[] {20, 25, 21, 30}) {
+						temperature.set(value);
+						aggregating.report();
+				}
+
+				assertThat(mqttSender.payloads).hasSize(1);
+				final JsonArray values = parse(mqttSender.payloads.get(0));
+				assertThat(values.size()).isEqualTo(4);
+				assertThat(value(values, "app.temperature")).isEqualTo("21");
+				assertThat(value(values, "app.temperature.min")).isEqualTo("20");
+				assertThat(value(values, "app.temperature.max")).isEqualTo("25");
+				assertThat(value(values, "app.temperature.avg")).isEqualTo("22.00");
+		}
+
+		@Test
+		public void keepAggregatingWhenADerivedNameCollidesWithAMetric() throws Exception {
+				final MqttReporter aggregating = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).aggregateOver(2).build(mqttSender);
+				registry.register("latency", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 10;
+						}
+				});
+				registry.register("latency.min", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 3;
+						}
+				});
+				for (int i = 0; i < 2; i++) {
+						aggregating.report();
+				}
+
+				registry.remove("latency.min");
+				for (int i = 0; i < 4; i++) {
+						aggregating.report();
+				}
+				registry.register("latency.min", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 3;
+						}
+				});
+				registry.remove("latency");
+				for (int i = 0; i < 4; i++) {
+						aggregating.report();
+				}
+
+				assertThat(mqttSender.payloads).hasSize(5);
+				final JsonArray values = parse(mqttSender.payloads.get(2));
+				assertThat(value(values, "app.latency.min")).isEqualTo("10");
+				assertThat(value(values, "app.latency.avg")).isEqualTo("10.00");
+				final JsonArray last = parse(mqttSender.payloads.get(4));
+				assertThat(value(last, "app.latency.min")).isEqualTo("3");
+				assertThat(value(last, "app.latency")).isNull();
+		}
+
+		@Test
+		public void scheduledReportsUseTheAlignedTick() throws Exception {
+				final MqttReporter aligned = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42300L)).alignToWallClock().withJitter("client-1")
+						.build(mqttSender);
+				registry.counter("requests").inc();
+
+				aligned.start(1, TimeUnit.SECONDS);
+				try {
+						final long deadline = System.currentTimeMillis() + 5000L;
+						while (mqttSender.payloads.isEmpty() && System.currentTimeMillis() < deadline) {
+								Thread.sleep(10L);
+						}
+				}
+				finally {
+						aligned.stop();
+				}
+
+				final JsonObject value = parse(mqttSender.payloads.get(0)).get(0).getAsJsonObject();
+				assertThat(value.get("timeStamp").getAsLong()).isEqualTo(43L);
+		}
+
+		@Test
+		public void queueReportsWhileAsyncSenderIsDisconnected() throws Exception {
+				// nothing listens on the port, the first connect fails and a reconnect is pending
+				final AsyncMqttSender asyncSender = new AsyncMqttSender("tcp://localhost", 1884, "test")
+						.withReconnectBackoff(1, 1, TimeUnit.MINUTES);
+				final MqttReporter queueing = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).build(asyncSender);
+				registry.counter("requests").inc();
+
+				try {
+						queueing.report();
+						queueing.report();
+
+						assertThat(asyncSender.isConnected()).isFalse();
+						assertThat(asyncSender.getQueued()).isEqualTo(2);
+				}
+				finally {
+						asyncSender.disconnect();
+				}
+		}
+
+		@Test
+		public void stopWaitsForRunningReport() throws Exception {
+				final CountDownLatch reading = new CountDownLatch(1);
+				final AtomicInteger finished = new AtomicInteger();
+				registry.register("slow", new Gauge<Integer>() {
+						public Integer getValue() {
+								reading.countDown();
+								try {
+										Thread.sleep(200L);
+								}
+								catch (InterruptedException e) {
+										Thread.currentThread().interrupt();
+								}
+								return finished.incrementAndGet();
+						}
+				});
+				final MqttReporter aligned = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42300L)).alignToWallClock().build(mqttSender);
+
+				aligned.start(1, TimeUnit.SECONDS);
+				assertThat(reading.await(5, TimeUnit.SECONDS)).isTrue();
+				aligned.stop();
+
+				assertThat(finished.get()).isGreaterThan(0);
+				assertThat(mqttSender.isConnected()).isFalse();
+		}
+
+		@Test
+		public void announceNamesOncePerConnectionAndOnNewNames() throws Exception {
+				final RecordingMqttSender nameSender = new RecordingMqttSender();
+				final MqttReporter dictionary = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).announceNamesTo(nameSender).build(mqttSender);
+				registry.counter("requests").inc();
+
+				dictionary.report();
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(1);
+
+				registry.counter("errors").inc();
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(2);
+
+				nameSender.disconnect();
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(3);
+				assertThat(mqttSender.payloads).hasSize(4);
+		}
+
+		@Test
+		public void announceNamesAgainAfterBackgroundReconnect() throws Exception {
+				final RecordingMqttSender nameSender = new RecordingMqttSender();
+				final MqttReporter dictionary = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).announceNamesTo(nameSender).build(mqttSender);
+				registry.counter("requests").inc();
+
+				dictionary.report();
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(1);
+
+				// the client reconnected on its own, the retained names may be gone
+				nameSender.reconnects++;
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(2);
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(2);
+		}
+
+		@Test
+		public void announceAddedNamesInChunks() throws Exception {
+				final RecordingMqttSender nameSender = new RecordingMqttSender();
+				final MqttReporter dictionary = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).withMaxPayloadSize(128)
+						.announceNamesTo(nameSender).build(mqttSender);
+				for (int i = 0; i < 20; i++) {
+						registry.counter("very.long.counter.name." + i).inc();
+				}
+
+				dictionary.report();
+				final int announced = nameSender.payloads.size();
+				assertThat(announced).isGreaterThan(1);
+
+				registry.counter("errors").inc();
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(announced + 1);
+				dictionary.report();
+				assertThat(nameSender.payloads).hasSize(announced + 1);
+		}
+
+		@Test
+		public void retainEveryNameChunkOnItsOwnSubtopic() throws Exception {
+				final SubtopicRecordingMqttSender nameSender = new SubtopicRecordingMqttSender();
+				final MqttReporter dictionary = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).withMaxPayloadSize(128)
+						.announceNamesTo(nameSender).build(mqttSender);
+				for (int i = 0; i < 20; i++) {
+						registry.counter("very.long.counter.name." + i).inc();
+				}
+
+				dictionary.report();
+				final int chunks = nameSender.retained.size();
+				assertThat(chunks).isGreaterThan(1);
+				assertThat(nameSender.subtopics).hasSize(chunks);
+				assertThat(nameSender.retained).containsKey("0");
+
+				registry.counter("errors").inc();
+				dictionary.report();
+				dictionary.report();
+
+				// only the last chunk was republished, all chunks are still retained
+				assertThat(nameSender.subtopics.size()).isBetween(chunks + 1, chunks + 2);
+				assertThat(nameSender.subtopics.get(chunks))
+						.isEqualTo(nameSender.subtopics.get(chunks - 1));
+				final NameDictionary received = new NameDictionary();
+				for (byte[] chunk : nameSender.retained.values()) {
+						received.read(chunk, 0, chunk.length);
+				}
+				final List<String> names = new ArrayList<>();
+				for (int i = 0; i < received.size(); i++) {
+						names.add(received.getName(i));
+				}
+				assertThat(names).hasSize(21).doesNotContain((String) null)
+						.contains("app.errors.count", "app.very.long.counter.name.0.count");
+		}
+
+		@Test
+		public void reportSketchesInsteadOfPercentiles() throws Exception {
+				final MqttReporter sketches = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).exportSketches().build(mqttSender);
+				for (int i = 1; i <= 100; i++) {
+						registry.histogram("sizes").update(i);
+				}
+
+				sketches.report();
+
+				final JsonArray values = parse(mqttSender.payloads.get(0));
+				assertThat(value(values, "app.sizes.p99")).isNull();
+				assertThat(value(values, "app.sizes.count")).isEqualTo("100");
+				final HistogramSketch sketch = HistogramSketch.parse(value(values, "app.sizes.sketch"),
+						256);
+				assertThat(sketch.getCount()).isEqualTo(100L);
+				assertThat(sketch.getQuantile(0.5d)).isBetween(49d, 52d);
+		}
+
+		@Test
+		public void reportMostActiveMetricsBeyondCardinalityLimit() throws Exception {
+				final MqttReporter limited = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).limitCardinality(4, 3, 1).build(mqttSender);
+				for (int i = 1; i <= 10; i++) {
+						registry.counter("users." + i + ".requests").inc(i);
+				}
+				registry.counter("jobs").inc(100);
+
+				limited.report();
+
+				final JsonArray values = parse(mqttSender.payloads.get(0));
+				assertThat(values.size()).isEqualTo(6);
+				assertThat(value(values, "app.jobs.count")).isEqualTo("100");
+				assertThat(value(values, "app.users.10.requests.count")).isEqualTo("10");
+				assertThat(value(values, "app.users.8.requests.count")).isEqualTo("8");
+				assertThat(value(values, "app.users.7.requests.count")).isNull();
+				assertThat(value(values, "app.users.overflow.series")).isEqualTo("7");
+				assertThat(value(values, "app.users.overflow.count")).isEqualTo("28");
+		}
+
+		@Test
+		public void publishLanesInTheOrderTheyWereAdded() throws Exception {
+				final MetricFilter slo = new MetricFilter() {
+						@Override
+						public boolean matches(final String name, final Metric metric) {
+								return name.startsWith("slo.");
+						}
+				};
+				final MqttReporter laned = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).withLane(PriorityLane.of("slo", slo))
+						.withLane(PriorityLane.of("debug", MetricFilter.ALL)).build(mqttSender);
+				registry.counter("debug.cache.misses").inc(7);
+				registry.counter("slo.errors").inc(2);
+				registry.meter("slo.requests").mark();
+
+				laned.report();
+
+				assertThat(mqttSender.payloads).hasSize(2);
+				final JsonArray first = parse(mqttSender.payloads.get(0));
+				assertThat(value(first, "app.slo.errors.count")).isEqualTo("2");
+				assertThat(value(first, "app.slo.requests.count")).isEqualTo("1");
+				assertThat(value(first, "app.debug.cache.misses.count")).isNull();
+				final JsonArray second = parse(mqttSender.payloads.get(1));
+				assertThat(second.size()).isEqualTo(1);
+				assertThat(value(second, "app.debug.cache.misses.count")).isEqualTo("7");
+		}
+
+		@Test
+		public void publishAggregatesAndExactGaugesInTheLaneOfTheirMetric() throws Exception {
+				final MetricFilter slo = new MetricFilter() {
+						@Override
+						public boolean matches(final String name, final Metric metric) {
+								return name.startsWith("slo.");
+						}
+				};
+				final MqttReporter laned = MqttReporter.forRegistry(registry).withPrefix("app")
+						.withClock(new FixedClock(42000L)).aggregateOver(2)
+						.withLane(PriorityLane.of("slo", slo))
+						.withLane(PriorityLane.of("debug", MetricFilter.ALL)).build(mqttSender);
+				registry.register("slo.latency", new Gauge<Integer>() {
+						public Integer getValue() {
+								return 12;
+						}
+				});
+				registry.register("slo.budget", new Gauge<BigDecimal>() {
+						public BigDecimal getValue() {
+								return new BigDecimal("0.12345678901234567890");
+						}
+				});
+				registry.counter("debug.cache.misses").inc(7);
+
+				laned.report();
+				laned.report();
+
+				assertThat(mqttSender.payloads).hasSize(2);
+				final JsonArray first = parse(mqttSender.payloads.get(0));
+				assertThat(value(first, "app.slo.budget")).isEqualTo("0.12345678901234567890");
+				assertThat(value(first, "app.slo.latency")).isEqualTo("12");
+				assertThat(value(first, "app.slo.latency.max")).isEqualTo("12");
+				assertThat(value(first, "app.debug.cache.misses.count.max")).isNull();
+				final JsonArray second = parse(mqttSender.payloads.get(1));
+				assertThat(value(second, "app.debug.cache.misses.count")).isEqualTo("7");
+				assertThat(value(second, "app.debug.cache.misses.count.max")).isEqualTo("7");
+				assertThat(value(second, "app.slo.latency.min")).isNull();
+		}
+
+		private static String value(final JsonArray values, final String name) {
+				for (int i = 0; i < values.size(); i++) {
+						final JsonObject value = values.get(i).getAsJsonObject();
+						if (name.equals(value.get("name").getAsString())) {
+								return value.get("value").getAsString();
+						}
+				}
+				return null;
+		}
+
+		private static JsonArray parse(final String payload) {
+				return new JsonParser().parse(payload).getAsJsonObject()
+						.getAsJsonArray("discreteTimeValues");
+		}
+
+		private static class FixedClock extends Clock {
+				private final long time;
+
+				FixedClock(final long time) {
+						this.time = time;
+				}
+
+				@Override
+				public long getTick() {
+						return time * 1000000L;
+				}
+
+				@Override
+				public long getTime() {
+						return time;
+				}
+		}
+
+		private static class RecordingMqttSender implements ReconnectingMqttSender {
+				private final List<String> payloads =
+						Collections.synchronizedList(new ArrayList<String>());
+				private boolean connected;
+				private boolean failing;
+				private int reconnects;
+
+				public void connect() {
+						this.connected = true;
+				}
+
+				public void send(final String jsonPayload) {
+						this.payloads.add(jsonPayload);
+				}
+
+				public void send(final byte[] payload, final int offset, final int length)
+						throws MqttException {
+						if (failing) {
+								throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+						}
+						this.payloads.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+				}
+
+				public void disconnect() {
+						this.connected = false;
+				}
+
+				public boolean isConnected() {
+						return connected;
+				}
+
+				public int getReconnects() {
+						return reconnects;
+				}
+		}
+
+		private static class SubtopicRecordingMqttSender extends RecordingMqttSender
+				implements SubtopicMqttSender {
+				private final Map<String, byte[]> retained = new HashMap<>();
+				private final List<String> subtopics = new ArrayList<>();
+
+				public void send(final String subtopic, final byte[] payload, final int offset,
+						final int length) {
+						this.retained.put(subtopic, Arrays.copyOfRange(payload, offset, offset + length));
+						this.subtopics.add(subtopic);
+				}
+		}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class NumberWriterTest {
+
+		private PayloadBuffer buffer;
+
+		@Before
+		public void setUp() throws Exception {
+				this.buffer = new PayloadBuffer();
+		}
+
+		@Test
+		public void fixedMatchesStringFormat() throws Exception {
+				final double[] values = {0d, -0d, 1d, -1d, 0.125d, 0.004d, -0.004d, 3.14159d,
+						12345.675d, 1e15d, 1e20d, -1e-20d, Long.MAX_VALUE};
+				for (double value : values) {
+						assertThat(write(NumberWriter.fixed(2), value))
+								.isEqualTo(String.format(Locale.US, "%.2f", value));
+				}
+				assertThat(write(NumberWriter.fixed(0), 2.5d)).isEqualTo("3");
+				assertThat(write(NumberWriter.fixed(4), 1.00005d)).isEqualTo("1.0001");
+		}
+
+		@Test
+		public void fixedMatchesStringFormatOnDecimalTies() throws Exception {
+				assertThat(write(NumberWriter.fixed(2), 1.005d)).isEqualTo("1.01");
+				assertThat(write(NumberWriter.fixed(2), 138.075d)).isEqualTo("138.08");
+				assertThat(write(NumberWriter.fixed(2), -2.675d)).isEqualTo("-2.68");
+				final Random random = new Random(42);
+				for (int i = 0; i < 100000; i++) {
+						final double decimal = (random.nextInt(2000000) - 1000000) / 1000d;
+						assertThat(write(NumberWriter.fixed(2), decimal))
+								.isEqualTo(String.format(Locale.US, "%.2f", decimal));
+						final double value = random.nextDouble() * Math.pow(10, random.nextInt(12));
+						assertThat(write(NumberWriter.fixed(3), value))
+								.isEqualTo(String.format(Locale.US, "%.3f", value));
+				}
+		}
+
+		@Test
+		public void shortestRoundTrips() throws Exception {
+				final Random random = new Random(42);
+				for (int i = 0; i < 10000; i++) {
+						final double value = Double.longBitsToDouble(random.nextLong());
+						if (!Double.isNaN(value)) {
+								assertThat(Double.parseDouble(write(NumberWriter.shortest(), value)))
+										.isEqualTo(value);
+						}
+						final double decimal = random.nextInt(1000000) / 1000d;
+						assertThat(Double.parseDouble(write(NumberWriter.shortest(), decimal)))
+								.isEqualTo(decimal);
+				}
+				assertThat(write(NumberWriter.shortest(), 0.1d)).isEqualTo("0.1");
+				assertThat(write(NumberWriter.shortest(), -12d)).isEqualTo("-12");
+				assertThat(write(NumberWriter.shortest(), 1.5e-7d)).isEqualTo("0.00000015");
+		}
+
+		@Test
+		public void writeNonFiniteValues() throws Exception {
+				assertThat(write(NumberWriter.fixed(2), Double.NaN)).isEqualTo("NaN");
+				assertThat(write(NumberWriter.shortest(), Double.POSITIVE_INFINITY))
+						.isEqualTo("Infinity");
+				assertThat(write(NumberWriter.fixed(2), Double.NEGATIVE_INFINITY))
+						.isEqualTo("-Infinity");
+		}
+
+		@Test
+		public void writeNumbers() throws Exception {
+				NumberWriter.fixed(2).write(Integer.valueOf(7), buffer);
+				buffer.write(' ');
+				NumberWriter.fixed(2).write(new BigInteger("123456789012345678901234567890"), buffer);
+				buffer.write(' ');
+				NumberWriter.fixed(2).write(new BigDecimal("0.125"), buffer);
+				buffer.write(' ');
+				NumberWriter.shortest().write(new BigDecimal("1.500"), buffer);
+				buffer.write(' ');
+				NumberWriter.shortest().write(Float.valueOf(0.5f), buffer);
+				assertThat(payload()).isEqualTo("7 123456789012345678901234567890 0.13 1.5 0.5");
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void rejectNegativePrecision() throws Exception {
+				NumberWriter.fixed(-1);
+		}
+
+		private String write(final NumberWriter numberWriter, final double value) {
+				buffer.reset();
+				numberWriter.write(value, buffer);
+				return payload();
+		}
+
+		private String payload() {
+				return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+		}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class PayloadSpoolTest {
+
+		private File directory;
+		private PayloadSpool spool;
+		private PayloadBuffer buffer;
+
+		@Before
+		public void setUp() throws Exception {
+				this.directory = Files.createTempDirectory("spool").toFile();
+				this.spool = new PayloadSpool(directory, 64, 3);
+				this.buffer = new PayloadBuffer();
+		}
+
+		@After
+		public void tearDown() throws Exception {
+				this.spool.close();
+				final File[] files = directory.listFiles();
+				if (files != null) {
+						for (File file : files) {
+								file.delete();
+						}
+				}
+				directory.delete();
+		}
+
+		@Test
+		public void readPayloadsInOrder() throws Exception {
+				append("first");
+				append("second");
+
+				assertThat(spool.size()).isEqualTo(2L);
+				assertThat(poll()).isEqualTo("first");
+				assertThat(poll()).isEqualTo("second");
+				assertThat(spool.isEmpty()).isTrue();
+				assertThat(spool.peek(buffer)).isFalse();
+		}
+
+		@Test
+		public void rollOverSegments() throws Exception {
+				for (int i = 0; i < 6; i++) {
+						append("payload-" + i);
+				}
+				for (int i = 0; i < 6; i++) {
+						assertThat(poll()).isEqualTo("payload-" + i);
+				}
+				assertThat(directory.listFiles()).hasSize(1);
+		}
+
+		@Test
+		public void evictOldestSegmentWhenFull() throws Exception {
+				// three 13 byte records fit into one 64 byte segment
+				for (int i = 0; i < 12; i++) {
+						append("payload-" + (char) ('a' + i));
+				}
+
+				assertThat(spool.getEvicted()).isEqualTo(3L);
+				assertThat(spool.size()).isEqualTo(9L);
+				assertThat(poll()).isEqualTo("payload-d");
+		}
+
+		@Test
+		public void recoverAfterReopen() throws Exception {
+				append("first");
+				append("second");
+				poll();
+				spool.close();
+
+				this.spool = new PayloadSpool(directory, 64, 3);
+
+				assertThat(spool.size()).isEqualTo(1L);
+				assertThat(poll()).isEqualTo("second");
+		}
+
+		@Test
+		public void discardSegmentWithCorruptHeader() throws Exception {
+				append("first");
+				append("second");
+				spool.close();
+				final File[] files = directory.listFiles();
+				assertThat(files).hasSize(1);
+				try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+						// a write position beyond the end of the segment
+						file.seek(4);
+						file.writeInt(1000);
+				}
+
+				this.spool = new PayloadSpool(directory, 64, 3);
+
+				assertThat(spool.isEmpty()).isTrue();
+				append("third");
+				assertThat(poll()).isEqualTo("third");
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void rejectPayloadLargerThanSegment() throws Exception {
+				spool.append(new byte[64], 0, 64);
+		}
+
+		private void append(final String payload) throws Exception {
+				final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+				spool.append(bytes, 0, bytes.length);
+		}
+
+		private String poll() {
+				assertThat(spool.peek(buffer)).isTrue();
+				spool.remove();
+				return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+		}
+}
@@ -65,4 +65,70 @@ public class SeriesSetTest {
 					assertThat(discreteTimeValue.getValue()).isEqualTo(discreteTimeValue.getValue());
 			}
 		}
-}
\ No newline at end of file
+
+		@Test
+		public void addPrimitiveValues() throws Exception {
+				final int nameId = this.seriesSet.nameId("requests.count");
+				this.seriesSet.add(nameId, 42L, 7L);
+				this.seriesSet.add("load", 42L, 0.5d);
+
+				assertThat(this.seriesSet.size()).isEqualTo(3);
+				assertThat(this.seriesSet.getNameId(1)).isEqualTo(nameId);
+				assertThat(this.seriesSet.getValueType(1)).isEqualTo(SeriesSet.ValueType.LONG);
+				assertThat(this.seriesSet.getLong(1)).isEqualTo(7L);
+				assertThat(this.seriesSet.getValueType(2)).isEqualTo(SeriesSet.ValueType.DOUBLE);
+				assertThat(this.seriesSet.getDouble(2)).isEqualTo(0.5d);
+				assertThat(this.seriesSet.getDiscreteTimeValues().get(2).getValue()).isEqualTo("0.5");
+				assertThat(this.seriesSet.getDiscreteTimeValues().get(2).getName()).isEqualTo("load");
+		}
+
+		@Test
+		public void keepNameIdsAcrossReset() throws Exception {
+				final int nameId = this.seriesSet.nameId("requests.count");
+				for (int i = 0; i < 1000; i++) {
+						this.seriesSet.add(nameId, i, (long) i);
+				}
+				this.seriesSet.resetSeries();
+
+				assertThat(this.seriesSet.isEmpty()).isTrue();
+				assertThat(this.seriesSet.nameId("requests.count")).isEqualTo(nameId);
+				assertThat(this.seriesSet.getName(nameId)).isEqualTo("requests.count");
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void rejectUnknownNameId() throws Exception {
+				this.seriesSet.add(this.seriesSet.getNameCount(), 0L, 1L);
+		}
+
+		@Test
+		public void retainCompactsInPlace() throws Exception {
+				for (int i = 0; i < 10; i++) {
+						this.seriesSet.add("value" + i, i, (long) i);
+				}
+				this.seriesSet.retain(new SeriesSet.Filter() {
+						public boolean accept(final SeriesSet seriesSet, final int index) {
+								return seriesSet.getValueType(index) == SeriesSet.ValueType.TEXT
+										|| seriesSet.getLong(index) % 2 == 0;
+						}
+				});
+
+				assertThat(this.seriesSet.size()).isEqualTo(6);
+				assertThat(this.seriesSet.getValueType(0)).isEqualTo(SeriesSet.ValueType.TEXT);
+				assertThat(this.seriesSet.getLong(5)).isEqualTo(8L);
+				assertThat(this.seriesSet.getName(this.seriesSet.getNameId(5))).isEqualTo("value8");
+		}
+
+		@Test
+		public void reuseReleasedNameIds() throws Exception {
+				final int nameId = this.seriesSet.nameId("requests.count");
+				assertThat(new String(this.seriesSet.getNameUtf8(nameId), "UTF-8"))
+						.isEqualTo("requests.count");
+
+				this.seriesSet.releaseName(nameId);
+
+				assertThat(this.seriesSet.getName(nameId)).isNull();
+				assertThat(this.seriesSet.nameId("errors.count")).isEqualTo(nameId);
+				assertThat(new String(this.seriesSet.getNameUtf8(nameId), "UTF-8"))
+						.isEqualTo("errors.count");
+		}
+}
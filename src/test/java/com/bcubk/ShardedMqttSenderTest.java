@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class ShardedMqttSenderTest {
+
+		private List<RecordingMqttSender> shards;
+		private ShardedMqttSender mqttSender;
+
+		@Before
+		public void setUp() throws Exception {
+				this.shards = Arrays.asList(new RecordingMqttSender(), new RecordingMqttSender(),
+						new RecordingMqttSender());
+				this.mqttSender = new ShardedMqttSender(shards);
+		}
+
+		@After
+		public void tearDown() throws Exception {
+				this.mqttSender.disconnect();
+		}
+
+		@Test
+		public void reportPublishesEveryMetricOnItsShard() throws Exception {
+				final MetricRegistry registry = new MetricRegistry();
+				for (int i = 0; i < 30; i++) {
+						registry.counter("requests" + i).inc();
+				}
+				final MqttReporter reporter = MqttReporter.forRegistry(registry).build(mqttSender);
+
+				reporter.report();
+
+				int values = 0;
+				for (int shard = 0; shard < shards.size(); shard++) {
+						assertThat(shards.get(shard).payloads).hasSize(1);
+						final JsonArray shardValues = new JsonParser().parse(shards.get(shard).payloads.get(0))
+								.getAsJsonObject().getAsJsonArray("discreteTimeValues");
+						for (int i = 0; i < shardValues.size(); i++) {
+								final String name = shardValues.get(i).getAsJsonObject().get("name").getAsString();
+								assertThat(ShardedMqttSender.shardOf(name, 3)).isEqualTo(shard);
+						}
+						values += shardValues.size();
+				}
+				assertThat(values).isEqualTo(30);
+		}
+
+		@Test
+		public void keepPartitioningWhileMetricsComeAndGo() throws Exception {
+				final MetricRegistry registry = new MetricRegistry();
+				final MqttReporter reporter = MqttReporter.forRegistry(registry).build(mqttSender);
+				for (String name : new String[] {"requests", "errors", "timeouts"}) {
+						registry.counter(name).inc();
+				}
+				reporter.report();
+
+				registry.remove("errors");
+				registry.remove("timeouts");
+				reporter.report();
+				// comes back under the id timeouts had, the new metric gets the old id of errors
+				registry.counter("errors").inc();
+				reporter.report();
+				registry.counter("retries").inc();
+				reporter.report();
+				final int[] published = new int[shards.size()];
+				for (int shard = 0; shard < shards.size(); shard++) {
+						published[shard] = shards.get(shard).payloads.size();
+				}
+				reporter.report();
+
+				final List<String> names = new ArrayList<>();
+				for (int shard = 0; shard < shards.size(); shard++) {
+						final List<String> payloads = shards.get(shard).payloads;
+						for (int i = published[shard]; i < payloads.size(); i++) {
+								final JsonArray shardValues = new JsonParser().parse(payloads.get(i))
+										.getAsJsonObject().getAsJsonArray("discreteTimeValues");
+								for (int j = 0; j < shardValues.size(); j++) {
+										names.add(shardValues.get(j).getAsJsonObject().get("name").getAsString());
+								}
+						}
+				}
+				assertThat(names).containsOnly("requests.count", "errors.count", "retries.count");
+		}
+
+		@Test
+		public void skipEmptyShards() throws Exception {
+				mqttSender.connect();
+				final List<List<PayloadBuffer>> payloads = new ArrayList<>();
+				final PayloadBuffer payload = new PayloadBuffer();
+				payload.writeUtf8("{}");
+				payloads.add(Collections.<PayloadBuffer>emptyList());
+				payloads.add(Collections.singletonList(payload));
+				payloads.add(Collections.<PayloadBuffer>emptyList());
+
+				mqttSender.send(payloads, new int[] {0, 1, 0});
+
+				assertThat(shards.get(0).payloads).isEmpty();
+				assertThat(shards.get(1).payloads).containsExactly("{}");
+				assertThat(shards.get(2).payloads).isEmpty();
+		}
+
+		@Test
+		public void keepReportingToOtherShardsWhileOneIsDown() throws Exception {
+				final MetricRegistry registry = new MetricRegistry();
+				for (int i = 0; i < 30; i++) {
+						registry.counter("requests" + i).inc();
+				}
+				final MqttReporter reporter = MqttReporter.forRegistry(registry).build(mqttSender);
+				shards.get(2).down = true;
+
+				reporter.report();
+
+				assertThat(shards.get(0).payloads).hasSize(1);
+				assertThat(shards.get(1).payloads).hasSize(1);
+				assertThat(shards.get(2).payloads).isEmpty();
+				assertThat(mqttSender.getReconnects()).isZero();
+
+				shards.get(2).down = false;
+				reporter.report();
+
+				assertThat(shards.get(0).payloads).hasSize(2);
+				assertThat(shards.get(2).payloads).hasSize(1);
+				assertThat(mqttSender.getReconnects()).isEqualTo(1);
+		}
+
+		@Test
+		public void reconnectShardBeforePublishing() throws Exception {
+				mqttSender.connect();
+				shards.get(2).connected = false;
+				final PayloadBuffer payload = new PayloadBuffer();
+				payload.writeUtf8("{}");
+				final List<PayloadBuffer> shardPayloads = Collections.singletonList(payload);
+
+				mqttSender.send(Arrays.asList(shardPayloads, shardPayloads, shardPayloads),
+						new int[] {1, 1, 1});
+
+				assertThat(shards.get(2).payloads).containsExactly("{}");
+				assertThat(mqttSender.getReconnects()).isEqualTo(1);
+		}
+
+		@Test
+		public void publishToShardReconnectedInTheBackgroundMeanwhile() throws Exception {
+				mqttSender.connect();
+				shards.get(2).connected = false;
+				shards.get(2).reconnectingInBackground = true;
+				final PayloadBuffer payload = new PayloadBuffer();
+				payload.writeUtf8("{}");
+				final List<PayloadBuffer> shardPayloads = Collections.singletonList(payload);
+
+				mqttSender.send(Arrays.asList(shardPayloads, shardPayloads, shardPayloads),
+						new int[] {1, 1, 1});
+
+				assertThat(shards.get(2).payloads).containsExactly("{}");
+				assertThat(mqttSender.getReconnects()).isZero();
+		}
+
+		@Test(expected = MqttException.class)
+		public void reportFailureOfAllShards() throws Exception {
+				mqttSender.connect();
+				final PayloadBuffer payload = new PayloadBuffer();
+				payload.writeUtf8("{}");
+				final List<PayloadBuffer> shardPayloads = Collections.singletonList(payload);
+				for (RecordingMqttSender shard : shards) {
+						shard.connected = false;
+						shard.down = true;
+				}
+
+				mqttSender.send(Arrays.asList(shardPayloads, shardPayloads, shardPayloads),
+						new int[] {1, 1, 1});
+		}
+
+		@Test(expected = MqttException.class)
+		public void failToConnectWithoutAnyShard() throws Exception {
+				for (RecordingMqttSender shard : shards) {
+						shard.down = true;
+				}
+
+				mqttSender.connect();
+		}
+
+		@Test
+		public void keepReportingToBufferingShardsWhileDisconnected() throws Exception {
+				// nothing listens on the port, the first connects fail and reconnects are pending
+				final List<AsyncMqttSender> asyncShards = Arrays.asList(
+						new AsyncMqttSender("tcp://localhost", 1884, "test/0")
+								.withReconnectBackoff(1, 1, TimeUnit.MINUTES),
+						new AsyncMqttSender("tcp://localhost", 1884, "test/1")
+								.withReconnectBackoff(1, 1, TimeUnit.MINUTES));
+				final ShardedMqttSender sharded = new ShardedMqttSender(asyncShards);
+				final MetricRegistry registry = new MetricRegistry();
+				final MqttReporter reporter = MqttReporter.forRegistry(registry)
+						.instrumentWith(new ReporterMetrics(registry), false).build(sharded);
+				for (int i = 0; i < 30; i++) {
+						registry.counter("requests" + i).inc();
+				}
+
+				try {
+						reporter.report();
+						reporter.report();
+
+						assertThat(sharded.buffersWhileDisconnected()).isTrue();
+						assertThat(asyncShards.get(0).getQueued() + asyncShards.get(1).getQueued())
+								.isEqualTo(4);
+						assertThat(registry.getGauges()).containsKey("mqtt-reporter.queued");
+						assertThat(registry.getGauges()).containsKey("mqtt-reporter.reconnects");
+						assertThat(registry.meter("mqtt-reporter.failures").getCount()).isZero();
+				}
+				finally {
+						sharded.disconnect();
+				}
+		}
+
+		@Test(expected = IllegalArgumentException.class)
+		public void rejectDecoratorAroundShards() throws Exception {
+				new CompressingMqttSender(mqttSender, DeflatePayloadCodec.deflate());
+		}
+
+		@Test
+		public void keepShardOfNameStable() throws Exception {
+				final int shard = ShardedMqttSender.shardOf("app.requests.count", 16);
+				assertThat(ShardedMqttSender.shardOf(new String("app.requests.count"), 16))
+						.isEqualTo(shard);
+				assertThat(shard).isBetween(0, 15);
+		}
+
+		private static class RecordingMqttSender implements MqttSender {
+				private final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+				private volatile boolean connected;
+				private volatile boolean down;
+				private volatile boolean reconnectingInBackground;
+
+				public void connect() throws MqttException {
+						if (down) {
+								throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+						}
+						if (reconnectingInBackground) {
+								// the background reconnect completes between isConnected() and connect()
+								this.connected = true;
+								throw new IllegalStateException("Already connected");
+						}
+						this.connected = true;
+				}
+
+				public void send(final String jsonPayload) {
+						this.payloads.add(jsonPayload);
+				}
+
+				public void send(final byte[] payload, final int offset, final int length)
+						throws MqttException {
+						if (!connected) {
+								throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+						}
+						this.payloads.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+				}
+
+				public void disconnect() {
+						this.connected = false;
+				}
+
+				public boolean isConnected() {
+						return connected;
+				}
+		}
+}
@@ -19,7 +19,11 @@ package com.bcubk;
 import io.moquette.server.Server;
 import org.junit.*;
 
+import org.eclipse.paho.client.mqttv3.MqttException;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by baris on 26.12.16.
@@ -65,9 +69,38 @@ public class SimpleMqttSenderTest {
 		}
 
 		@Test
-		@Ignore
 		public void disconnect() throws Exception {
+				this.mqttSender.connect();
+				this.mqttSender.disconnect();
+				Assert.assertFalse(this.mqttSender.isConnected());
+		}
+
+		@Test
+		public void reconnectInBackgroundAfterFailedConnect() throws Exception {
+				final MqttSender unreachable = new SimpleMqttSender("tcp://localhost", 1884, "test")
+						.withReconnectBackoff(1, 10, TimeUnit.SECONDS);
+				try {
+						unreachable.connect();
+						Assert.fail("Connected to unreachable broker");
+				}
+				catch (MqttException e) {
+						// expected, a background reconnect is scheduled now
+				}
+				try {
+						unreachable.connect();
+						Assert.fail("Connect did not report the pending reconnect");
+				}
+				catch (IOException e) {
+						// expected
+				}
+				finally {
+						unreachable.disconnect();
+				}
+		}
 
+		@After
+		public void disconnectSender() throws Exception {
+				this.mqttSender.disconnect();
 		}
 
 		@AfterClass
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Baris Cubukcuoglu
+ */
+public class SpoolingMqttSenderTest {
+
+		private File directory;
+		private RecordingMqttSender delegate;
+		private SpoolingMqttSender mqttSender;
+
+		@Before
+		public void setUp() throws Exception {
+				this.directory = Files.createTempDirectory("spool").toFile();
+				this.delegate = new RecordingMqttSender();
+				this.mqttSender = new SpoolingMqttSender(delegate, new PayloadSpool(directory, 1024, 4))
+						.withDrainRate(100);
+		}
+
+		@After
+		public void tearDown() throws Exception {
+				this.mqttSender.disconnect();
+				this.mqttSender.getSpool().close();
+				final File[] files = directory.listFiles();
+				if (files != null) {
+						for (File file : files) {
+								file.delete();
+						}
+				}
+				directory.delete();
+		}
+
+		@Test
+		public void drainRateIsKeptAcrossTicks() throws Exception {
+				assertThat(messagesPerSecond(150, 100)).isEqualTo(150);
+				assertThat(messagesPerSecond(250, 100)).isEqualTo(250);
+				assertThat(messagesPerSecond(7, 7)).isEqualTo(7);
+				for (long tick = 0; tick < 100; tick++) {
+						assertThat(SpoolingMqttSender.messagesOfTick(150, 100, tick)).isBetween(1, 2);
+				}
+		}
+
+		@Test
+		public void drainSpoolInOrderAfterReconnect() throws Exception {
+				mqttSender.connect();
+				send("first");
+				send("second");
+				assertThat(delegate.payloads).isEmpty();
+
+				delegate.connected = true;
+				send("third");
+
+				final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+				while (delegate.payloads.size() < 3 && System.nanoTime() < deadline) {
+						Thread.sleep(10);
+				}
+				assertThat(delegate.payloads).containsExactly("first", "second", "third");
+				assertThat(mqttSender.getSpool().isEmpty()).isTrue();
+
+				send("fourth");
+				assertThat(delegate.payloads).containsExactly("first", "second", "third", "fourth");
+		}
+
+		private static int messagesPerSecond(final int drainRate, final int ticksPerSecond) {
+				int messages = 0;
+				for (long tick = 0; tick < ticksPerSecond; tick++) {
+						messages += SpoolingMqttSender.messagesOfTick(drainRate, ticksPerSecond, tick);
+				}
+				return messages;
+		}
+
+		private void send(final String payload) throws MqttException {
+				final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+				mqttSender.send(bytes, 0, bytes.length);
+		}
+
+		private static class RecordingMqttSender implements MqttSender {
+				private final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+				private volatile boolean connected;
+
+				public void connect() throws MqttException {
+						if (!connected) {
+								throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+						}
+				}
+
+				public void send(final String jsonPayload) {
+						this.payloads.add(jsonPayload);
+				}
+
+				public void send(final byte[] payload, final int offset, final int length) {
+						this.payloads.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+				}
+
+				public void disconnect() {
+						this.connected = false;
+				}
+
+				public boolean isConnected() {
+						return connected;
+				}
+		}
+}
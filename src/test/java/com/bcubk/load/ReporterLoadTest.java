@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 Baris Cubukcuoglu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bcubk.load;
+
+import com.bcubk.BinaryPayloadDecoder;
+import com.bcubk.BinaryPayloadEncoder;
+import com.bcubk.CompressingMqttSender;
+import com.bcubk.DeflatePayloadCodec;
+import com.bcubk.MqttReporter;
+import com.bcubk.MqttSender;
+import com.bcubk.PayloadBuffer;
+import com.bcubk.QualityOfService;
+import com.bcubk.SeriesSet;
+import com.bcubk.SimpleMqttSender;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.moquette.server.Server;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Publishes reports against the embedded broker and measures messages/s, bytes/s and the
+ * latency from the start of a report until a subscriber received it, for every combination of
+ * metric count, {@link QualityOfService} and payload mode. Not part of the default build, run it
+ * with {@code mvn test -Pload-test}. The metric counts and cycles can be changed with
+ * {@code -Dload.metrics=100,1000} and {@code -Dload.cycles=200}. The results are logged and
+ * appended to {@code target/load-test-results.csv}.
+ *
+ * @author Baris Cubukcuoglu
+ */
+@RunWith(Parameterized.class)
+public class ReporterLoadTest {
+		private static final String TOPIC = "load";
+		private static final String SENT_GAUGE = "load.sent";
+		private static final long RECEIVE_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+		private static final String RESULTS = "target/load-test-results.csv";
+		private static final String RESULTS_HEADER = "metrics,qos,mode,published,publishMillis,"
+				+ "publishedPerSecond,received,receiveMillis,receivedPerSecond,kibPerSecond,"
+				+ "bytesPerMessage,p50Millis,p99Millis,p999Millis,maxMillis";
+		private static final Logger LOGGER = LoggerFactory.getLogger(ReporterLoadTest.class);
+
+		private static Server mqttServer = new Server();
+
+		private final int metrics;
+		private final QualityOfService qos;
+		private final String mode;
+
+		@Parameterized.Parameters
+		public static Collection<Object[]> parameters() {
+				final List<Object[]> parameters = new ArrayList<>();
+				for (String metrics : System.getProperty("load.metrics", "100,1000").split(",")) {
+						for (QualityOfService qos : QualityOfService.values()) {
+								for (String mode : Arrays.asList("json", "binary", "deflate")) {
+										parameters.add(new Object[] {Integer.parseInt(metrics.trim()), qos, mode});
+								}
+						}
+				}
+				return parameters;
+		}
+
+		public ReporterLoadTest(final int metrics, final QualityOfService qos, final String mode) {
+				this.metrics = metrics;
+				this.qos = qos;
+				this.mode = mode;
+		}
+
+		@BeforeClass
+		public static void setUpServer() throws Exception {
+				mqttServer.startServer(new File("src/test/resources/mqttBroker.conf"));
+		}
+
+		@Test
+		public void publish() throws Exception {
+				final int cycles = Integer.getInteger("load.cycles", 200);
+				final Subscriber subscriber = new Subscriber(cycles);
+				subscriber.subscribe();
+
+				MqttSender mqttSender = new SimpleMqttSender("tcp://localhost", 1883, qos, TOPIC, null,
+						"load-publisher");
+				final MqttReporter.Builder builder = MqttReporter.forRegistry(registry());
+				if (!"json".equals(mode)) {
+						builder.encodeWith(new BinaryPayloadEncoder());
+				}
+				if ("deflate".equals(mode)) {
+						mqttSender = new CompressingMqttSender(mqttSender, DeflatePayloadCodec.deflate());
+				}
+				final MqttReporter reporter = builder.build(mqttSender);
+
+				final long start = System.nanoTime();
+				try {
+						for (int i = 0; i < cycles; i++) {
+								reporter.report();
+						}
+				}
+				finally {
+						reporter.stop();
+				}
+				final long published = System.nanoTime() - start;
+				subscriber.await();
+				final long received = subscriber.getLastReceived() - start;
+				subscriber.close();
+
+				final long[] latencies = subscriber.getLatencies();
+				final Object[] result = {metrics, qos, mode, cycles,
+						TimeUnit.NANOSECONDS.toMillis(published), perSecond(cycles, published),
+						latencies.length, TimeUnit.NANOSECONDS.toMillis(received),
+						perSecond(latencies.length, received),
+						perSecond(subscriber.getBytes(), received) / 1024,
+						latencies.length == 0 ? 0 : subscriber.getBytes() / latencies.length,
+						percentile(latencies, 0.5), percentile(latencies, 0.99),
+						percentile(latencies, 0.999), percentile(latencies, 1)};
+				LOGGER.info(String.format(Locale.ROOT, "metrics=%d qos=%s mode=%s: published %d in %d ms"
+								+ " (%.0f msg/s), received %d in %d ms (%.0f msg/s, %.0f KiB/s, %d bytes/msg),"
+								+ " latency p50=%.2f p99=%.2f p999=%.2f max=%.2f ms", result));
+				record(result);
+
+				assertThat(latencies.length).isGreaterThan(0);
+				if (qos != QualityOfService.AT_MOST_ONCE) {
+						assertThat(latencies.length).isEqualTo(cycles);
+				}
+		}
+
+		@AfterClass
+		public static void tearDown() throws Exception {
+				mqttServer.stopServer();
+		}
+
+		private MetricRegistry registry() {
+				final MetricRegistry registry = new MetricRegistry();
+				registry.register(SENT_GAUGE, new Gauge<Long>() {
+						public Long getValue() {
+								return System.nanoTime();
+						}
+				});
+				final Random random = new Random(42);
+				for (int i = 1; i < metrics; i++) {
+						final String name = MetricRegistry.name("service", "metric" + i);
+						switch (i % 4) {
+								case 0:
+										registry.counter(name).inc(random.nextInt(1000));
+										break;
+								case 1:
+										registry.meter(name).mark(random.nextInt(1000));
+										break;
+								case 2:
+										registry.histogram(name).update(random.nextInt(1000));
+										break;
+								default:
+										registry.timer(name).update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+						}
+				}
+				return registry;
+		}
+
+		/**
+		 * Appends the result as a line to {@link #RESULTS}, which starts with a header when new.
+		 */
+		private static synchronized void record(final Object[] result) throws IOException {
+				final File file = new File(RESULTS);
+				file.getParentFile().mkdirs();
+				final boolean created = !file.exists();
+				final Writer out = new OutputStreamWriter(new FileOutputStream(file, true),
+						StandardCharsets.UTF_8);
+				try {
+						if (created) {
+								out.write(RESULTS_HEADER);
+								out.write('\n');
+						}
+						out.write(String.format(Locale.ROOT,
+								"%d,%s,%s,%d,%d,%.0f,%d,%d,%.0f,%.0f,%d,%.2f,%.2f,%.2f,%.2f%n", result));
+				}
+				finally {
+						out.close();
+				}
+		}
+
+		private static double perSecond(final long count, final long nanos) {
+				return nanos == 0 ? 0 : count * 1e9 / nanos;
+		}
+
+		private static double percentile(final long[] sorted, final double quantile) {
+				if (sorted.length == 0) {
+						return 0;
+				}
+				final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+				return sorted[Math.max(0, index)] / 1e6;
+		}
+
+		/**
+		 * Decodes every received report and takes the time since its {@code load.sent} gauge was
+		 * read.
+		 */
+		private class Subscriber implements MqttCallback {
+				private final MqttClient client;
+				private final long[] latencies;
+				private final PayloadBuffer decompressed = new PayloadBuffer();
+				private final SeriesSet seriesSet = new SeriesSet();
+				private int received;
+				private long bytes;
+				private long lastReceived;
+
+				private Subscriber(final int cycles) throws Exception {
+						this.client = new MqttClient("tcp://localhost:1883", "load-subscriber",
+								new MemoryPersistence());
+						this.latencies = new long[cycles];
+				}
+
+				private void subscribe() throws Exception {
+						client.setCallback(this);
+						client.connect();
+						client.subscribe(TOPIC, qos.getQos());
+				}
+
+				public void messageArrived(final String topic, final MqttMessage message)
+						throws Exception {
+						final long now = System.nanoTime();
+						byte[] payload = message.getPayload();
+						int length = payload.length;
+						if ("deflate".equals(mode)) {
+								decompressed.reset();
+								CompressingMqttSender.decode(payload, 0, length, decompressed,
+										DeflatePayloadCodec.deflate());
+								payload = decompressed.array();
+								length = decompressed.length();
+						}
+						final long sent = "json".equals(mode) ? sentFromJson(payload, length)
+								: sentFromBinary(payload, length);
+						synchronized (this) {
+								if (received < latencies.length) {
+										latencies[received++] = now - sent;
+								}
+								bytes += message.getPayload().length;
+								lastReceived = now;
+								notifyAll();
+						}
+				}
+
+				private long sentFromJson(final byte[] payload, final int length) {
+						final JsonArray values = new JsonParser()
+								.parse(new String(payload, 0, length, StandardCharsets.UTF_8))
+								.getAsJsonObject().getAsJsonArray("discreteTimeValues");
+						for (JsonElement value : values) {
+								final JsonObject object = value.getAsJsonObject();
+								if (SENT_GAUGE.equals(object.get("name").getAsString())) {
+										return Long.parseLong(object.get("value").getAsString());
+								}
+						}
+						throw new IllegalStateException("Report without " + SENT_GAUGE);
+				}
+
+				private long sentFromBinary(final byte[] payload, final int length)
+						throws IOException {
+						seriesSet.resetSeries();
+						new BinaryPayloadDecoder().decode(payload, 0, length, seriesSet);
+						final int nameId = seriesSet.nameId(SENT_GAUGE);
+						for (int i = 0; i < seriesSet.size(); i++) {
+								if (seriesSet.getNameId(i) == nameId) {
+										return seriesSet.getLong(i);
+								}
+						}
+						throw new IllegalStateException("Report without " + SENT_GAUGE);
+				}
+
+				private synchronized void await() throws InterruptedException {
+						final long deadline = System.nanoTime() + RECEIVE_TIMEOUT;
+						long remaining = RECEIVE_TIMEOUT;
+						while (received < latencies.length && remaining > 0) {
+								TimeUnit.NANOSECONDS.timedWait(this, remaining);
+								remaining = deadline - System.nanoTime();
+						}
+				}
+
+				private synchronized long[] getLatencies() {
+						final long[] sorted = Arrays.copyOf(latencies, received);
+						Arrays.sort(sorted);
+						return sorted;
+				}
+
+				private synchronized long getBytes() {
+						return bytes;
+				}
+
+				private synchronized long getLastReceived() {
+						return lastReceived;
+				}
+
+				private void close() throws Exception {
+						client.disconnect();
+						client.close();
+				}
+
+				public void connectionLost(final Throwable cause) {
+				}
+
+				public void deliveryComplete(final IMqttDeliveryToken token) {
+				}
+		}
+}